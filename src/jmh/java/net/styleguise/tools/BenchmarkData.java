@@ -0,0 +1,172 @@
+package net.styleguise.tools;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.apphosting.api.ApiProxy;
+
+/**
+ * Generates the entities and CSV rows the benchmarks work on. The entities are of kind
+ * {@link BenchmarkThing}; their width is the number of properties, whose types cycle through
+ * Long, String, String and List of String. The strings are about the given size and each of
+ * their characters is a character which needs escaping (a comma, a double quote or a line
+ * break) with the given probability.
+ */
+final class BenchmarkData {
+
+	/** The number of entities, values or rows each benchmark invocation works on. */
+	static final int Rows = 1000;
+
+	private static final String Alphabet = "abcdefghijklmnopqrstuvwxyz ABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789";
+	private static final String Special = ",\"\n\r";
+	private static final int CollectionSize = 3;
+
+	private BenchmarkData() {
+	}
+
+	/**
+	 * Keys can only be created on a thread with an API environment, which provides the
+	 * application id.
+	 */
+	static void installEnvironment() {
+		ApiProxy.setEnvironmentForCurrentThread((ApiProxy.Environment) Proxy.newProxyInstance(
+				BenchmarkData.class.getClassLoader(), new Class<?>[] { ApiProxy.Environment.class }, new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) {
+						switch (method.getName()) {
+						case "getAppId": return "benchmark";
+						case "getAttributes": return new HashMap<String, Object>();
+						case "getRequestNamespace": return "";
+						default: return null;
+						}
+					}
+				}));
+	}
+
+	/**
+	 * The CSV header of the entities: the key column followed by the properties.
+	 */
+	static String[] newHeader(int width) {
+		if (width < 1 || width > BenchmarkThing.Width)
+			throw new IllegalArgumentException("The width must be between 1 and " + BenchmarkThing.Width);
+		String[] header = new String[width + 1];
+		header[0] = Entity.KEY_RESERVED_PROPERTY;
+		for (int i = 0; i < width; i++)
+			header[i + 1] = BenchmarkThing.propertyName(i);
+		return header;
+	}
+
+	static Entity[] newEntities(int width, int valueSize, double escapeDensity, Random random) {
+		Entity[] entities = new Entity[Rows];
+		for (int i = 0; i < Rows; i++) {
+			Entity entity = new Entity(KeyFactory.createKey(BenchmarkThing.class.getSimpleName(), i + 1));
+			for (int j = 0; j < width; j++) {
+				Object value;
+				switch (j % 4) {
+				case 0:
+					value = random.nextLong();
+					break;
+				case 3:
+					value = newCollection(valueSize, escapeDensity, random);
+					break;
+				default:
+					value = newValue(valueSize, escapeDensity, random);
+				}
+				entity.setProperty(BenchmarkThing.propertyName(j), value);
+			}
+			entities[i] = entity;
+		}
+		return entities;
+	}
+
+	static String[] newValues(int valueSize, double escapeDensity, Random random) {
+		String[] values = new String[Rows];
+		for (int i = 0; i < Rows; i++)
+			values[i] = newValue(valueSize, escapeDensity, random);
+		return values;
+	}
+
+	static List<String> newCollection(int valueSize, double escapeDensity, Random random) {
+		ArrayList<String> collection = new ArrayList<>(CollectionSize);
+		for (int i = 0; i < CollectionSize; i++)
+			collection.add(newValue(Math.max(1, valueSize / CollectionSize), escapeDensity, random));
+		return collection;
+	}
+
+	/**
+	 * Encodes the entities into CSV rows (without line breaks) the way the exporter does, except
+	 * that the keys are written in the encoded form the importer parses.
+	 */
+	static String[] toRows(Entity[] entities, String[] header) throws IOException {
+		CsvValueEncoder encoder = new CsvValueEncoder();
+		String[] rows = new String[entities.length];
+		StringWriter row = new StringWriter();
+		for (int i = 0; i < entities.length; i++) {
+			row.getBuffer().setLength(0);
+			row.write(KeyFactory.keyToString(entities[i].getKey()));
+			for (int j = 1; j < header.length; j++) {
+				row.write(DatastoreExporter.FieldSeparatorChar);
+				encoder.writeValue(row, entities[i].getProperty(header[j]));
+			}
+			rows[i] = row.toString();
+		}
+		return rows;
+	}
+
+	/**
+	 * A string of about the given size (between half and one and a half times it).
+	 */
+	private static String newValue(int size, double escapeDensity, Random random) {
+		int length = size / 2 + random.nextInt(size + 1);
+		StringBuilder value = new StringBuilder(length);
+		for (int i = 0; i < length; i++) {
+			if (random.nextDouble() < escapeDensity)
+				value.append(Special.charAt(random.nextInt(Special.length())));
+			else
+				value.append(Alphabet.charAt(random.nextInt(Alphabet.length())));
+		}
+		return value.toString();
+	}
+
+	/**
+	 * Discards what is written, so the benchmarks measure the encoding rather than the copying.
+	 */
+	static class CountingWriter extends Writer {
+
+		long count;
+
+		@Override
+		public void write(int c) {
+			count++;
+		}
+
+		@Override
+		public void write(char[] cbuf, int off, int len) {
+			count += len;
+		}
+
+		@Override
+		public void write(String str, int off, int len) {
+			count += len;
+		}
+
+		@Override
+		public void flush() {
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+
+}
@@ -0,0 +1,50 @@
+package net.styleguise.tools;
+
+import java.util.List;
+
+/**
+ * The persistent class of the entities the benchmarks decode. Property i is named pi and its
+ * type is Long, String, String or List of String, depending on i modulo 4.
+ */
+public class BenchmarkThing {
+
+	static final int Width = 32;
+
+	private Long p0;
+	private String p1;
+	private String p2;
+	private List<String> p3;
+	private Long p4;
+	private String p5;
+	private String p6;
+	private List<String> p7;
+	private Long p8;
+	private String p9;
+	private String p10;
+	private List<String> p11;
+	private Long p12;
+	private String p13;
+	private String p14;
+	private List<String> p15;
+	private Long p16;
+	private String p17;
+	private String p18;
+	private List<String> p19;
+	private Long p20;
+	private String p21;
+	private String p22;
+	private List<String> p23;
+	private Long p24;
+	private String p25;
+	private String p26;
+	private List<String> p27;
+	private Long p28;
+	private String p29;
+	private String p30;
+	private List<String> p31;
+
+	static String propertyName(int i) {
+		return "p" + i;
+	}
+
+}
@@ -0,0 +1,78 @@
+package net.styleguise.tools;
+
+import java.io.CharArrayReader;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * The import hot paths: tokenizing a row ({@link DatastoreImporter#tokenize}) and parsing a
+ * block of rows into entities ({@link CsvParser} and {@link EntityDecoder}, as the parser
+ * threads of the importer do). The throughput is in rows per second.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CsvDecodeBenchmark {
+
+	@Param({ "8", "32" })
+	int width;
+
+	@Param({ "16", "256" })
+	int valueSize;
+
+	@Param({ "0", "0.01", "0.1" })
+	double escapeDensity;
+
+	private String[] rows;
+	private char[] block;
+	private EntityDecoder decoder;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		BenchmarkData.installEnvironment();
+		String[] header = BenchmarkData.newHeader(width);
+		rows = BenchmarkData.toRows(
+				BenchmarkData.newEntities(width, valueSize, escapeDensity, new Random(42)), header);
+		StringBuilder csv = new StringBuilder();
+		for (String row : rows)
+			csv.append(row).append(DatastoreExporter.Newline);
+		block = csv.toString().toCharArray();
+		decoder = new EntityDecoder(BenchmarkThing.class, header);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BenchmarkData.Rows)
+	public void tokenize(Blackhole blackhole) {
+		for (String row : rows)
+			blackhole.consume(DatastoreImporter.tokenize(row));
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BenchmarkData.Rows)
+	public void readEntity(Blackhole blackhole) throws IOException {
+		try (CsvParser parser = new CsvParser(new CharArrayReader(block), block.length)) {
+			while (parser.next())
+				blackhole.consume(decoder.decode(parser));
+		}
+	}
+
+}
@@ -0,0 +1,145 @@
+package net.styleguise.tools;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.appengine.api.datastore.Entity;
+
+/**
+ * The export hot paths: writing an entity as a CSV row ({@link KindCsvWriter.Part#write}),
+ * escaping a string value and writing a collection value ({@link CsvValueEncoder}). The
+ * regex based escaping which the encoder replaced is measured alongside as a baseline. The
+ * throughput is in entities or values per second.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CsvEncodeBenchmark {
+
+	@Param({ "8", "32" })
+	int width;
+
+	@Param({ "16", "256" })
+	int valueSize;
+
+	@Param({ "0", "0.01", "0.1" })
+	double escapeDensity;
+
+	private Entity[] entities;
+	private String[] values;
+	private List<?>[] collections;
+	private String[] header;
+	private final CsvValueEncoder encoder = new CsvValueEncoder();
+	private final BenchmarkData.CountingWriter out = new BenchmarkData.CountingWriter();
+	private Path csv;
+	private KindCsvWriter writer;
+	private KindWriter.Part part;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		BenchmarkData.installEnvironment();
+		Random random = new Random(42);
+		header = BenchmarkData.newHeader(width);
+		entities = BenchmarkData.newEntities(width, valueSize, escapeDensity, random);
+		values = BenchmarkData.newValues(valueSize, escapeDensity, random);
+		collections = new List<?>[BenchmarkData.Rows];
+		for (int i = 0; i < collections.length; i++)
+			collections[i] = BenchmarkData.newCollection(valueSize, escapeDensity, random);
+	}
+
+	/**
+	 * The rows go to a file which is replaced every iteration, so it does not grow without bound.
+	 */
+	@Setup(Level.Iteration)
+	public void openWriter() throws IOException {
+		csv = Files.createTempFile("benchmark", ".csv");
+		writer = new KindCsvWriter(csv, Arrays.asList(header).subList(1, header.length));
+		part = writer.newPart();
+	}
+
+	@TearDown(Level.Iteration)
+	public void closeWriter() throws IOException {
+		writer.close();
+		Files.delete(csv);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BenchmarkData.Rows)
+	public long writeEntity() throws IOException {
+		long length = 0;
+		for (Entity entity : entities)
+			length += part.write(entity);
+		return length;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BenchmarkData.Rows)
+	public long escapeAndWrite() throws IOException {
+		for (String value : values)
+			encoder.write(out, value);
+		return out.count;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BenchmarkData.Rows)
+	public long escapeAndWriteRegex() {
+		for (String value : values)
+			legacyEscapeAndWrite(out, value);
+		return out.count;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BenchmarkData.Rows)
+	public long writeCollection() throws IOException {
+		for (List<?> collection : collections)
+			encoder.writeValue(out, collection);
+		return out.count;
+	}
+
+	/**
+	 * The escaping the exporter used before the CsvValueEncoder (including its lossy conversion
+	 * of commas into semicolons).
+	 */
+	private static void legacyEscapeAndWrite(BenchmarkData.CountingWriter out, String value) {
+		if (value.contains(DatastoreExporter.DoubleQuote)) {
+			value = value.replaceAll(DatastoreExporter.DoubleQuote, DatastoreExporter.DoubleDoubleQuote);
+		}
+		if (value.contains(DatastoreExporter.Newline)) {
+			value = value.replaceAll(DatastoreExporter.Newline, DatastoreExporter.EscapedNewline);
+		}
+		if (value.contains(DatastoreExporter.CarriageReturn)) {
+			value = value.replaceAll(DatastoreExporter.CarriageReturn, DatastoreExporter.EscapedCarriageReturn);
+		}
+		if (value.contains(DatastoreExporter.FieldSeparator)) {
+			value = DatastoreExporter.DoubleQuote + value + DatastoreExporter.DoubleQuote;
+		}
+		if (value.contains(",")) {
+			value = value.replaceAll(",", ";");
+		}
+		out.write(value, 0, value.length());
+	}
+
+}
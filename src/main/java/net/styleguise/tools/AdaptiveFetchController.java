@@ -0,0 +1,162 @@
+package net.styleguise.tools;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.DatastoreTimeoutException;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.apphosting.api.ApiProxy.ApiDeadlineExceededException;
+
+/**
+ * Chooses the fetch options of the batches of a query based on how the previous batches went.
+ *
+ * The limit (the number of entities per batch) starts small and doubles while batches come back
+ * quickly and are of a modest size. It is halved when a batch is slow, large, or runs into a
+ * deadline, in which case the batch is retried. The limit always stays within the configured
+ * bounds. Within a batch the entities are fetched in chunks (RPCs) which are sized so that a
+ * single response stays around {@link #RpcBytes}, based on the average size of the entities
+ * seen so far; the first chunk is prefetched with the query itself.
+ *
+ * The batches may be fetched on one thread and written on another, so the size of the entities
+ * is reported separately from the outcome of each fetch.
+ */
+public class AdaptiveFetchController {
+
+	/** A batch taking longer than this is considered slow. */
+	public static final long TargetBatchMillis = 2000;
+
+	/** A batch larger than this (in CSV bytes) is considered large. */
+	public static final long TargetBatchBytes = 8 * 1024 * 1024;
+
+	/** The targeted size (in CSV bytes) of the response to one RPC. */
+	public static final long RpcBytes = 1024 * 1024;
+
+	/** The number of times a batch is retried at the minimum limit before giving up. */
+	public static final int MaxRetries = 5;
+
+	private final int minLimit;
+	private final int maxLimit;
+	private final int maxChunkSize;
+	private int limit;
+	private double averageEntityBytes;
+	private long batches;
+	private long entities;
+	private long fetchNanos;
+	private int retries;
+	private int totalRetries;
+	private int smallestLimit;
+	private int largestLimit;
+
+	/**
+	 * @param minLimit the smallest number of entities per batch
+	 * @param maxLimit the largest number of entities per batch
+	 * @param maxChunkSize the largest number of entities per RPC
+	 * @param initialLimit the number of entities in the first batch
+	 */
+	public AdaptiveFetchController(int minLimit, int maxLimit, int maxChunkSize, int initialLimit) {
+		if (minLimit < 1 || maxLimit < minLimit)
+			throw new IllegalArgumentException("Invalid fetch limits: " + minLimit + ".." + maxLimit);
+		this.minLimit = minLimit;
+		this.maxLimit = maxLimit;
+		this.maxChunkSize = maxChunkSize;
+		this.limit = clamp(initialLimit, minLimit, maxLimit);
+		this.smallestLimit = limit;
+		this.largestLimit = limit;
+	}
+
+	/**
+	 * The fetch options of the next batch.
+	 */
+	public synchronized FetchOptions newFetchOptions(Cursor startCursor) {
+		int chunkSize = maxChunkSize;
+		if (averageEntityBytes > 0)
+			chunkSize = (int) clamp(RpcBytes / averageEntityBytes, 1, maxChunkSize);
+		chunkSize = Math.min(chunkSize, limit);
+		FetchOptions options = FetchOptions.Builder.withLimit(limit)
+				.prefetchSize(chunkSize).chunkSize(chunkSize);
+		if (startCursor != null)
+			options.startCursor(startCursor);
+		return options;
+	}
+
+	/**
+	 * Adapts the limit after a batch was fetched successfully. The size of the batch is
+	 * estimated from the average size of the entities written so far.
+	 * @param count the number of entities in the batch
+	 * @param nanos the time it took to fetch the batch
+	 */
+	public synchronized void recordBatch(int count, long nanos) {
+		batches++;
+		entities += count;
+		fetchNanos += nanos;
+		retries = 0;
+
+		long millis = nanos / 1000000;
+		double bytes = count * averageEntityBytes;
+		if (millis > TargetBatchMillis || bytes > TargetBatchBytes)
+			setLimit(limit / 2);
+		else if (count == limit && millis < TargetBatchMillis / 2 && bytes < TargetBatchBytes / 2)
+			setLimit(limit * 2);
+	}
+
+	/**
+	 * Updates the average entity size once a batch has been written.
+	 * @param count the number of entities in the batch
+	 * @param bytes the size of the batch
+	 */
+	public synchronized void recordBytes(int count, long bytes) {
+		if (count > 0)
+			averageEntityBytes = averageEntityBytes == 0
+					? (double) bytes / count
+					: 0.8 * averageEntityBytes + 0.2 * bytes / count;
+	}
+
+	/**
+	 * Halves the limit after a batch failed with a deadline error.
+	 * @return whether the batch should be retried
+	 */
+	public synchronized boolean recordDeadline() {
+		totalRetries++;
+		if (limit == minLimit)
+			return ++retries <= MaxRetries;
+		setLimit(limit / 2);
+		return true;
+	}
+
+	/**
+	 * @return whether the exception is a deadline error which a smaller batch may avoid
+	 */
+	public static boolean isDeadline(RuntimeException e) {
+		return e instanceof DatastoreTimeoutException || e instanceof ApiDeadlineExceededException;
+	}
+
+	public synchronized int getLimit() {
+		return limit;
+	}
+
+	/**
+	 * A summary of the sizes chosen so far.
+	 */
+	@Override
+	public synchronized String toString() {
+		return "batches=" + batches
+				+ ", entities=" + entities
+				+ ", limit=" + limit + " (" + smallestLimit + ".." + largestLimit + ")"
+				+ ", avgEntityBytes=" + Math.round(averageEntityBytes)
+				+ ", avgBatchMillis=" + (batches == 0 ? 0 : fetchNanos / batches / 1000000)
+				+ ", retries=" + totalRetries;
+	}
+
+	private void setLimit(int newLimit) {
+		limit = clamp(newLimit, minLimit, maxLimit);
+		smallestLimit = Math.min(smallestLimit, limit);
+		largestLimit = Math.max(largestLimit, limit);
+	}
+
+	private static int clamp(int value, int min, int max) {
+		return Math.max(min, Math.min(max, value));
+	}
+
+	private static double clamp(double value, double min, double max) {
+		return Math.max(min, Math.min(max, value));
+	}
+
+}
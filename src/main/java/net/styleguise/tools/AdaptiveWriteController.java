@@ -0,0 +1,161 @@
+package net.styleguise.tools;
+
+import java.util.ConcurrentModificationException;
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.google.appengine.api.datastore.DatastoreTimeoutException;
+import com.google.apphosting.api.ApiProxy.ApiDeadlineExceededException;
+
+/**
+ * Chooses how many puts the importer keeps in flight and how many entities go into each put,
+ * based on how the previous puts went.
+ *
+ * Both follow an additive-increase/multiplicative-decrease policy: every time as many puts as are
+ * allowed in flight have succeeded within {@link #TargetPutMillis}, one more put is allowed in
+ * flight and the batch size grows by a step. A put which is throttled (see {@link #isRetryable})
+ * or slow halves both. Puts which were already in flight when the limits were halved do not halve
+ * them again, so a burst of failures only counts once. The limits always stay within the
+ * configured bounds.
+ *
+ * A throttled put is retried after a random delay of up to {@link #BaseBackoffMillis} times
+ * 2^attempt (capped at {@link #MaxBackoffMillis}), so retries of concurrent puts spread out.
+ */
+public class AdaptiveWriteController {
+
+	/** A put taking longer than this is considered slow. */
+	public static final long TargetPutMillis = 2000;
+
+	public static final long BaseBackoffMillis = 100;
+	public static final long MaxBackoffMillis = 30000;
+
+	/** The number of times a put is attempted before giving up. */
+	public static final int MaxAttempts = 10;
+
+	private final int maxConcurrency;
+	private final int minBatchSize;
+	private final int maxBatchSize;
+	private final int batchSizeStep;
+	private int concurrency;
+	private int batchSize;
+	private int successes;
+	private boolean decreased;
+	private long lastDecrease;
+	private long puts;
+	private long retries;
+	private long decreases;
+	private int smallestConcurrency;
+	private int largestConcurrency;
+
+	/**
+	 * @param initialConcurrency the number of puts allowed in flight at first
+	 * @param maxConcurrency the largest number of puts in flight
+	 * @param minBatchSize the smallest number of entities per put
+	 * @param maxBatchSize the largest number of entities per put, which is also the initial one
+	 */
+	public AdaptiveWriteController(int initialConcurrency, int maxConcurrency, int minBatchSize, int maxBatchSize) {
+		if (maxConcurrency < 1 || minBatchSize < 1 || maxBatchSize < minBatchSize)
+			throw new IllegalArgumentException("Invalid write limits: " + maxConcurrency + " puts of "
+					+ minBatchSize + ".." + maxBatchSize);
+		this.maxConcurrency = maxConcurrency;
+		this.minBatchSize = minBatchSize;
+		this.maxBatchSize = maxBatchSize;
+		this.batchSizeStep = Math.max(1, maxBatchSize / 10);
+		this.concurrency = clamp(initialConcurrency, 1, maxConcurrency);
+		this.batchSize = maxBatchSize;
+		this.smallestConcurrency = concurrency;
+		this.largestConcurrency = concurrency;
+	}
+
+	/**
+	 * The number of puts allowed in flight.
+	 */
+	public synchronized int getConcurrency() {
+		return concurrency;
+	}
+
+	/**
+	 * The number of entities per put.
+	 */
+	public synchronized int getBatchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * Adapts the limits after a put succeeded.
+	 * @param startNanos when the put was started (System.nanoTime)
+	 * @param nanos the time the put took
+	 */
+	public synchronized void recordSuccess(long startNanos, long nanos) {
+		puts++;
+		if (nanos / 1000000 > TargetPutMillis) {
+			decrease(startNanos);
+			return;
+		}
+		if (++successes >= concurrency) {
+			successes = 0;
+			setConcurrency(concurrency + 1);
+			batchSize = Math.min(maxBatchSize, batchSize + batchSizeStep);
+		}
+	}
+
+	/**
+	 * Halves the limits after a put was throttled.
+	 * @param startNanos when the put was started (System.nanoTime)
+	 * @param attempts the number of times the put has been attempted so far
+	 * @return the delay (in milliseconds) after which the put should be retried, or -1 if it
+	 * should not be retried any more
+	 */
+	public synchronized long recordThrottled(long startNanos, int attempts) {
+		decrease(startNanos);
+		if (attempts >= MaxAttempts)
+			return -1;
+		retries++;
+		long ceiling = BaseBackoffMillis << Math.min(attempts, 20);
+		return ThreadLocalRandom.current().nextLong(Math.min(ceiling, MaxBackoffMillis) + 1);
+	}
+
+	/**
+	 * @return whether the exception means the datastore is throttling or contended, so that the
+	 * put may succeed later
+	 */
+	public static boolean isRetryable(Throwable e) {
+		return e instanceof DatastoreTimeoutException
+				|| e instanceof ConcurrentModificationException
+				|| e instanceof ApiDeadlineExceededException;
+	}
+
+	/**
+	 * A summary of the limits chosen so far.
+	 */
+	@Override
+	public synchronized String toString() {
+		return "puts=" + puts
+				+ ", inFlight=" + concurrency + " (" + smallestConcurrency + ".." + largestConcurrency + ")"
+				+ ", batchSize=" + batchSize
+				+ ", retries=" + retries
+				+ ", decreases=" + decreases;
+	}
+
+	private void decrease(long startNanos) {
+		// a put started before the last decrease saw the old limits
+		if (decreased && startNanos - lastDecrease < 0)
+			return;
+		decreased = true;
+		lastDecrease = System.nanoTime();
+		decreases++;
+		successes = 0;
+		setConcurrency(concurrency / 2);
+		batchSize = Math.max(minBatchSize, batchSize / 2);
+	}
+
+	private void setConcurrency(int newConcurrency) {
+		concurrency = clamp(newConcurrency, 1, maxConcurrency);
+		smallestConcurrency = Math.min(smallestConcurrency, concurrency);
+		largestConcurrency = Math.max(largestConcurrency, concurrency);
+	}
+
+	private static int clamp(int value, int min, int max) {
+		return Math.max(min, Math.min(max, value));
+	}
+
+}
@@ -0,0 +1,63 @@
+package net.styleguise.tools;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Decodes the bytes of a buffer (typically a memory mapped part of a file) straight into the
+ * character arrays of its caller, without copying them through an intermediate buffer the way
+ * an InputStreamReader does. Malformed input is replaced, as an InputStreamReader would.
+ */
+public class ByteBufferReader extends Reader {
+
+	private final ByteBuffer bytes;
+	private final CharsetDecoder decoder;
+	private final CharBuffer pending = CharBuffer.allocate(2);
+	private boolean flushed;
+
+	public ByteBufferReader(ByteBuffer bytes, Charset charset) {
+		this.bytes = bytes;
+		this.decoder = charset.newDecoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		pending.flip();
+	}
+
+	@Override
+	public int read(char[] cbuf, int off, int len) throws IOException {
+		if (len == 0)
+			return 0;
+		CharBuffer out = CharBuffer.wrap(cbuf, off, len);
+		while (pending.hasRemaining() && out.hasRemaining())
+			out.put(pending.get());
+
+		if (!flushed) {
+			CoderResult result = decoder.decode(bytes, out, true);
+			if (result.isUnderflow()) {
+				result = decoder.flush(out);
+				flushed = result.isUnderflow();
+			}
+			if (result.isOverflow() && out.position() == off) {
+				// the next character (a surrogate pair) does not fit into a single char
+				pending.clear();
+				decoder.decode(bytes, pending, true);
+				pending.flip();
+				out.put(pending.get());
+			}
+		}
+
+		int read = out.position() - off;
+		return read == 0 && flushed && !pending.hasRemaining() ? -1 : read;
+	}
+
+	@Override
+	public void close() {
+	}
+
+}
@@ -1,142 +1,74 @@
 package net.styleguise.tools;
 
-import java.io.BufferedReader;
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileReader;
-import java.io.FileWriter;
-import java.io.InputStreamReader;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Set;
-
-import com.opencsv.CSVReader;
-import com.opencsv.CSVWriter;
-
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+
+/**
+ * Post-processes an exported CSV file with a {@link CsvRowFilter}. Usage:
+ *
+ * <pre>
+ * CsvAdapter source.csv target.csv [ids=column:idsFile[:cell|name|prefix]] [after=column:millis] [columns=a;b;c]
+ * </pre>
+ *
+ * The IDs file holds one ID per line. By default the ID of a cell is the name of the key it
+ * holds (see {@link CsvRowFilter.IdExtractor}). Every option except columns can be given more
+ * than once.
+ */
 public class CsvAdapter {
 
-	private static String sourceDir = "D:\\Afstuderen\\Data Dumps\\";
-	private static String targetDir = "D:\\Afstuderen\\Data Dumps\\edited\\";
-	private static String acceptedIDsFile = "D:\\Afstuderen\\Data Dumps\\stored_ids.txt";
-
-	private static ArrayList<String> ACCEPTED_IDS;
-
-	public static void main(String[] args) {
-		String filename = "HITgroup-6937866534143009333.csv";
-
-		ACCEPTED_IDS = readAcceptedIDs();
-
-		try {
-
-			FileInputStream fis = new FileInputStream(sourceDir + filename);
-
-			BufferedReader reader = new BufferedReader(new InputStreamReader(
-					fis));
-			String line = "";
-			String[] nextLine;
-
-			ArrayList<String[]> output = new ArrayList<String[]>();
-
-			ArrayList<String> output2 = new ArrayList<String>();
-
-			// Add first line
-			line = reader.readLine();
-			output.add(line.split(","));
-
-			// Then read each line in turn
-			String currentId = "";
-			int amount = 0;
-			while ((line = reader.readLine()) != null) {
-				nextLine = line.split(",");
-				amount++;
-				// currentId = getCurrentIdInstance(nextLine[0]);
-				currentId = getCurrentId(nextLine[0]);
-				if (Long.parseLong(nextLine[1]) > 1438426660000L) {
-					output.add(nextLine);
-				}
-
-			}
-
-			reader.close();
-			outputToCsv(output, filename);
-			System.out.println("Looked at " + amount + " entries.");
-			System.out.println("Cloned " + output.size() + " entries.");
-
-			outputToCsvTemp(output2, "requestersAndHITs.csv");
-
-		} catch (Exception e) {
-			e.printStackTrace();
-		}
-
-	}
-
-	public static void outputToCsv(ArrayList<String[]> output, String fileName) {
-		try {
-			CSVWriter writer = new CSVWriter(new FileWriter(targetDir
-					+ fileName), ',');
-			String[] current = new String[1];
-			for (String[] entries : output) {
-				current[0] = "";
-				for (String s : entries) {
-					current[0] += addQuotes(s) + ",";
-				}
-				current[0] = current[0].substring(0, current[0].length() - 1);
-				writer.writeNext(current);
-			}
-			writer.close();
-		} catch (Exception e) {
-			e.printStackTrace();
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.out.println("Usage: CsvAdapter source.csv target.csv [ids=column:idsFile[:cell|name|prefix]] [after=column:millis] [columns=a;b;c]");
+			return;
 		}
-	}
 
-	//For outputting a list of Strings instead of list of String[]
-	public static void outputToCsvTemp(ArrayList<String> output, String fileName) {
-		try {
-			CSVWriter writer = new CSVWriter(new FileWriter(targetDir
-					+ fileName), ',');
-			for (String entry : output) {
-				writer.writeNext(new String[] { entry });
+		CsvRowFilter filter = new CsvRowFilter();
+		for (int i = 2; i < args.length; i++) {
+			String[] option = args[i].split("=", 2);
+			if (option.length != 2)
+				throw new IllegalArgumentException("Expected key=value: " + args[i]);
+			switch (option[0]) {
+			case "ids":
+				String[] ids = option[1].split(":", 3);
+				if (ids.length < 2)
+					throw new IllegalArgumentException("Expected column:idsFile: " + option[1]);
+				filter.addIdFilter(ids[0], ids.length == 3 ? toIdExtractor(ids[2]) : CsvRowFilter.IdExtractor.KeyName,
+						readIds(Paths.get(ids[1])));
+				break;
+			case "after":
+				int colon = option[1].lastIndexOf(':');
+				if (colon < 0)
+					throw new IllegalArgumentException("Expected column:millis: " + option[1]);
+				filter.addAfterFilter(option[1].substring(0, colon), Long.parseLong(option[1].substring(colon + 1)));
+				break;
+			case "columns":
+				filter.setColumns(option[1].split(DatastoreExporter.CollectionValueSeparator));
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown option: " + option[0]);
 			}
-			writer.close();
-		} catch (Exception e) {
-			e.printStackTrace();
 		}
-	}
 
-	public static String addQuotes(String s) {
-		// If it contains spaces or commas add quotes around it
-		if (s.contains(" ") || s.contains(",")) {
-			s = "\"" + s + "\"";
-		}
-		return s;
+		filter.filter(Paths.get(args[0]), Paths.get(args[1]));
+		System.out.println("Looked at " + filter.getRowsRead() + " entries.");
+		System.out.println("Cloned " + filter.getRowsWritten() + " entries.");
 	}
 
-	private static ArrayList<String> readAcceptedIDs() {
-		ArrayList<String> result = new ArrayList<String>();
-		File f = new File(acceptedIDsFile);
-		try (BufferedReader br = new BufferedReader(new FileReader(f))) {
-			String line;
-			while ((line = br.readLine()) != null) {
-				result.add(line);
-			}
-		} catch (Exception e) {
-			e.printStackTrace();
+	private static CsvRowFilter.IdExtractor toIdExtractor(String name) {
+		switch (name) {
+		case "cell": return CsvRowFilter.IdExtractor.Cell;
+		case "name": return CsvRowFilter.IdExtractor.KeyName;
+		case "prefix": return CsvRowFilter.IdExtractor.KeyNamePrefix;
+		default: throw new IllegalArgumentException("Unknown ID extractor: " + name);
 		}
-		return result;
-	}
-
-	// Get actual ID from a String formatted as tableName("ID")
-	private static String getCurrentId(String string) {
-		int start = string.indexOf("(\"") + 2;
-		int stop = string.indexOf("\")");
-		return string.substring(start, stop);
 	}
 
-	private static String getCurrentIdInstance(String string) {
-		int start = string.indexOf("(\"") + 2;
-		int stop = string.indexOf("_");
-		return string.substring(start, stop);
+	private static List<String> readIds(Path file) throws IOException {
+		return Files.readAllLines(file, Charset.defaultCharset());
 	}
 
 }
@@ -0,0 +1,108 @@
+package net.styleguise.tools;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+
+/**
+ * Cuts a stream of comma separated values into blocks of complete rows so that the blocks can be
+ * parsed independently (and concurrently) by {@link CsvParser}s.
+ *
+ * Finding the end of a row only requires tracking whether the scan is inside a quoted value: every
+ * double quote toggles that state (an escaped "" toggles it twice) and a line break only ends a row
+ * outside of quotes. The state carries over from one block to the next.
+ */
+public class CsvBlockReader implements Closeable {
+
+	public static final int DefaultBlockSize = 1024 * 1024;
+
+	private final Reader reader;
+	private char[] buffer;
+	private int limit;
+	private int scanned;
+	private int boundary;
+	private boolean inQuotedString;
+	private boolean eof;
+
+	public CsvBlockReader(Reader reader) {
+		this(reader, DefaultBlockSize);
+	}
+
+	/**
+	 * @param blockSize the targeted number of characters per block; a row longer than this
+	 * still ends up in a single (larger) block
+	 */
+	public CsvBlockReader(Reader reader, int blockSize) {
+		this.reader = reader;
+		this.buffer = new char[blockSize];
+	}
+
+	/**
+	 * Reads the next block of complete rows.
+	 * @return the characters of the block, or null at the end of the stream
+	 */
+	public char[] nextBlock() throws IOException {
+		while (true) {
+			int boundary = scan();
+			if (boundary > 0 && (limit == buffer.length || eof))
+				return take(boundary);
+			if (eof)
+				return limit > 0 ? take(limit) : null;
+			if (limit == buffer.length) //a single row fills the buffer
+				buffer = Arrays.copyOf(buffer, buffer.length * 2);
+
+			int read = reader.read(buffer, limit, buffer.length - limit);
+			if (read < 0)
+				eof = true;
+			else
+				limit += read;
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		reader.close();
+	}
+
+	/**
+	 * Scans the characters read since the last scan.
+	 * @return the position after the last row break in the buffer, or 0 if there is none yet
+	 */
+	private int scan() {
+		for (; scanned < limit; scanned++) {
+			char c = buffer[scanned];
+			if (c == DatastoreExporter.DoubleQuoteChar)
+				inQuotedString = !inQuotedString;
+			else if (inQuotedString)
+				continue;
+			else if (c == '\n')
+				boundary = scanned + 1;
+			else if (c == '\r') {
+				// \r\n must not be torn apart, so a trailing \r waits for the next character
+				if (scanned + 1 < limit) {
+					if (buffer[scanned + 1] != '\n')
+						boundary = scanned + 1;
+				}
+				else if (eof)
+					boundary = scanned + 1;
+				else
+					break;
+			}
+		}
+		return boundary;
+	}
+
+	/**
+	 * Removes the first characters of the buffer and returns them as a block.
+	 */
+	private char[] take(int length) {
+		char[] block = Arrays.copyOf(buffer, length);
+		System.arraycopy(buffer, length, buffer, 0, limit - length);
+		limit -= length;
+		scanned -= length;
+		boundary = 0;
+		return block;
+	}
+
+}
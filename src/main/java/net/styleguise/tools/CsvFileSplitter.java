@@ -0,0 +1,205 @@
+package net.styleguise.tools;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Splits a CSV file into byte ranges of complete rows so that one large file can be parsed by
+ * several threads at once, each {@link CsvParser} decoding its range straight from a memory
+ * mapping of the file.
+ *
+ * Whether a line break ends a row depends on whether it is inside a quoted value, i.e. on the
+ * number of double quotes before it. The file is cut into ranges of about the requested size and
+ * the double quotes of every range are counted concurrently; the parity of the counts before a
+ * cut tells whether the cut falls inside a quoted value. Each cut is then moved forward to the
+ * start of the next row.
+ *
+ * This only works for charsets in which double quotes and line breaks are single bytes which
+ * never occur within the encoding of another character (see {@link #isSupported(Charset)}).
+ */
+public class CsvFileSplitter implements Closeable {
+
+	public static final int DefaultRangeSize = 32 * 1024 * 1024;
+	private static final int ScanBufferSize = 8 * 1024;
+	private static final byte Quote = '"';
+	private static final byte CarriageReturn = '\r';
+	private static final byte LineFeed = '\n';
+
+	private final Path file;
+	private final Charset charset;
+	private final FileChannel channel;
+	private final long size;
+	private final long headerEnd;
+
+	public CsvFileSplitter(Path file, Charset charset) throws IOException {
+		if (!isSupported(charset))
+			throw new IllegalArgumentException("Cannot split files in " + charset);
+		this.file = file;
+		this.charset = charset;
+		this.channel = FileChannel.open(file, StandardOpenOption.READ);
+		try {
+			this.size = channel.size();
+			this.headerEnd = nextRowEnd(0, false);
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * @return whether the charset encodes double quotes and line breaks as in ASCII and never
+	 * uses those bytes within the encoding of other characters (true for UTF-8, the ISO-8859 and
+	 * Windows code pages, but not for UTF-16)
+	 */
+	public static boolean isSupported(Charset charset) {
+		return Arrays.equals("\"\r\n,".getBytes(charset), new byte[] { Quote, CarriageReturn, LineFeed, ',' })
+				&& !charset.name().startsWith("UTF-16") && !charset.name().startsWith("UTF-32");
+	}
+
+	/**
+	 * A parser for the header row.
+	 */
+	public CsvParser newHeaderParser() throws IOException {
+		return newParser(0, headerEnd);
+	}
+
+	/**
+	 * Computes the ranges of rows after the header, counting the double quotes of the ranges
+	 * on the given executor.
+	 * @param rangeSize the targeted number of bytes per range, at most 1 GB
+	 * @return the offsets at which the ranges start, followed by the length of the file
+	 */
+	public long[] split(ExecutorService executor, int rangeSize) throws IOException, InterruptedException {
+		if (rangeSize < 1 || rangeSize > 1 << 30)
+			throw new IllegalArgumentException("Invalid range size: " + rangeSize);
+
+		int ranges = (int) Math.max(1, (size - headerEnd + rangeSize - 1) / rangeSize);
+		final long[] cuts = new long[ranges + 1];
+		for (int i = 0; i < ranges; i++)
+			cuts[i] = headerEnd + (long) i * rangeSize;
+		cuts[ranges] = size;
+
+		ArrayList<Future<Boolean>> parities = new ArrayList<>(ranges);
+		for (int i = 0; i < ranges - 1; i++) {
+			final int range = i;
+			parities.add(executor.submit(new Callable<Boolean>() {
+				@Override
+				public Boolean call() throws IOException {
+					return hasOddQuotes(cuts[range], cuts[range + 1]);
+				}
+			}));
+		}
+
+		long[] starts = new long[ranges + 1];
+		starts[0] = headerEnd;
+		boolean inQuotedString = false;
+		int count = 1;
+		try {
+			for (int i = 1; i < ranges; i++) {
+				inQuotedString ^= parities.get(i - 1).get();
+				long start = nextRowStart(cuts[i], inQuotedString);
+				if (start > starts[count - 1] && start < size)
+					starts[count++] = start;
+			}
+		} catch (ExecutionException e) {
+			throw new IOException("Failed to split " + file, e.getCause());
+		} finally {
+			for (Future<Boolean> parity : parities)
+				parity.cancel(true);
+		}
+		starts[count++] = size;
+		return Arrays.copyOf(starts, count);
+	}
+
+	/**
+	 * A parser for the rows in the given range of bytes. The parser reads straight from a
+	 * mapping of the file, which stays valid after this splitter is closed.
+	 */
+	public CsvParser newParser(long start, long end) throws IOException {
+		MappedByteBuffer bytes = channel.map(MapMode.READ_ONLY, start, end - start);
+		int bufferSize = (int) Math.min(CsvParser.DefaultBufferSize, Math.max(1, end - start));
+		return new CsvParser(new ByteBufferReader(bytes, charset), bufferSize);
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	private boolean hasOddQuotes(long start, long end) throws IOException {
+		MappedByteBuffer bytes = channel.map(MapMode.READ_ONLY, start, end - start);
+		boolean odd = false;
+		for (int i = 0, length = bytes.limit(); i < length; i++)
+			if (bytes.get(i) == Quote)
+				odd = !odd;
+		return odd;
+	}
+
+	/**
+	 * Finds the first row which starts at or after the position.
+	 * @param inQuotedString whether the position is inside a quoted value
+	 * @return the offset of the row, or the length of the file if there is none
+	 */
+	private long nextRowStart(long position, boolean inQuotedString) throws IOException {
+		// the position starts a row if it follows a line break (but does not split \r\n)
+		ByteBuffer previous = read(position - 1, 2);
+		byte before = previous.get(0);
+		if (!inQuotedString && (before == LineFeed
+				|| before == CarriageReturn && (previous.limit() < 2 || previous.get(1) != LineFeed)))
+			return position;
+		return nextRowEnd(position, inQuotedString);
+	}
+
+	/**
+	 * @return the offset after the line break which ends the row the position is in
+	 */
+	private long nextRowEnd(long position, boolean inQuotedString) throws IOException {
+		while (position < size) {
+			ByteBuffer bytes = read(position, ScanBufferSize + 1);
+			int length = bytes.limit();
+			for (int i = 0; i < length; i++) {
+				byte b = bytes.get(i);
+				if (b == Quote)
+					inQuotedString = !inQuotedString;
+				else if (inQuotedString)
+					continue;
+				else if (b == LineFeed)
+					return position + i + 1;
+				else if (b == CarriageReturn) {
+					if (i + 1 < length)
+						return position + i + (bytes.get(i + 1) == LineFeed ? 2 : 1);
+					if (position + i + 1 == size)
+						return size;
+					// look at the next byte in the next read
+					length = i;
+					break;
+				}
+			}
+			position += length;
+		}
+		return size;
+	}
+
+	private ByteBuffer read(long position, int length) throws IOException {
+		ByteBuffer bytes = ByteBuffer.allocate((int) Math.min(length, size - position));
+		while (bytes.hasRemaining())
+			if (channel.read(bytes, position + bytes.position()) < 0)
+				break;
+		bytes.flip();
+		return bytes;
+	}
+
+}
@@ -0,0 +1,280 @@
+package net.styleguise.tools;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+
+/**
+ * Parses comma separated values from a stream one row at a time. Tries to follow most of the rules
+ * here: http://en.wikipedia.org/wiki/Comma-separated_values including quoted values with embedded
+ * carriage returns/new lines.
+ *
+ * The characters are read into a large buffer which is reused for every row; a row only causes
+ * the buffer to grow if it does not fit. The tokens of the current row are views (offset and
+ * length) into the buffer. Escaped double quotes are collapsed in place, so a token is always a
+ * contiguous range of the buffer and numeric tokens can be parsed without creating a String. The
+ * token slots are reused as well, so parsing a row does not allocate.
+ *
+ * The views are only valid until the next call to {@link #next()}.
+ */
+public class CsvParser implements Closeable {
+
+	public static final int DefaultBufferSize = 64 * 1024;
+	private static final int InitialTokenSlots = 32;
+
+	private final Reader reader;
+	private char[] buffer;
+	private int position;
+	private int limit;
+	private boolean eof;
+	private boolean skipLineFeed;
+
+	private int[] tokenOffsets = new int[InitialTokenSlots];
+	private int[] tokenLengths = new int[InitialTokenSlots];
+	private int tokenCount;
+	private long rowNumber;
+
+	public CsvParser(Reader reader) {
+		this(reader, DefaultBufferSize);
+	}
+
+	public CsvParser(Reader reader, int bufferSize) {
+		this.reader = reader;
+		this.buffer = new char[bufferSize];
+	}
+
+	/**
+	 * Parses the next row.
+	 * @return false if there are no more rows
+	 */
+	public boolean next() throws IOException {
+		tokenCount = 0;
+		if (skipLineFeed) {
+			if (position == limit)
+				fill(position);
+			if (position < limit && buffer[position] == '\n')
+				position++;
+			skipLineFeed = false;
+		}
+		if (position == limit) {
+			fill(position);
+			if (position == limit)
+				return false;
+		}
+
+		int rowStart = position;
+		int tokenStart = position;
+		int write = position;
+		boolean inQuotedString = false;
+		while (true) {
+			if (position == limit) {
+				int shift = fill(rowStart);
+				rowStart -= shift;
+				tokenStart -= shift;
+				write -= shift;
+				if (position == limit) //end of stream ends the row
+					break;
+			}
+
+			char c = buffer[position++];
+			if (inQuotedString) {
+				if (c == DatastoreExporter.DoubleQuoteChar) {
+					if (position == limit) {
+						int shift = fill(rowStart);
+						rowStart -= shift;
+						tokenStart -= shift;
+						write -= shift;
+					}
+					if (position < limit && buffer[position] == DatastoreExporter.DoubleQuoteChar) { //escaped double-quote
+						buffer[write++] = c;
+						position++; //"consume" the next double-quote
+					}
+					else { //end of quoted string
+						inQuotedString = false;
+					}
+				}
+				else {
+					buffer[write++] = c;
+				}
+			}
+			else if (c == DatastoreExporter.DoubleQuoteChar) {
+				inQuotedString = true;
+			}
+			else if (c == DatastoreExporter.FieldSeparatorChar) {
+				addToken(tokenStart, write - tokenStart);
+				tokenStart = position;
+				write = position;
+			}
+			else if (c == '\n') {
+				break;
+			}
+			else if (c == '\r') {
+				skipLineFeed = true;
+				break;
+			}
+			else {
+				buffer[write++] = c;
+			}
+		}
+		addToken(tokenStart, write - tokenStart);
+		rowNumber++;
+		return true;
+	}
+
+	/**
+	 * The number of tokens in the current row.
+	 */
+	public int getTokenCount() {
+		return tokenCount;
+	}
+
+	/**
+	 * The number of the current row, starting at 1.
+	 */
+	public long getRowNumber() {
+		return rowNumber;
+	}
+
+	/**
+	 * The buffer that the token views point into.
+	 */
+	public char[] getBuffer() {
+		return buffer;
+	}
+
+	public int getOffset(int token) {
+		checkToken(token);
+		return tokenOffsets[token];
+	}
+
+	public int getLength(int token) {
+		checkToken(token);
+		return tokenLengths[token];
+	}
+
+	public String getString(int token) {
+		checkToken(token);
+		return new String(buffer, tokenOffsets[token], tokenLengths[token]);
+	}
+
+	/**
+	 * @return whether the token consists of exactly the given characters
+	 */
+	public boolean tokenEquals(int token, String value) {
+		checkToken(token);
+		int length = tokenLengths[token];
+		if (length != value.length())
+			return false;
+		int offset = tokenOffsets[token];
+		for (int i = 0; i < length; i++)
+			if (buffer[offset + i] != value.charAt(i))
+				return false;
+		return true;
+	}
+
+	/**
+	 * @return whether the token is the NULL marker written by the DatastoreExporter
+	 */
+	public boolean isNull(int token) {
+		return tokenEquals(token, DatastoreExporter.Null);
+	}
+
+	/**
+	 * Parses the token as a decimal long without creating a String.
+	 * @throws NumberFormatException if the token is not a valid long
+	 */
+	public long getLong(int token) {
+		checkToken(token);
+		int offset = tokenOffsets[token];
+		int end = offset + tokenLengths[token];
+		if (offset == end)
+			throw numberFormatException(token);
+
+		boolean negative = false;
+		int i = offset;
+		char first = buffer[i];
+		if (first == '-' || first == '+') {
+			negative = first == '-';
+			if (++i == end)
+				throw numberFormatException(token);
+		}
+
+		// accumulate negatively so that Long.MIN_VALUE can be represented
+		long min = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+		long multiplicationLimit = min / 10;
+		long result = 0;
+		for (; i < end; i++) {
+			int digit = buffer[i] - '0';
+			if (digit < 0 || digit > 9 || result < multiplicationLimit)
+				throw numberFormatException(token);
+			result *= 10;
+			if (result < min + digit)
+				throw numberFormatException(token);
+			result -= digit;
+		}
+		return negative ? result : -result;
+	}
+
+	/**
+	 * Parses the token as a decimal int without creating a String.
+	 * @throws NumberFormatException if the token is not a valid int
+	 */
+	public int getInt(int token) {
+		long value = getLong(token);
+		if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE)
+			throw numberFormatException(token);
+		return (int) value;
+	}
+
+	@Override
+	public void close() throws IOException {
+		reader.close();
+	}
+
+	/**
+	 * Moves the characters from the given start of the current row to the beginning of the
+	 * buffer (growing the buffer if the row fills it) and reads more characters after them.
+	 * @return the distance by which the characters were moved
+	 */
+	private int fill(int start) throws IOException {
+		if (eof)
+			return 0;
+		int shift = start;
+		for (int i = 0; i < tokenCount; i++)
+			tokenOffsets[i] -= shift;
+		System.arraycopy(buffer, start, buffer, 0, limit - start);
+		limit -= shift;
+		position -= shift;
+		if (limit == buffer.length)
+			buffer = Arrays.copyOf(buffer, buffer.length * 2);
+
+		int read = reader.read(buffer, limit, buffer.length - limit);
+		if (read < 0)
+			eof = true;
+		else
+			limit += read;
+		return shift;
+	}
+
+	private void addToken(int offset, int length) {
+		if (tokenCount == tokenOffsets.length) {
+			tokenOffsets = Arrays.copyOf(tokenOffsets, tokenCount * 2);
+			tokenLengths = Arrays.copyOf(tokenLengths, tokenCount * 2);
+		}
+		tokenOffsets[tokenCount] = offset;
+		tokenLengths[tokenCount] = length;
+		tokenCount++;
+	}
+
+	private void checkToken(int token) {
+		if (token < 0 || token >= tokenCount)
+			throw new IndexOutOfBoundsException("Row " + rowNumber + " has no token " + token
+					+ " (it has " + tokenCount + ")");
+	}
+
+	private NumberFormatException numberFormatException(int token) {
+		return new NumberFormatException("For input string: \"" + getString(token) + "\"");
+	}
+
+}
@@ -0,0 +1,321 @@
+package net.styleguise.tools;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+
+/**
+ * Filters and projects the rows of a CSV file (as written by the DatastoreExporter) in a single
+ * pass. The first row is the header; the rules and the projected columns refer to its column
+ * names. A row is written if every rule accepts it:
+ * <ul>
+ * <li>an ID rule accepts a row if the ID extracted from a column is in a set of IDs, and</li>
+ * <li>an after rule accepts a row if a column holds a number (e.g. a date in milliseconds) greater
+ * than a threshold.</li>
+ * </ul>
+ *
+ * The rows are read with a {@link CsvParser} and the accepted cells are copied from its buffer to
+ * the output, quoted again where needed, so filtering does not allocate per row and uses the same
+ * memory whatever the size of the file. The IDs are kept in an open addressing hash set which is
+ * probed with the characters of the cell.
+ *
+ * A filter can be reused, but not by several threads at once.
+ */
+public class CsvRowFilter {
+
+	/**
+	 * How the ID is extracted from a cell.
+	 */
+	public enum IdExtractor {
+		/** The whole cell. */
+		Cell,
+		/** The name of the last element of a key written as Kind("name"). */
+		KeyName,
+		/** The part of the key name before the first underscore. */
+		KeyNamePrefix
+	}
+
+	private static final int BufferSize = 64 * 1024;
+
+	private final ArrayList<Rule> rules = new ArrayList<>();
+	private String[] columns;
+	private long rowsRead;
+	private long rowsWritten;
+
+	/**
+	 * Only keeps the rows whose column holds one of the given IDs.
+	 */
+	public void addIdFilter(String column, IdExtractor extractor, Collection<String> ids) {
+		rules.add(new IdRule(column, extractor, new IdSet(ids)));
+	}
+
+	/**
+	 * Only keeps the rows whose column holds a number greater than the given one, e.g. the dates
+	 * (which are written in milliseconds) after a moment. Rows with a NULL or another value which
+	 * is not a number are dropped.
+	 */
+	public void addAfterFilter(String column, long threshold) {
+		rules.add(new AfterRule(column, threshold));
+	}
+
+	/**
+	 * Only writes the given columns, in the given order. All columns are written by default.
+	 */
+	public void setColumns(String... columns) {
+		this.columns = columns.length == 0 ? null : columns.clone();
+	}
+
+	/**
+	 * The number of rows (excluding the header) read by the last run.
+	 */
+	public long getRowsRead() {
+		return rowsRead;
+	}
+
+	/**
+	 * The number of rows (excluding the header) written by the last run.
+	 */
+	public long getRowsWritten() {
+		return rowsWritten;
+	}
+
+	/**
+	 * Filters the source file into the target file, both in the platform's default charset.
+	 */
+	public void filter(Path source, Path target) throws IOException {
+		try (Reader in = new InputStreamReader(Files.newInputStream(source), Charset.defaultCharset());
+				Writer out = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(target), Charset.defaultCharset()), BufferSize)) {
+			filter(in, out);
+		}
+	}
+
+	/**
+	 * Filters the rows read from the reader to the writer. Neither is closed.
+	 */
+	public void filter(Reader source, Writer target) throws IOException {
+		rowsRead = 0;
+		rowsWritten = 0;
+		CsvParser row = new CsvParser(source, BufferSize);
+		if (!row.next())
+			return;
+
+		String[] header = new String[row.getTokenCount()];
+		for (int i = 0; i < header.length; i++)
+			header[i] = row.getString(i);
+		int[] projection;
+		if (columns == null) {
+			projection = new int[header.length];
+			for (int i = 0; i < projection.length; i++)
+				projection[i] = i;
+		}
+		else {
+			projection = new int[columns.length];
+			for (int i = 0; i < projection.length; i++)
+				projection[i] = indexOf(header, columns[i]);
+		}
+		int width = 0;
+		for (int token : projection)
+			width = Math.max(width, token + 1);
+		for (Rule rule : rules) {
+			rule.token = indexOf(header, rule.column);
+			width = Math.max(width, rule.token + 1);
+		}
+
+		write(target, row, projection);
+		while (row.next()) {
+			rowsRead++;
+			if (row.getTokenCount() < width || !accept(row))
+				continue;
+			write(target, row, projection);
+			rowsWritten++;
+		}
+	}
+
+	private boolean accept(CsvParser row) {
+		for (Rule rule : rules)
+			if (!rule.accept(row))
+				return false;
+		return true;
+	}
+
+	private static int indexOf(String[] header, String column) {
+		for (int i = 0; i < header.length; i++)
+			if (header[i].equals(column))
+				return i;
+		throw new IllegalArgumentException("Column " + column + " is not in the header");
+	}
+
+	private static void write(Writer out, CsvParser row, int[] projection) throws IOException {
+		char[] buffer = row.getBuffer();
+		for (int i = 0; i < projection.length; i++) {
+			if (i > 0)
+				out.write(DatastoreExporter.FieldSeparatorChar);
+			writeCell(out, buffer, row.getOffset(projection[i]), row.getLength(projection[i]));
+		}
+		out.write(DatastoreExporter.Newline);
+	}
+
+	/**
+	 * Writes the cell, quoted if it contains a character that needs quoting. The parser has
+	 * already removed the quotes of a quoted cell and collapsed its escaped double quotes.
+	 */
+	private static void writeCell(Writer out, char[] buffer, int offset, int length) throws IOException {
+		int end = offset + length;
+		boolean quote = false;
+		for (int i = offset; i < end && !quote; i++) {
+			char c = buffer[i];
+			quote = c == DatastoreExporter.FieldSeparatorChar || c == DatastoreExporter.DoubleQuoteChar || c == '\n' || c == '\r';
+		}
+		if (!quote) {
+			out.write(buffer, offset, length);
+			return;
+		}
+
+		out.write(DatastoreExporter.DoubleQuoteChar);
+		int start = offset;
+		for (int i = offset; i < end; i++) {
+			if (buffer[i] == DatastoreExporter.DoubleQuoteChar) {
+				// write up to and including the double quote, which is then written again
+				out.write(buffer, start, i + 1 - start);
+				start = i;
+			}
+		}
+		out.write(buffer, start, end - start);
+		out.write(DatastoreExporter.DoubleQuoteChar);
+	}
+
+	private abstract static class Rule {
+
+		final String column;
+		int token;
+
+		Rule(String column) {
+			this.column = column;
+		}
+
+		abstract boolean accept(CsvParser row);
+	}
+
+	private static class IdRule extends Rule {
+
+		private final IdExtractor extractor;
+		private final IdSet ids;
+
+		IdRule(String column, IdExtractor extractor, IdSet ids) {
+			super(column);
+			this.extractor = extractor;
+			this.ids = ids;
+		}
+
+		@Override
+		boolean accept(CsvParser row) {
+			char[] buffer = row.getBuffer();
+			int start = row.getOffset(token);
+			int end = start + row.getLength(token);
+			if (extractor != IdExtractor.Cell) {
+				// Kind("name") or Parent(1)/Kind("name"): the name of the last element
+				int close = lastIndexOf(buffer, start, end, '"', ')');
+				if (close < 0)
+					return false;
+				int open = lastIndexOf(buffer, start, close, '(', '"');
+				if (open < 0)
+					return false;
+				start = open + 2;
+				end = close;
+				if (extractor == IdExtractor.KeyNamePrefix) {
+					for (int i = start; i < end; i++) {
+						if (buffer[i] == '_') {
+							end = i;
+							break;
+						}
+					}
+				}
+			}
+			return ids.contains(buffer, start, end - start);
+		}
+
+		/**
+		 * @return the index of the last occurrence of the two characters in the range, or -1
+		 */
+		private static int lastIndexOf(char[] buffer, int start, int end, char first, char second) {
+			for (int i = end - 2; i >= start; i--)
+				if (buffer[i] == first && buffer[i + 1] == second)
+					return i;
+			return -1;
+		}
+	}
+
+	private static class AfterRule extends Rule {
+
+		private final long threshold;
+
+		AfterRule(String column, long threshold) {
+			super(column);
+			this.threshold = threshold;
+		}
+
+		@Override
+		boolean accept(CsvParser row) {
+			try {
+				return row.getLong(token) > threshold;
+			}
+			catch (NumberFormatException e) {
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * A set of strings which can be probed with a range of characters, so the cells need not be
+	 * turned into strings. The hash of a range is the same as that of the equal String.
+	 */
+	private static final class IdSet {
+
+		private final String[] slots;
+		private final int mask;
+
+		IdSet(Collection<String> ids) {
+			int capacity = Integer.highestOneBit(Math.max(2, ids.size() * 2) - 1) << 1;
+			slots = new String[capacity];
+			mask = capacity - 1;
+			for (String id : ids) {
+				int slot = spread(id.hashCode()) & mask;
+				while (slots[slot] != null && !slots[slot].equals(id))
+					slot = (slot + 1) & mask;
+				slots[slot] = id;
+			}
+		}
+
+		boolean contains(char[] buffer, int offset, int length) {
+			int hash = 0;
+			for (int i = offset; i < offset + length; i++)
+				hash = 31 * hash + buffer[i];
+			for (int slot = spread(hash) & mask; slots[slot] != null; slot = (slot + 1) & mask)
+				if (equals(slots[slot], buffer, offset, length))
+					return true;
+			return false;
+		}
+
+		private static boolean equals(String id, char[] buffer, int offset, int length) {
+			if (id.length() != length)
+				return false;
+			for (int i = 0; i < length; i++)
+				if (id.charAt(i) != buffer[offset + i])
+					return false;
+			return true;
+		}
+
+		private static int spread(int hash) {
+			return hash ^ (hash >>> 16);
+		}
+	}
+
+}
@@ -0,0 +1,197 @@
+package net.styleguise.tools;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Iterator;
+
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.Text;
+
+/**
+ * Converts property values into the cells of the CSV files written by the DatastoreExporter. The
+ * following Java types are handled specially:
+ * <ul>
+ * <li>Java <code>null</code> is converted to the string "NULL"</li>
+ * <li>java.util.Date is converted to millisecond representation</li>
+ * <li>java.util.Collection (only java.util.Set and java.util.List are
+ * supported) are converted into a semi-colon separated string</li>
+ * <li>java.lang.Enum values are converted to a string by calling
+ * Enum.name()</li>
+ * <li>com.google.appengine.api.datastore.Key is converted to a string by
+ * calling Key.toString() and escaped</li>
+ * <li>com.google.appengine.api.datastore.Text is escaped and written as a
+ * string</li>
+ * <li>any other type is converted to a string by calling Object.toString()
+ * and escaped</li>
+ * </ul>
+ *
+ * Strings are escaped in a single pass over their characters:
+ * <ul>
+ * <li>" is converted into ""</li>
+ * <li>\n is converted into __N__ and \r into __R__ so every row stays on one line</li>
+ * <li>an underscore followed by another one is converted into __U__, so a value never contains
+ * the markers above unless they stand for an escaped character</li>
+ * <li>; is converted into __S__ within the elements of a collection, so it is not taken for the
+ * separator of the elements</li>
+ * <li>a cell that contains a comma or a double quote is wrapped in double quotes</li>
+ * </ul>
+ * A cell is built in a buffer that is reused for every value, so encoding does not allocate once
+ * the buffer has grown to the size of the largest cell. The first slot of the buffer is reserved
+ * for the opening quote, which is only known to be needed once the whole cell has been scanned.
+ *
+ * Strings, texts and keys (and collections of them) are read back losslessly by the importer,
+ * which splits the cells with a {@link CsvParser} and undoes the escapes left to right. Only the
+ * string "NULL" cannot be told apart from a null value. An encoder is not thread safe; use one per
+ * thread.
+ */
+public class CsvValueEncoder {
+
+	private static final int InitialCapacity = 256;
+	private static final int EscapeLength = DatastoreExporter.EscapedNewline.length();
+
+	private char[] buffer = new char[InitialCapacity];
+	private int pos;
+	private boolean quote;
+
+	/**
+	 * Converts the property value into a cell and writes it to the writer.
+	 */
+	public void writeValue(Writer writer, Object value) throws IOException {
+
+		if (value == null)
+			writer.write(DatastoreExporter.Null);
+
+		else if (value instanceof Date)
+			writer.write(Long.toString(((Date) value).getTime()));
+
+		else if (value instanceof Enum)
+			writer.write(((Enum<?>) value).name());
+
+		else {
+			startCell();
+			if (value instanceof Collection)
+				appendCollection((Collection<?>) value);
+			else
+				appendValue(value, false);
+			endCell(writer);
+		}
+	}
+
+	/**
+	 * Escapes the string and writes it to the writer.
+	 */
+	public void write(Writer writer, String value) throws IOException {
+		startCell();
+		append(value, false);
+		endCell(writer);
+	}
+
+	private void startCell() {
+		pos = 1;
+		quote = false;
+	}
+
+	private void endCell(Writer writer) throws IOException {
+		if (quote) {
+			buffer[0] = DatastoreExporter.DoubleQuoteChar;
+			buffer[pos++] = DatastoreExporter.DoubleQuoteChar;
+			writer.write(buffer, 0, pos);
+		}
+		else {
+			writer.write(buffer, 1, pos - 1);
+		}
+	}
+
+	private void appendCollection(Collection<?> collection) {
+		Iterator<?> i = collection.iterator();
+		while (i.hasNext()) {
+			appendValue(i.next(), true);
+			if (i.hasNext()) {
+				ensureCapacity(pos + 2);
+				buffer[pos++] = DatastoreExporter.CollectionValueSeparatorChar;
+			}
+		}
+	}
+
+	private void appendValue(Object value, boolean element) {
+		if (value == null)
+			append(DatastoreExporter.Null, false);
+		else if (value instanceof Date)
+			append(Long.toString(((Date) value).getTime()), false);
+		else if (value instanceof Enum)
+			append(((Enum<?>) value).name(), element);
+		else if (value instanceof Text)
+			append(((Text) value).getValue(), element);
+		else
+			append(value.toString(), element);
+	}
+
+	/**
+	 * Escapes the string into the buffer, leaving room for the closing quote.
+	 */
+	private void append(String value, boolean element) {
+		int length = value.length();
+		char[] buf = ensureCapacity(pos + length + 1);
+		for (int i = 0; i < length; i++) {
+			char c = value.charAt(i);
+			// besides the underscore and the semicolon, every character that needs escaping sorts at or before the comma
+			if (c > DatastoreExporter.FieldSeparatorChar && c != '_' && c != DatastoreExporter.CollectionValueSeparatorChar) {
+				buf[pos++] = c;
+				continue;
+			}
+			String escape = null;
+			switch (c) {
+			case DatastoreExporter.DoubleQuoteChar:
+				buf = ensureCapacity(pos + 2 + length - i);
+				buf[pos++] = c;
+				buf[pos++] = c;
+				quote = true;
+				break;
+			case DatastoreExporter.FieldSeparatorChar:
+				buf[pos++] = c;
+				quote = true;
+				break;
+			case '\n':
+				escape = DatastoreExporter.EscapedNewline;
+				break;
+			case '\r':
+				escape = DatastoreExporter.EscapedCarriageReturn;
+				break;
+			case '_':
+				if (i + 1 < length && value.charAt(i + 1) == '_')
+					escape = DatastoreExporter.EscapedUnderscore;
+				else
+					buf[pos++] = c;
+				break;
+			case DatastoreExporter.CollectionValueSeparatorChar:
+				if (element)
+					escape = DatastoreExporter.EscapedCollectionValueSeparator;
+				else
+					buf[pos++] = c;
+				break;
+			default:
+				buf[pos++] = c;
+			}
+			if (escape != null) {
+				buf = ensureCapacity(pos + EscapeLength + length - i);
+				escape.getChars(0, EscapeLength, buf, pos);
+				pos += EscapeLength;
+			}
+		}
+	}
+
+	/**
+	 * Grows the buffer to at least the given capacity, keeping its used characters.
+	 */
+	private char[] ensureCapacity(int capacity) {
+		if (buffer.length < capacity) {
+			char[] grown = new char[Math.max(capacity, buffer.length * 2)];
+			System.arraycopy(buffer, 0, grown, 0, pos);
+			buffer = grown;
+		}
+		return buffer;
+	}
+
+}
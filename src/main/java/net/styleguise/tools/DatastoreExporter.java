@@ -1,18 +1,26 @@
 package net.styleguise.tools;
 
-import java.io.BufferedWriter;
 import java.io.Console;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import com.google.appengine.api.datastore.Cursor;
 import com.google.appengine.api.datastore.DatastoreService;
@@ -20,15 +28,20 @@ import com.google.appengine.api.datastore.DatastoreServiceFactory;
 import com.google.appengine.api.datastore.Entities;
 import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.FetchOptions;
-import com.google.appengine.api.datastore.QueryResultList;
 
 import static com.google.appengine.api.datastore.FetchOptions.Builder.*;
 
 import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.KeyFactory;
 import com.google.appengine.api.datastore.PreparedQuery;
+import com.google.appengine.api.datastore.PropertyProjection;
 import com.google.appengine.api.datastore.Query;
-import com.google.appengine.api.datastore.Text;
+import com.google.appengine.api.datastore.Query.CompositeFilterOperator;
+import com.google.appengine.api.datastore.Query.Filter;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
+
+import net.styleguise.tools.ExportManifest.PartCheckpoint;
 
 /**
  * Reads data from a Google App Engine datastore and writes it to comma
@@ -36,6 +49,9 @@ import com.google.appengine.api.datastore.Text;
  * all written to a temporary directory. The directory and file names are
  * printed to standard out as they are written.
  *
+ * The progress of the export is checkpointed in a manifest within the directory
+ * so that an export which died can be resumed (see {@link #resume(Path)}).
+ *
  * Certain datastore kinds that represent metadata (like __Stat_Total__ and
  * _ah_SESSION) are not exported.
  *
@@ -58,6 +74,8 @@ public class DatastoreExporter extends RemoteDatastoreClient {
 	public static final String EscapedCarriageReturn = "__R__";
 	public static final String Newline = "\n";
 	public static final String EscapedNewline = "__N__";
+	public static final String EscapedUnderscore = "__U__";
+	public static final String EscapedCollectionValueSeparator = "__S__";
 	public static final String Null = "NULL";
 	public static final String Dash = "-";
 	private static final String FileExtension = ".csv";
@@ -69,6 +87,8 @@ public class DatastoreExporter extends RemoteDatastoreClient {
 	private static final String StatKindIsRootEntity = "__Stat_Kind_IsRootEntity__";
 	private static final String StatKindNotRootEntity = "__Stat_Kind_NotRootEntity__";
 	private static final String StatKind = "__Stat_Kind__";
+	private static final String StatKindName = "kind_name";
+	private static final String StatCount = "count";
 	private static final String StatPropertyNameKind = "__Stat_PropertyName_Kind__";
 	private static final String StatPropertyTypeKind = "__Stat_PropertyType_Kind__";
 	private static final String StatPropertyTypePropertyNameKind = "__Stat_PropertyType_PropertyName_Kind__";
@@ -77,6 +97,15 @@ public class DatastoreExporter extends RemoteDatastoreClient {
 	private static final String BlobFileIndex = "__BlobFileIndex__";
 	private static final String BlobInfo = "__BlobInfo__";
 	private static final String StatNamespace = "__Stat_Namespace__";
+	private static final int DefaultExportThreads = 4;
+	private static final int ScatterOversampling = 32;
+	private static final int DefaultMinFetchLimit = 20;
+	private static final long DefaultWatermarkLag = 60 * 1000;
+	private static final int InitialFetchLimit = 100;
+	private static final int KeyBatchSize = 500;
+	private static final String MissingKeysSuffix = "-missing.txt";
+	private static final List<Class<?>> ProjectedTypes = Arrays.<Class<?>>asList(
+			Long.class, Double.class, Boolean.class, String.class, Date.class, Key.class);
 
 	// ------------------------------------------------------------------------------------------------------
 	// Main method
@@ -106,6 +135,22 @@ public class DatastoreExporter extends RemoteDatastoreClient {
 		}
 	}
 
+	// ------------------------------------------------------------------------------------------------------
+	// Member variables
+	// ------------------------------------------------------------------------------------------------------
+
+	private int exportThreads = DefaultExportThreads;
+	private final Map<String, Integer> shardCounts = Collections.synchronizedMap(new HashMap<String, Integer>());
+	private final Map<String, String> timestampProperties = Collections.synchronizedMap(new HashMap<String, String>());
+	private final Map<String, List<String>> selectedColumns = Collections.synchronizedMap(new HashMap<String, List<String>>());
+	private final Set<String> unprojectedKinds = Collections.synchronizedSet(new HashSet<String>());
+	private Path watermarkFile;
+	private long watermarkLag = DefaultWatermarkLag;
+	private boolean binary;
+	private boolean compressed;
+	private int minFetchLimit = DefaultMinFetchLimit;
+	private int maxFetchLimit = PrefetchSize;
+
 	// ------------------------------------------------------------------------------------------------------
 	// Constructors
 	// ------------------------------------------------------------------------------------------------------
@@ -115,6 +160,13 @@ public class DatastoreExporter extends RemoteDatastoreClient {
 		super(host, port, email, password);
 	}
 
+	/**
+	 * Exports the datastore of the current thread's API environment, e.g. a local datastore
+	 * set up by the SDK's LocalServiceTestHelper.
+	 */
+	public DatastoreExporter() {
+	}
+
 	// ------------------------------------------------------------------------------------------------------
 	// Public methods
 	// ------------------------------------------------------------------------------------------------------
@@ -124,224 +176,1045 @@ public class DatastoreExporter extends RemoteDatastoreClient {
 		// dir into which the CSV files will be written
 		Path tmpDir = Files.createTempDirectory(DataDir);
 
-		// fetch kinds in datastore
-		List<String> kinds = getKinds();
+		List<String> kinds = getExportedKinds();
+		System.out.println("Writing to " + tmpDir);
+		return export(tmpDir, ExportManifest.create(tmpDir, kinds));
+	}
 
-		for (String s : kinds) {
-			System.out.println("Kind: " + s);
+	/**
+	 * Streams the entities of every kind to the sink instead of writing them to files, e.g.
+	 * to import them into another datastore while they are being read (see
+	 * {@link DatastoreMigrator}). Kinds are read concurrently and sharded kinds (see
+	 * {@link #shardKind(String, int)}) are read in concurrent key ranges, just like for an
+	 * export to files, but nothing is checkpointed. Each batch fetched from the datastore is
+	 * handed to the sink as it is.
+	 */
+	public void exportData(final EntitySink sink) throws IOException {
+
+		List<String> kinds = getExportedKinds();
+		TransferMetrics metrics = startMetrics("export");
+		metrics.addExpectedEntities(estimateEntities(kinds, null));
+		ExecutorService executor = Executors.newFixedThreadPool(exportThreads, newThreadFactory("exporter"));
+		ArrayList<Future<?>> futures = new ArrayList<>(kinds.size());
+		try {
+			for (final String kind : kinds)
+				futures.add(executor.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws IOException {
+						streamKind(kind, sink);
+						return null;
+					}
+				}));
+
+			for (int i = 0; i < kinds.size(); i++) {
+				try {
+					futures.get(i).get();
+				} catch (ExecutionException e) {
+					// a failure in one kind should not abort the others
+					System.out.println("Failed to export " + kinds.get(i) + ": " + e.getCause());
+				}
+			}
+			System.out.println("Finished");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while exporting", e);
+		} finally {
+			executor.shutdownNow();
+			finishMetrics(metrics);
 		}
+	}
 
-		// exclude kinds that have huge amounts of data or aren't necessary
-		kinds.remove(HttpSessionKind);
-		kinds.remove(StatKindCompositeIndex);
-		kinds.remove(StatKindIsRootEntity);
-		kinds.remove(StatKindNotRootEntity);
-		kinds.remove(StatKind);
-		kinds.remove(StatPropertyNameKind);
-		kinds.remove(StatPropertyTypeKind);
-		kinds.remove(StatPropertyTypePropertyNameKind);
-		kinds.remove(StatPropertyType);
-		kinds.remove(StatTotal);
-		kinds.remove(BlobFileIndex);
-		kinds.remove(BlobInfo);
-		kinds.remove(StatNamespace);
-		kinds.remove("HITcontent");
+	/**
+	 * Streams only the entities which the target datastore lacks to the sink, so that a
+	 * migration can be repeated (see {@link DatastoreMigrator#sync}) without rewriting what the
+	 * target has already. The keys of every kind are listed in key order by keys-only queries on
+	 * both datastores and merge-joined (see {@link KeyDiff}); the entities of the missing keys are
+	 * fetched from this datastore in batches and handed to the sink. The keys which only the
+	 * target has are deleted from it if deleteExtras is set and only counted otherwise. Kinds
+	 * are synced concurrently.
+	 *
+	 * The entities are handed over as they are in this datastore; an importer which puts them
+	 * moves them into its own application (see {@link DatastoreImporter#importData(EntityQueue)}),
+	 * so that the next sync finds their keys in the target. Entities which both datastores have
+	 * are not compared, so changes to them are not copied.
+	 * @param target the importer connected to the target datastore, which lists its keys and
+	 * deletes the extra ones
+	 */
+	public void syncData(final EntitySink sink, final DatastoreImporter target, final boolean deleteExtras) throws IOException {
 
-		ArrayList<Path> dataFiles = new ArrayList<>(kinds.size());
-		for (String kind : kinds) {
-			System.out.println("Exporting " + kind);
-			Path csv = Files.createTempFile(tmpDir, kind + Dash, FileExtension);
-			try (PrintWriter writer = new PrintWriter(new BufferedWriter(
-					new FileWriter(csv.toFile())))) {
-				writeKindDataSafely(writer, kind);
+		List<String> kinds = getExportedKinds();
+		TransferMetrics metrics = startMetrics("sync");
+		ExecutorService executor = Executors.newFixedThreadPool(exportThreads, newThreadFactory("exporter"));
+		ArrayList<Future<?>> futures = new ArrayList<>(kinds.size());
+		try {
+			for (final String kind : kinds)
+				futures.add(executor.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws IOException {
+						syncKind(kind, sink, target, deleteExtras);
+						return null;
+					}
+				}));
+
+			for (int i = 0; i < kinds.size(); i++) {
+				try {
+					futures.get(i).get();
+				} catch (ExecutionException e) {
+					// a failure in one kind should not abort the others
+					System.out.println("Failed to sync " + kinds.get(i) + ": " + e.getCause());
+				}
+			}
+			System.out.println("Finished");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while syncing", e);
+		} finally {
+			executor.shutdownNow();
+			finishMetrics(metrics);
+		}
+	}
+
+	/**
+	 * Continues an export which died, using the manifest in its dump directory. Kinds
+	 * which were completed are not fetched again and the others continue from the
+	 * cursors of their last checkpoints, so only the missing entities are fetched.
+	 * The shard settings of the original export are kept for kinds that had started.
+	 */
+	public List<Path> resume(Path dumpDir) throws IOException {
+		System.out.println("Resuming export in " + dumpDir);
+		return export(dumpDir, ExportManifest.load(dumpDir));
+	}
+
+	/**
+	 * Exports only the entities of the kind with the given IDs. The entities are fetched by key
+	 * rather than by querying the kind, so the cost depends on the number of IDs instead of the
+	 * size of the kind. An ID is a numeric id, a key name or a key as it is written in the CSV
+	 * files (e.g. Parent(5)/Kind("name")), which is how the entities of a parent are selected.
+	 *
+	 * The keys are fetched in batches of 500 on the export threads (see
+	 * {@link #setExportThreads(int)}) and the entities are written in the order of the IDs. The
+	 * keys which do not exist are reported and listed in a file next to the exported file.
+	 * Nothing is checkpointed.
+	 * @return the file of the entities
+	 */
+	public Path exportKeys(String kind, List<String> ids) throws IOException {
+
+		LinkedHashSet<Key> unique = new LinkedHashSet<>(ids.size());
+		for (String id : ids)
+			if (!id.trim().isEmpty())
+				unique.add(toKey(kind, id.trim()));
+		ArrayList<Key> keys = new ArrayList<>(unique);
+
+		Path tmpDir = Files.createTempDirectory(DataDir);
+		System.out.println("Writing " + keys.size() + " keys of " + kind + " to " + tmpDir);
+		TransferMetrics metrics = startMetrics("export");
+		metrics.addExpectedEntities(keys.size());
+		metrics.startKind(kind);
+
+		Path file = newKindFile(tmpDir, kind);
+		KindWriter writer = newKindWriter(file, kind);
+		ExecutorService executor = Executors.newFixedThreadPool(exportThreads, newThreadFactory("exporter-" + kind));
+		ArrayList<Key> missing = new ArrayList<>();
+		try {
+			writeKeys(kind, keys, writer, executor, missing);
+
+			Path completed = writer.finish();
+			if (!completed.equals(file))
+				Files.delete(file);
+			System.out.println("Wrote " + completed);
+			if (!missing.isEmpty()) {
+				Path missingFile = tmpDir.resolve(kind + MissingKeysSuffix);
+				ArrayList<String> lines = new ArrayList<>(missing.size());
+				for (Key key : missing)
+					lines.add(key.toString());
+				Files.write(missingFile, lines, Charset.defaultCharset());
+				System.out.println("Missing " + missing.size() + " of " + keys.size() + " keys of " + kind + ", see " + missingFile);
 			}
-			dataFiles.add(csv);
-			System.out.println("Wrote " + csv);
+			System.out.println("Finished");
+			return completed;
+		} finally {
+			executor.shutdownNow();
+			writer.close();
+			finishMetrics(metrics);
 		}
-		System.out.println("Finished");
-		return dataFiles;
+	}
+
+	/**
+	 * Sets the number of kinds which are exported concurrently. Defaults to 4.
+	 */
+	public void setExportThreads(int exportThreads) {
+		if (exportThreads < 1)
+			throw new IllegalArgumentException("exportThreads must be at least 1");
+		this.exportThreads = exportThreads;
+	}
+
+	/**
+	 * Exports the given kind as a number of key ranges which are queried concurrently.
+	 * The ranges are written to part files which are then merged, in key order, into
+	 * the kind's CSV file so the result is identical to a serial export.
+	 * Useful for the few kinds that dominate the export time.
+	 */
+	public void shardKind(String kind, int shards) {
+		if (shards < 1)
+			throw new IllegalArgumentException("shards must be at least 1");
+		shardCounts.put(kind, shards);
+	}
+
+	/**
+	 * Writes the kinds as binary dumps of their entities (see {@link KindEntityWriter})
+	 * instead of CSV files. The dumps preserve every value exactly and can be imported
+	 * without a persistence.xml.
+	 */
+	public void setBinary(boolean binary) {
+		this.binary = binary;
+	}
+
+	/**
+	 * Compresses the CSV files with gzip while they are written, using all processors. The
+	 * files are given an additional .gz extension; the importer decompresses them while
+	 * reading. Every checkpoint ends a gzip member, which costs a little compression.
+	 */
+	public void setCompressed(boolean compressed) {
+		this.compressed = compressed;
+	}
+
+	/**
+	 * Sets the bounds within which the number of entities fetched per batch is adapted
+	 * (see {@link AdaptiveFetchController}). Defaults to 20..10000.
+	 */
+	public void setFetchLimits(int minFetchLimit, int maxFetchLimit) {
+		if (minFetchLimit < 1 || maxFetchLimit < minFetchLimit)
+			throw new IllegalArgumentException("Invalid fetch limits: " + minFetchLimit + ".." + maxFetchLimit);
+		this.minFetchLimit = minFetchLimit;
+		this.maxFetchLimit = maxFetchLimit;
+	}
+
+	/**
+	 * Exports the given kind incrementally. The property holds the modification time of
+	 * an entity, either as a java.util.Date or as milliseconds in a java.lang.Long, and
+	 * must be indexed. Once a high-water mark has been recorded for the kind (see
+	 * {@link #setWatermarkFile(Path)}) only the entities whose timestamp is greater
+	 * than the high-water mark less the lag (see {@link #setWatermarkLag(long)}) are
+	 * fetched. Incremental exports are not sharded since the datastore does not allow
+	 * key range filters next to the timestamp filter.
+	 */
+	public void setTimestampProperty(String kind, String propertyName) {
+		timestampProperties.put(kind, propertyName);
+	}
+
+	/**
+	 * Sets the file in which the high-water marks of the incremental exports are kept
+	 * between runs. The file is updated after each run for the kinds which were exported
+	 * completely.
+	 */
+	public void setWatermarkFile(Path watermarkFile) {
+		this.watermarkFile = watermarkFile;
+	}
+
+	/**
+	 * Sets how far behind the high-water mark an incremental export starts, in
+	 * milliseconds. An entity may be written after an export with a timestamp which is
+	 * not greater than the high-water mark of that export, e.g. the same millisecond as
+	 * the last exported entity or an earlier one taken before a slow commit. The entities
+	 * within the lag are exported again by the next run, so it catches those as long as
+	 * they are not older than the lag. Defaults to one minute.
+	 */
+	public void setWatermarkLag(long watermarkLag) {
+		if (watermarkLag < 0)
+			throw new IllegalArgumentException("Invalid watermark lag: " + watermarkLag);
+		this.watermarkLag = watermarkLag;
+	}
+
+	/**
+	 * Only writes the given properties of the kind to its CSV file, in the given order. If they
+	 * are all indexed and single valued, the kind is fetched with a projection query so only their
+	 * values are transferred; otherwise whole entities are fetched and the other properties are
+	 * left out while writing (see {@link KindCsvWriter#pruneColumns()}). The types of the projected
+	 * values are taken from the first entity of the kind, which must have a value for each of them.
+	 *
+	 * Whether the other entities fit the projection cannot be told up front. A projection query
+	 * returns an entity once for every value of a multi-valued property, leaves out the entities
+	 * which lack an indexed value of a projected property and fails on a value of another type.
+	 * So the kind is exported again from whole entities if a key comes back more than once, if
+	 * the projected fetch fails, or if a keys-only count of the kind finds more entities than the
+	 * projection returned. Projecting more than one property needs a composite index of them. The
+	 * selection must be given again when resuming an export. Binary dumps and streamed exports
+	 * always have whole entities.
+	 */
+	public void selectColumns(String kind, String... propertyNames) {
+		if (propertyNames.length == 0)
+			throw new IllegalArgumentException("No columns selected for " + kind);
+		selectedColumns.put(kind, Arrays.asList(propertyNames.clone()));
 	}
 
 	// ------------------------------------------------------------------------------------------------------
 	// Private methods
 	// ------------------------------------------------------------------------------------------------------
 
+	private List<Path> export(Path dir, ExportManifest manifest) throws IOException {
+
+		List<String> kinds = manifest.getKinds();
+		Watermarks watermarks = watermarkFile == null ? null : Watermarks.load(watermarkFile);
+		TransferMetrics metrics = startMetrics("export");
+		metrics.addExpectedEntities(estimateEntities(kinds, manifest));
+
+		// export several kinds at once; each kind is written to its own file
+		ExecutorService executor = Executors.newFixedThreadPool(exportThreads, newThreadFactory("exporter"));
+		ArrayList<Future<Path>> futures = new ArrayList<>(kinds.size());
+		try {
+			for (String kind : kinds)
+				futures.add(executor.submit(newKindExport(dir, kind, manifest, watermarks)));
+
+			// collect the files in the order of the kinds so that the result is deterministic
+			ArrayList<Path> dataFiles = new ArrayList<>(kinds.size());
+			for (int i = 0; i < kinds.size(); i++) {
+				try {
+					dataFiles.add(futures.get(i).get());
+				} catch (ExecutionException e) {
+					// a failure in one kind should not abort the others
+					System.out.println("Failed to export " + kinds.get(i) + ": " + e.getCause());
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted while exporting " + kinds.get(i), e);
+				}
+			}
+
+			// the progress of the kinds which failed, for a resume
+			manifest.flush();
+			if (watermarks != null)
+				saveWatermarks(watermarks, manifest);
+			System.out.println("Finished");
+			return dataFiles;
+		} finally {
+			executor.shutdownNow();
+			finishMetrics(metrics);
+		}
+	}
+
 	/**
-	 * This method performs the query which fetches the entities from the
-	 * datastore. The prefetch size dictates the number of results that are
-	 * retrieved in the first batch. The chunk size dictates the number of
-	 * results that are retrieved on subsequent remote reads.
+	 * Advances the high-water marks of the incremental kinds which were exported
+	 * completely. A kind for which no newer entities were found keeps its mark.
+	 */
+	private void saveWatermarks(Watermarks watermarks, ExportManifest manifest) throws IOException {
+		for (String kind : manifest.getKinds()) {
+			if (manifest.getResult(kind) == null || manifest.getTimestampProperty(kind) == null)
+				continue;
+			Object watermark = Watermarks.max(manifest.getSince(kind), manifest.getWatermark(kind));
+			if (watermark != null)
+				watermarks.put(kind, watermark);
+		}
+		watermarks.save();
+	}
+
+	private Callable<Path> newKindExport(final Path dir, final String kind,
+			final ExportManifest manifest, final Watermarks watermarks) {
+		return new Callable<Path>() {
+			@Override
+			public Path call() throws IOException {
+				return exportKind(dir, kind, manifest, watermarks);
+			}
+		};
+	}
+
+	/**
+	 * Exports a kind, or continues its export from the checkpoints in the manifest.
+	 * The kind is written in one or more parts (see {@link #shardKind(String, int)}).
+	 * After every batch each part is flushed and checkpointed.
+	 */
+	private Path exportKind(Path dir, String kind, ExportManifest manifest, Watermarks watermarks) throws IOException {
+
+		String result = manifest.getResult(kind);
+		if (result != null) {
+			// the export may have died before the original file was replaced
+			if (!result.equals(manifest.getFile(kind)))
+				Files.deleteIfExists(dir.resolve(manifest.getFile(kind)));
+			System.out.println("Already exported " + kind);
+			return dir.resolve(result);
+		}
+
+		Path csv;
+		KindExport export;
+		List<PartCheckpoint> checkpoints;
+		ArrayList<KindWriter.Part> parts = new ArrayList<>();
+		metrics.startKind(kind);
+
+		if (manifest.getFile(kind) == null) {
+			String timestampProperty = timestampProperties.get(kind);
+			Object since = timestampProperty == null || watermarks == null ? null : watermarks.get(kind);
+			if (since == null)
+				System.out.println("Exporting " + kind);
+			else
+				System.out.println("Exporting " + kind + " changed since " + since);
+
+			Integer shards = shardCounts.get(kind);
+			List<Key> splitKeys = shards != null && shards > 1 && since == null
+					? getSplitKeys(kind, shards) : new ArrayList<Key>();
+			if (!splitKeys.isEmpty())
+				System.out.println("Exporting " + kind + " in " + (splitKeys.size() + 1) + " key ranges");
+
+			csv = newKindFile(dir, kind);
+			export = new KindExport(kind, newKindWriter(csv, kind), manifest, timestampProperty, since,
+					getProjection(kind, timestampProperty));
+
+			checkpoints = new ArrayList<>(splitKeys.size() + 1);
+			for (int i = 0; i <= splitKeys.size(); i++) {
+				PartCheckpoint checkpoint = new PartCheckpoint(
+						i == 0 ? null : splitKeys.get(i - 1),
+						i == splitKeys.size() ? null : splitKeys.get(i));
+				KindWriter.Part part = export.writer.newPart();
+				checkpoint.direct = part.isDirect();
+				checkpoint.offset = export.writer.getOffset();
+				parts.add(part);
+				checkpoints.add(checkpoint);
+			}
+			manifest.startKind(kind, csv.getFileName().toString(), checkpoints,
+					export.writer.getColumnNames(), export.writer.getKnownColumnCount(),
+					timestampProperty, since, export.projection);
+		} else {
+			System.out.println("Resuming " + kind + " after " + manifest.getRows(kind) + " rows");
+			csv = dir.resolve(manifest.getFile(kind));
+			checkpoints = manifest.getCheckpoints(kind);
+			KindWriter kindWriter = csv.getFileName().toString().endsWith(KindEntityWriter.FileExtension)
+					? new KindEntityWriter(csv, checkpoints.get(0).offset)
+					: configure(new KindCsvWriter(csv, manifest.getColumns(kind),
+							manifest.getKnownColumnCount(kind), checkpoints.get(0).offset,
+							getCompressionThreads(csv.getFileName().toString().endsWith(ParallelGzipOutputStream.FileExtension))), kind);
+			export = new KindExport(kind, kindWriter, manifest,
+					manifest.getTimestampProperty(kind), manifest.getSince(kind),
+					manifest.getProjection(kind));
+			for (PartCheckpoint checkpoint : checkpoints)
+				parts.add(kindWriter.newPart(checkpoint.direct, checkpoint.spillOffset));
+		}
+
+		try {
+			if (parts.size() == 1)
+				writePart(export, 0, parts.get(0), checkpoints.get(0));
+			else
+				writePartsConcurrently(export, parts, checkpoints);
+			if (export.projection != null)
+				checkProjectedRows(export, checkpoints);
+
+			Path completed = export.writer.finish();
+			manifest.setDone(kind, completed.getFileName().toString());
+			if (!completed.equals(csv))
+				Files.delete(csv);
+			System.out.println("Wrote " + completed);
+			return completed;
+		} catch (UnprojectableKindException e) {
+			System.out.println(e.getMessage() + ", exporting " + kind + " again from whole entities");
+			((KindCsvWriter) export.writer).delete();
+			unprojectedKinds.add(kind);
+			manifest.restartKind(kind);
+			return exportKind(dir, kind, manifest, watermarks);
+		} finally {
+			export.writer.close();
+		}
+	}
+
+	/**
+	 * Writes the key ranges of a sharded kind concurrently, each into its own part of
+	 * the kind's {@link KindCsvWriter}. Each range is ordered by key, so writing the
+	 * parts in range order yields the same file as a serial export.
+	 */
+	private void writePartsConcurrently(final KindExport export, List<KindWriter.Part> parts,
+			List<PartCheckpoint> checkpoints) throws IOException {
+
+		ArrayList<Future<?>> futures = new ArrayList<>(parts.size());
+		ExecutorService executor = Executors.newFixedThreadPool(parts.size(), newThreadFactory("exporter-" + export.kind));
+		try {
+			for (int i = 0; i < parts.size(); i++) {
+				final int index = i;
+				final KindWriter.Part part = parts.get(i);
+				final PartCheckpoint checkpoint = checkpoints.get(i);
+				futures.add(executor.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws IOException {
+						writePart(export, index, part, checkpoint);
+						return null;
+					}
+				}));
+			}
+
+			for (Future<?> future : futures)
+				future.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof UnprojectableKindException) {
+				// the files are discarded, so let the other parts stop before they are deleted
+				export.abandoned = true;
+				for (Future<?> future : futures) {
+					try {
+						future.get();
+					} catch (ExecutionException ignored) {
+						// the first failure is the one reported
+					} catch (InterruptedException interrupted) {
+						Thread.currentThread().interrupt();
+						break;
+					}
+				}
+				throw (UnprojectableKindException) e.getCause();
+			}
+			throw new IOException("Failed to export a key range of " + export.kind, e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while exporting " + export.kind, e);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Writes the entities of the part, starting from the part's checkpoint. The entities
+	 * are fetched in batches, each continuing from the cursor of the previous one, and
+	 * the part is flushed and checkpointed after every batch. The batches are fetched
+	 * ahead by a {@link QueryBatchPrefetcher} so that fetching the next batch overlaps
+	 * with writing the current one. The size of the batches is adapted by an
+	 * {@link AdaptiveFetchController}; a batch which runs into a deadline is retried
+	 * with a smaller size.
 	 *
-	 * The entities are all added to a buffer and set of all property names is
-	 * constructed. The set of property names is important so that we can build
-	 * the CSV header line. The entities of the kind do not need to have
-	 * homogeneous property names so an empty property value will appear as NULL
-	 * in the CSV file.
+	 * A projection query returns an entity once for every value of a multi-valued property, next to
+	 * each other since the part is ordered by key. A repeated key therefore means that the kind
+	 * cannot be projected, which is reported with an {@link UnprojectableKindException}, as is a
+	 * projected fetch which fails.
 	 *
-	 * For very large datasets, this buffering technique will not work since the
-	 * JVM may run out of memory. If you have large datasets, I recommend using
-	 * a two-pass system (which will incur additional GAE costs): -the first
-	 * pass should build the property name set and write the header line to the
-	 * CSV file -the second pass should sequentially write the entities to the
-	 * CSV file
+	 * The entities of the kind do not need to have homogeneous property names; the
+	 * header covers every property that was seen and a property that an entity does
+	 * not have appears as NULL in the CSV file.
 	 */
-	private void writeKindData(PrintWriter writer, String kind) {
+	private void writePart(KindExport export, int index, KindWriter.Part part,
+			PartCheckpoint checkpoint) throws IOException {
+
+		if (checkpoint.done) {
+			part.close();
+			return;
+		}
 
-		HashSet<String> propertyNames = new HashSet<>();
-		ArrayList<Entity> entities = new ArrayList<>();
+		PreparedQuery pq = ds.prepare(newPartQuery(export, checkpoint));
+		AdaptiveFetchController fetch = new AdaptiveFetchController(minFetchLimit, maxFetchLimit,
+				ChunkSize, checkpoint.limit > 0 ? checkpoint.limit : InitialFetchLimit);
 
-		FetchOptions options = FetchOptions.Builder.withPrefetchSize(
-				PrefetchSize).chunkSize(ChunkSize);
-		Query q = new Query(kind);
+		try (QueryBatchPrefetcher prefetcher = new QueryBatchPrefetcher(pq, fetch, metrics, checkpoint.cursor,
+				newThreadFactory("prefetch-" + export.kind + "-" + index))) {
+			QueryBatchPrefetcher.Batch batch;
+			while ((batch = nextBatch(export, prefetcher)) != null) {
+				if (export.abandoned)
+					return;
+				// Write entities for this batch
+				long bytes = 0;
+				for (Entity e : batch.results) {
+					if (export.projection != null) {
+						if (e.getKey().equals(checkpoint.lastKey))
+							throw new UnprojectableKindException("A projected property of " + export.kind + " has several values");
+						checkpoint.lastKey = e.getKey();
+					}
+					bytes += part.write(e);
+					if (export.timestampProperty != null) {
+						Object timestamp = e.getProperty(export.timestampProperty);
+						if (Watermarks.isTimestamp(timestamp))
+							checkpoint.watermark = Watermarks.max(checkpoint.watermark, timestamp);
+					}
+				}
+				fetch.recordBytes(batch.results.size(), bytes);
+				metrics.recordEntities(export.kind, batch.results.size(), bytes);
 
-		for (Entity entity : ds.prepare(q).asIterable(options)) {
-			entities.add(entity);
-			propertyNames.addAll(entity.getProperties().keySet());
+				checkpoint.cursor = batch.cursor;
+				checkpoint.rows += batch.results.size();
+				checkpoint.limit = fetch.getLimit();
+				checkpoint.done = batch.last;
+				checkpoint(export, index, part, checkpoint);
+			}
+			System.out.println("Fetched " + export.kind + (index > 0 ? " part " + index : "") + ": " + fetch);
+		} finally {
+			part.close();
 		}
+	}
 
-		writeHeaderRow(writer, propertyNames);
+	/**
+	 * Streams the entities of a kind to the sink, reading the key ranges of a sharded kind
+	 * concurrently.
+	 */
+	private void streamKind(final String kind, final EntitySink sink) throws IOException {
 
-		for (Entity entity : entities)
-			writeEntity(writer, entity, propertyNames);
-	}
+		metrics.startKind(kind);
+		Integer shards = shardCounts.get(kind);
+		final List<Key> splitKeys = shards != null && shards > 1
+				? getSplitKeys(kind, shards) : new ArrayList<Key>();
+		if (splitKeys.isEmpty()) {
+			System.out.println("Streaming " + kind);
+			streamRange(kind, 0, null, null, sink);
+			return;
+		}
 
-	// Two-pass system
-	// First pass: get the property names
-	// Second pass: write entities
-	private void writeKindDataSafely(PrintWriter writer, String kind) {
+		System.out.println("Streaming " + kind + " in " + (splitKeys.size() + 1) + " key ranges");
+		ArrayList<Future<?>> futures = new ArrayList<>(splitKeys.size() + 1);
+		ExecutorService executor = Executors.newFixedThreadPool(splitKeys.size() + 1, newThreadFactory("exporter-" + kind));
+		try {
+			for (int i = 0; i <= splitKeys.size(); i++) {
+				final int index = i;
+				futures.add(executor.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws IOException {
+						streamRange(kind, index,
+								index == 0 ? null : splitKeys.get(index - 1),
+								index == splitKeys.size() ? null : splitKeys.get(index), sink);
+						return null;
+					}
+				}));
+			}
 
-		HashSet<String> propertyNames = new HashSet<>();
+			for (Future<?> future : futures)
+				future.get();
+		} catch (ExecutionException e) {
+			throw new IOException("Failed to export a key range of " + kind, e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while exporting " + kind, e);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Hands the entities of the kind which the target lacks to the sink and deletes the target's
+	 * extra entities if asked to.
+	 */
+	private void syncKind(final String kind, final EntitySink sink, final DatastoreImporter target,
+			final boolean deleteExtras) throws IOException {
 
-		FetchOptions options = FetchOptions.Builder.withLimit(20);
-		Query q = new Query(kind);
+		metrics.startKind(kind);
+		System.out.println("Syncing " + kind);
+		KeyDiff diff = new KeyDiff(KeyBatchSize);
+		try (QueryBatchPrefetcher sourceKeys = prefetchKeys(kind, metrics);
+				QueryBatchPrefetcher targetKeys = target.prefetchKeys(kind, metrics)) {
+			diff.run(KeyDiff.keysOf(sourceKeys), KeyDiff.keysOf(targetKeys), new KeyDiff.Handler() {
+				@Override
+				public void missing(List<Key> keys) throws IOException {
+					Map<Key, Entity> entities = get(keys);
+					// an entity may have been deleted since its key was listed
+					ArrayList<Entity> batch = new ArrayList<>(entities.size());
+					for (Key key : keys) {
+						Entity entity = entities.get(key);
+						if (entity != null)
+							batch.add(entity);
+					}
+					try {
+						sink.put(kind, batch);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new IOException("Interrupted while syncing " + kind, e);
+					}
+					metrics.recordEntities(kind, batch.size(), estimateSize(batch));
+				}
 
-		// Retrieve property names from first result and write them
-		QueryResultList<Entity> results = ds.prepare(q).asQueryResultList(
-				options);
-		for (Entity e : results) {
-			propertyNames.addAll(e.getProperties().keySet());
+				@Override
+				public void extra(List<Key> keys) throws IOException {
+					if (deleteExtras)
+						target.deleteKeys(keys);
+				}
+			});
 		}
-		writeHeaderRow(writer, propertyNames);
+		System.out.println("Synced " + kind + ": " + diff + (deleteExtras || diff.getExtra() == 0 ? "" : " (extras kept)"));
+	}
+
+	/**
+	 * Hands the entities whose keys fall in [start, end) to the sink, one fetched batch at a
+	 * time. The batches are fetched ahead and sized as in {@link #writePart}.
+	 */
+	private void streamRange(String kind, int index, Key start, Key end, EntitySink sink) throws IOException {
+
+		PreparedQuery pq = ds.prepare(newRangeQuery(kind, start, end));
+		AdaptiveFetchController fetch = new AdaptiveFetchController(minFetchLimit, maxFetchLimit,
+				ChunkSize, InitialFetchLimit);
 
-		// Continue while we are getting new results
-		while (!results.isEmpty()) {
-			// Write entities for this batch
-			for (Entity e : results) {
-				writeEntity(writer, e, propertyNames);
+		try (QueryBatchPrefetcher prefetcher = new QueryBatchPrefetcher(pq, fetch, metrics, null,
+				newThreadFactory("prefetch-" + kind + "-" + index))) {
+			QueryBatchPrefetcher.Batch batch;
+			while ((batch = prefetcher.next()) != null) {
+				long bytes = estimateSize(batch.results);
+				sink.put(kind, batch.results);
+				fetch.recordBytes(batch.results.size(), bytes);
+				metrics.recordEntities(kind, batch.results.size(), bytes);
 			}
+			System.out.println("Fetched " + kind + (index > 0 ? " part " + index : "") + ": " + fetch);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while streaming " + kind, e);
+		}
+	}
+
+	/**
+	 * Writes the entities of the keys in the order of the keys. A few batches of keys are
+	 * fetched ahead for every thread of the executor.
+	 * @param missing receives the keys which do not exist
+	 */
+	private void writeKeys(String kind, List<Key> keys, KindWriter writer, ExecutorService executor,
+			List<Key> missing) throws IOException {
+
+		ArrayDeque<Future<Map<Key, Entity>>> futures = new ArrayDeque<>();
+		int next = 0;
+		try (KindWriter.Part part = writer.newPart()) {
+			for (int from = 0; from < keys.size(); from += KeyBatchSize) {
+				while (next < keys.size() && futures.size() < exportThreads * 2) {
+					final List<Key> batch = keys.subList(next, Math.min(next + KeyBatchSize, keys.size()));
+					futures.add(executor.submit(new Callable<Map<Key, Entity>>() {
+						@Override
+						public Map<Key, Entity> call() {
+							return get(batch);
+						}
+					}));
+					next += batch.size();
+				}
 
-			// Get the next batch
-			options.startCursor(results.getCursor());
-			results = ds.prepare(q).asQueryResultList(options);
-		}
-	}
-
-	private void writeHeaderRow(PrintWriter writer,
-			HashSet<String> propertyNames) {
-		writer.write(Entity.KEY_RESERVED_PROPERTY);
-		Iterator<String> i = propertyNames.iterator();
-		if (i.hasNext())
-			writer.write(FieldSeparator);
-		while (i.hasNext()) {
-			writer.write(i.next());
-			if (i.hasNext())
-				writer.write(FieldSeparator);
-		}
-		writer.println();
-	}
-
-	private void writeEntity(PrintWriter writer, Entity entity,
-			HashSet<String> propertyNames) {
-		writer.write(entity.getKey().toString());
-		Iterator<String> i = propertyNames.iterator();
-		if (i.hasNext())
-			writer.write(FieldSeparator);
-		while (i.hasNext()) {
-			Object value = entity.getProperty(i.next());
-			writeObject(writer, value);
-			if (i.hasNext())
-				writer.write(FieldSeparator);
-		}
-		writer.println();
-	}
-
-	/**
-	 * Converts the Java object into a string and writes it to the CSV file. The
-	 * following Java types are handled specially:
-	 * <ul>
-	 * <li>Java <code>null</code> is converted to the string "NULL"</li>
-	 * <li>java.util.Date is converted to millisecond representation</li>
-	 * <li>java.util.Collection (only java.util.Set and java.util.List are
-	 * supported) are converted into a semi-colon separated string</li>
-	 * <li>java.lang.Enum values are converted to a string by calling
-	 * Enum.name()</li>
-	 * <li>com.google.appengine.api.datastore.Key is converted to a websafe
-	 * string using KeyFactory</li>
-	 * <li>com.google.appengine.api.datastore.Text is escaped and written as a
-	 * string</li>
-	 * <li>any other type is converted to a string by calling Object.toString()</li>
-	 * </ul>
-	 */
-	private void writeObject(PrintWriter writer, Object value) {
-
-		if (value == null)
-			writer.write(Null);
-
-		else {
-			if (value instanceof Key) {
-				Key key = (Key) value;
-				writer.write(key.toString());
+				Map<Key, Entity> entities = futures.remove().get();
+				long bytes = 0;
+				for (Key key : keys.subList(from, Math.min(from + KeyBatchSize, keys.size()))) {
+					Entity entity = entities.get(key);
+					if (entity == null)
+						missing.add(key);
+					else
+						bytes += part.write(entity);
+				}
+				metrics.recordBatch(entities.size());
+				metrics.recordEntities(kind, entities.size(), bytes);
 			}
+		} catch (ExecutionException e) {
+			throw new IOException("Failed to fetch keys of " + kind, e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while exporting " + kind, e);
+		}
+	}
 
-			else if (value instanceof Date)
-				writer.write(Long.toString(((Date) value).getTime()));
+	/**
+	 * Fetches the entities of the keys. A fetch which runs into a deadline is retried as two
+	 * fetches of half the keys.
+	 * @return the entities which exist, by key
+	 */
+	private Map<Key, Entity> get(List<Key> keys) {
+		long start = System.nanoTime();
+		try {
+			Map<Key, Entity> entities = ds.get(keys);
+			metrics.recordFetch(System.nanoTime() - start);
+			return entities;
+		} catch (RuntimeException e) {
+			if (!AdaptiveFetchController.isDeadline(e) || keys.size() == 1)
+				throw e;
+			metrics.recordFetch(System.nanoTime() - start);
+			metrics.recordRetry();
+			HashMap<Key, Entity> entities = new HashMap<>(get(keys.subList(0, keys.size() / 2)));
+			entities.putAll(get(keys.subList(keys.size() / 2, keys.size())));
+			return entities;
+		}
+	}
 
-			else if (value instanceof Collection)
-				writeCollection(writer, (Collection<?>) value);
+	/**
+	 * Converts an ID given to {@link #exportKeys(String, List)} into a key of the kind.
+	 */
+	static Key toKey(String kind, String id) {
+		if (id.endsWith(")")) {
+			Key key = EntityDecoder.parseKey(id);
+			if (!key.getKind().equals(kind))
+				throw new IllegalArgumentException("Key " + id + " is not of kind " + kind);
+			return key;
+		}
+		try {
+			return KeyFactory.createKey(kind, Long.parseLong(id));
+		} catch (NumberFormatException e) {
+			return KeyFactory.createKey(kind, id);
+		}
+	}
 
-			else if (value instanceof Enum)
-				writer.write(((Enum<?>) value).name());
+	/**
+	 * An incremental export fetches the entities whose timestamp is greater than the
+	 * high-water mark less the lag, in timestamp order. Otherwise the entities whose keys fall in
+	 * [start, end) are fetched in key order; a null bound is open. Only the projected
+	 * properties are fetched if the kind has a projection.
+	 */
+	private Query newPartQuery(KindExport export, PartCheckpoint checkpoint) {
 
-			else if (value instanceof Text)
-				escapeAndWrite(writer, ((Text) value).getValue());
+		Query q = newKindQuery(export, checkpoint.start, checkpoint.end);
+		if (export.projection != null)
+			for (PropertyProjection projection : export.projection)
+				q.addProjection(projection);
+		return q;
+	}
 
-			else
-				escapeAndWrite(writer, value.toString());
+	/**
+	 * A query for the entities whose keys fall in [start, end), in key order; a null bound is open.
+	 */
+	/**
+	 * The query of the entities of the kind in the key range, or of the entities changed since the
+	 * high-water mark of an incremental export.
+	 */
+	private Query newKindQuery(KindExport export, Key start, Key end) {
+		if (export.since != null)
+			return new Query(export.kind)
+					.setFilter(new FilterPredicate(export.timestampProperty,
+							FilterOperator.GREATER_THAN, Watermarks.minus(export.since, watermarkLag)))
+					.addSort(export.timestampProperty);
+		return newRangeQuery(export.kind, start, end);
+	}
+
+	/**
+	 * Counts the entities which the projection of the kind should have returned with a keys-only
+	 * query, since a projection silently leaves out the entities which lack an indexed value of a
+	 * projected property.
+	 * @throws UnprojectableKindException if there are more entities than projected rows
+	 */
+	private void checkProjectedRows(KindExport export, List<PartCheckpoint> checkpoints) throws IOException {
+		long rows = 0;
+		for (PartCheckpoint checkpoint : checkpoints)
+			rows += checkpoint.rows;
+		int entities = ds.prepare(newKindQuery(export, null, null).setKeysOnly())
+				.countEntities(FetchOptions.Builder.withDefaults());
+		if (entities > rows)
+			throw new UnprojectableKindException("The projection of " + export.kind + " returned "
+					+ rows + " of " + entities + " entities");
+	}
+
+	/**
+	 * The next batch of the part; a projected fetch which fails, e.g. on a value whose type differs
+	 * from the one of the first entity, is reported as an {@link UnprojectableKindException}.
+	 */
+	private static QueryBatchPrefetcher.Batch nextBatch(KindExport export, QueryBatchPrefetcher prefetcher)
+			throws IOException {
+		try {
+			return prefetcher.next();
+		} catch (RuntimeException e) {
+			if (export.projection == null)
+				throw e;
+			throw new UnprojectableKindException("Failed to project " + export.kind + ": " + e, e);
 		}
+	}
+
+	private Query newRangeQuery(String kind, Key start, Key end) {
+
+		ArrayList<Filter> filters = new ArrayList<>(2);
+		if (start != null)
+			filters.add(new FilterPredicate(Entity.KEY_RESERVED_PROPERTY,
+					FilterOperator.GREATER_THAN_OR_EQUAL, start));
+		if (end != null)
+			filters.add(new FilterPredicate(Entity.KEY_RESERVED_PROPERTY,
+					FilterOperator.LESS_THAN, end));
 
+		Query q = new Query(kind).addSort(Entity.KEY_RESERVED_PROPERTY);
+		if (filters.size() == 1)
+			q.setFilter(filters.get(0));
+		else if (filters.size() == 2)
+			q.setFilter(CompositeFilterOperator.and(filters));
+		return q;
 	}
 
-	private void writeCollection(PrintWriter writer, Collection<?> collection) {
-		Iterator<?> i = collection.iterator();
-		while (i.hasNext()) {
-			writeObject(writer, i.next());
-			if (i.hasNext())
-				writer.write(CollectionValueSeparator);
+	/**
+	 * Flushes the part and records the lengths of its files in the manifest along with
+	 * the cursor, row count and high-water mark of the checkpoint.
+	 *
+	 * A compressed file is written in the background, so the checkpoint of the first part is only
+	 * recorded once the rows before it are in the file; until then it waits in the export. Points
+	 * within a block cannot be continued from, so a checkpoint which does not end a block is
+	 * skipped. The last checkpoint waits for the whole file.
+	 */
+	private void checkpoint(KindExport export, int index, KindWriter.Part part,
+			PartCheckpoint checkpoint) throws IOException {
+		part.flush();
+		checkpoint.direct = part.isDirect();
+		checkpoint.spillOffset = part.getSpillOffset();
+		if (index > 0) {
+			export.manifest.checkpoint(export.kind, index, checkpoint, export.writer.getColumnNames(),
+					export.writer.getKnownColumnCount());
+			return;
+		}
+		if (checkpoint.done) {
+			export.marked.clear();
+			checkpoint.offset = export.writer.getOffset();
+			export.manifest.checkpoint(export.kind, index, checkpoint, export.writer.getColumnNames(),
+					export.writer.getKnownColumnCount());
+			return;
 		}
+
+		long mark = export.writer.mark();
+		if (mark >= 0)
+			export.marked.add(new MarkedCheckpoint(mark, checkpoint.copy(), export.writer.getColumnNames()));
+		MarkedCheckpoint written = null;
+		while (!export.marked.isEmpty()) {
+			long offset = export.writer.getOffset(export.marked.peek().mark);
+			if (offset < 0)
+				break;
+			written = export.marked.poll();
+			written.checkpoint.offset = offset;
+		}
+		if (written != null)
+			export.manifest.checkpoint(export.kind, index, written.checkpoint, written.columns,
+					export.writer.getKnownColumnCount());
 	}
 
 	/**
-	 * Writes the string value to the CSV file. Converts " into "" Converts \n
-	 * into __N__ Converts \r into __R__ Wraps a string that contains a comma
-	 * with double quotes.
+	 * Samples keys in __scatter__ order, which is effectively random, and picks evenly
+	 * spaced keys from the sorted sample as the boundaries of the key ranges. Fewer
+	 * boundaries are returned when the kind is too small (or the datastore does not
+	 * maintain the scatter property), in the worst case none at all.
 	 */
-	private void escapeAndWrite(PrintWriter writer, String value) {
-		if (value.contains(DoubleQuote)) {
-			value = value.replaceAll(DoubleQuote, DoubleDoubleQuote);
+	private List<Key> getSplitKeys(String kind, int shards) {
+		Query q = new Query(kind).setKeysOnly().addSort(Entity.SCATTER_RESERVED_PROPERTY);
+		ArrayList<Key> sample = new ArrayList<>();
+		for (Entity e : ds.prepare(q).asIterable(
+				FetchOptions.Builder.withLimit(shards * ScatterOversampling)))
+			sample.add(e.getKey());
+		Collections.sort(sample);
+
+		ArrayList<Key> splitKeys = new ArrayList<>(shards - 1);
+		for (int i = 1; i < shards; i++) {
+			int index = i * sample.size() / shards;
+			if (index <= 0 || index >= sample.size())
+				continue;
+			Key key = sample.get(index);
+			if (splitKeys.isEmpty() || !splitKeys.get(splitKeys.size() - 1).equals(key))
+				splitKeys.add(key);
 		}
-		if (value.contains(Newline)) {
-			value = value.replaceAll(Newline, EscapedNewline);
+		return splitKeys;
+	}
+
+	/**
+	 * Estimates the number of entities which remain to be exported from the kind statistics
+	 * of the datastore, which are updated about once a day (and may not exist at all, in
+	 * which case the estimate is 0). Kinds which were exported already are left out, as are
+	 * the rows exported before a resume and the kinds which are exported incrementally.
+	 * @param manifest the manifest of the export, or null when streaming
+	 */
+	private long estimateEntities(List<String> kinds, ExportManifest manifest) {
+		HashMap<String, Long> counts = new HashMap<>();
+		for (Entity e : ds.prepare(new Query(StatKind)).asIterable(
+				FetchOptions.Builder.withPrefetchSize(PrefetchSize))) {
+			Object kind = e.getProperty(StatKindName);
+			Object count = e.getProperty(StatCount);
+			if (kind instanceof String && count instanceof Long)
+				counts.put((String) kind, (Long) count);
 		}
-		if (value.contains(CarriageReturn)) {
-			value = value.replaceAll(CarriageReturn, EscapedCarriageReturn);
+
+		long expected = 0;
+		for (String kind : kinds) {
+			Long count = counts.get(kind);
+			if (count == null || watermarkFile != null && timestampProperties.containsKey(kind))
+				continue;
+			if (manifest == null)
+				expected += count;
+			else if (manifest.getResult(kind) == null && manifest.getTimestampProperty(kind) == null)
+				expected += Math.max(0, count - manifest.getRows(kind));
 		}
-		if (value.contains(FieldSeparator)) {
-			value = DoubleQuote + value + DoubleQuote;
+		return expected;
+	}
+
+	/**
+	 * Estimates the size of entities which are streamed rather than written to a file (see
+	 * {@link DatastoreImporter#estimateSize(Entity)}), in place of the size of their rows.
+	 */
+	private static long estimateSize(List<Entity> entities) {
+		long bytes = 0;
+		for (Entity entity : entities)
+			bytes += DatastoreImporter.estimateSize(entity);
+		return bytes;
+	}
+
+	private Path newKindFile(Path dir, String kind) throws IOException {
+		return Files.createTempFile(dir, kind + Dash, binary ? KindEntityWriter.FileExtension
+				: compressed ? FileExtension + ParallelGzipOutputStream.FileExtension : FileExtension);
+	}
+
+	private KindWriter newKindWriter(Path file, String kind) throws IOException {
+		if (binary)
+			return new KindEntityWriter(file);
+		List<String> columns = selectedColumns.get(kind);
+		if (columns != null)
+			return KindCsvWriter.selectColumns(file, columns, getCompressionThreads(compressed));
+		return new KindCsvWriter(file, getPropertyNames(kind), getCompressionThreads(compressed));
+	}
+
+	private static int getCompressionThreads(boolean compressed) {
+		return compressed ? Runtime.getRuntime().availableProcessors() : 0;
+	}
+
+	private KindCsvWriter configure(KindCsvWriter writer, String kind) {
+		if (selectedColumns.containsKey(kind))
+			writer.pruneColumns();
+		return writer;
+	}
+
+	/**
+	 * Chooses the projection of a kind whose columns are selected (see
+	 * {@link #selectColumns(String, String...)}). The timestamp property of an incremental
+	 * export is projected as well, so that its high-water mark can be tracked.
+	 * @return the projection, or null if whole entities are fetched
+	 */
+	private List<PropertyProjection> getProjection(String kind, String timestampProperty) {
+		List<String> columns = selectedColumns.get(kind);
+		if (columns == null || binary || unprojectedKinds.contains(kind))
+			return null;
+		LinkedHashSet<String> projected = new LinkedHashSet<>(columns);
+		if (timestampProperty != null)
+			projected.add(timestampProperty);
+
+		// projected values only have the types which the query asks for
+		List<Entity> sample = ds.prepare(new Query(kind).addSort(Entity.KEY_RESERVED_PROPERTY))
+				.asList(FetchOptions.Builder.withLimit(1));
+		List<String> indexed = getPropertyNames(kind);
+		ArrayList<PropertyProjection> projection = new ArrayList<>(projected.size());
+		for (String name : projected) {
+			Object value = sample.isEmpty() ? null : sample.get(0).getProperty(name);
+			if (value == null || !ProjectedTypes.contains(value.getClass()) || !indexed.contains(name)
+					|| sample.get(0).isUnindexedProperty(name)) {
+				System.out.println("Exporting selected columns of " + kind + " from whole entities");
+				return null;
+			}
+			projection.add(new PropertyProjection(name, value.getClass()));
 		}
-		if (value.contains(",")) {
-			value = value.replaceAll(",", ";");
+		System.out.println("Exporting " + kind + " with a projection of " + projected);
+		return projection;
+	}
+
+	/**
+	 * Issues a keys-only query for the property metadata of the kind. The key names
+	 * are the property names, so the header of the kind is known before any of its
+	 * entities are fetched. The metadata only covers indexed properties; unindexed
+	 * ones are discovered while the entities are written.
+	 */
+	private List<String> getPropertyNames(String kind) {
+		ArrayList<String> propertyNames = new ArrayList<>();
+		Query q = new Query(Entities.PROPERTY_METADATA_KIND)
+				.setAncestor(Entities.createKindKey(kind)).setKeysOnly();
+		FetchOptions options = FetchOptions.Builder
+				.withPrefetchSize(PrefetchSize);
+		for (Entity e : ds.prepare(q).asIterable(options))
+			propertyNames.add(e.getKey().getName());
+		return propertyNames;
+	}
+
+	/**
+	 * Fetches the kinds in the datastore, except for the ones that are never exported.
+	 */
+	private List<String> getExportedKinds() {
+
+		// fetch kinds in datastore
+		List<String> kinds = getKinds();
+
+		for (String s : kinds) {
+			System.out.println("Kind: " + s);
 		}
-		writer.write(value);
+
+		// exclude kinds that have huge amounts of data or aren't necessary
+		kinds.remove(HttpSessionKind);
+		kinds.remove(StatKindCompositeIndex);
+		kinds.remove(StatKindIsRootEntity);
+		kinds.remove(StatKindNotRootEntity);
+		kinds.remove(StatKind);
+		kinds.remove(StatPropertyNameKind);
+		kinds.remove(StatPropertyTypeKind);
+		kinds.remove(StatPropertyTypePropertyNameKind);
+		kinds.remove(StatPropertyType);
+		kinds.remove(StatTotal);
+		kinds.remove(BlobFileIndex);
+		kinds.remove(BlobInfo);
+		kinds.remove(StatNamespace);
+		kinds.remove("HITcontent");
+		return kinds;
 	}
 
 	/**
@@ -356,4 +1229,66 @@ public class DatastoreExporter extends RemoteDatastoreClient {
 			kinds.add(e.getKey().getName());
 		return kinds;
 	}
+
+	// ------------------------------------------------------------------------------------------------------
+	// Nested classes
+	// ------------------------------------------------------------------------------------------------------
+
+	/**
+	 * Thrown when the rows of a projection query do not stand for the entities of a kind one to
+	 * one, so that the kind has to be exported from whole entities.
+	 */
+	private static class UnprojectableKindException extends IOException {
+
+		private static final long serialVersionUID = 1L;
+
+		UnprojectableKindException(String message) {
+			super(message);
+		}
+
+		UnprojectableKindException(String message, Throwable cause) {
+			super(message, cause);
+		}
+	}
+
+	/**
+	 * The state shared by the parts of a kind while it is being exported.
+	 */
+	private static class KindExport {
+
+		final String kind;
+		final KindWriter writer;
+		final ExportManifest manifest;
+		final String timestampProperty;
+		final Object since;
+		final List<PropertyProjection> projection;
+		final ArrayDeque<MarkedCheckpoint> marked = new ArrayDeque<>();
+		volatile boolean abandoned;
+
+		KindExport(String kind, KindWriter writer, ExportManifest manifest,
+				String timestampProperty, Object since, List<PropertyProjection> projection) {
+			this.kind = kind;
+			this.writer = writer;
+			this.manifest = manifest;
+			this.timestampProperty = timestampProperty;
+			this.since = since;
+			this.projection = projection;
+		}
+	}
+
+	/**
+	 * A checkpoint of the first part which waits for the rows before its mark to be in the file.
+	 */
+	private static class MarkedCheckpoint {
+
+		final long mark;
+		final PartCheckpoint checkpoint;
+		final List<String> columns;
+
+		MarkedCheckpoint(long mark, PartCheckpoint checkpoint, List<String> columns) {
+			this.mark = mark;
+			this.checkpoint = checkpoint;
+			this.columns = columns;
+		}
+	}
 }
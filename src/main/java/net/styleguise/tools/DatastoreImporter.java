@@ -1,28 +1,45 @@
 package net.styleguise.tools;
 
-import java.io.BufferedReader;
+import java.io.BufferedInputStream;
+import java.io.CharArrayReader;
 import java.io.Console;
-import java.io.FileReader;
+import java.io.FilterInputStream;
 import java.io.IOException;
-import java.lang.reflect.Field;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.Charset;
 import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Date;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Set;
-
-import javax.persistence.OneToMany;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
 
 import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.Key;
-import com.google.appengine.api.datastore.KeyFactory;
 import com.google.appengine.api.datastore.Text;
+import com.google.apphosting.api.ApiProxy.RequestTooLargeException;
 
 /**
  * Loads CSV data files into a GAE datastore. The datastore can be the Dev Server running in Eclipse
@@ -58,6 +75,16 @@ public class DatastoreImporter extends RemoteDatastoreClient {
 	//------------------------------------------------------------------------------------------------------
 
 	private static final int EntityBufferSize = 500;
+	private static final int DefaultPutsInFlight = 32;
+	private static final int MinBatchSize = 10;
+	private static final long PollMillis = 10;
+	private static final long DefaultMaxBatchBytes = 2 * 1024 * 1024;
+	private static final int PropertyOverhead = 8;
+	private static final int KeyOverhead = 32;
+	private static final int FixedValueSize = 10;
+	private static final String TooBig = "too big";
+	private static final int GzipBufferSize = 64 * 1024;
+	private static final Batch EndOfBatches = new Batch(null, null, 0);
 	private static final String EMPTY = "";
 	public static final String Localhost = "localhost";
 	public static final int DevRemoteApiPort = 8888;
@@ -67,7 +94,7 @@ public class DatastoreImporter extends RemoteDatastoreClient {
 	//------------------------------------------------------------------------------------------------------
 
 	/**
-	 * Prompts the user for a directory and then loads the CSV files within that
+	 * Prompts the user for a directory and then loads the CSV files and entity dumps within that
 	 * directory into the Dev datastore running on the localhost on port 8888.
 	 */
 	public static void main(String[] args) throws Exception {
@@ -76,7 +103,7 @@ public class DatastoreImporter extends RemoteDatastoreClient {
 		Path persistenceXmlFile = Paths.get(console.readLine("Path to JPA persistence XML file: "));
 		List<Path> dataFiles = new ArrayList<>();
 		try(
-			DirectoryStream<Path> ds = Files.newDirectoryStream(dataDir);
+			DirectoryStream<Path> ds = Files.newDirectoryStream(dataDir, "*.{csv,csv.gz,entities}");
 			DatastoreImporter importer = new DatastoreImporter(
 					Localhost, 
 					DevRemoteApiPort, 
@@ -91,6 +118,11 @@ public class DatastoreImporter extends RemoteDatastoreClient {
 	//------------------------------------------------------------------------------------------------------
 	
 	private Path persistenceXmlFile;
+	private final HashMap<String, Class<?>> mappedKinds = new HashMap<>();
+	private int importThreads = Runtime.getRuntime().availableProcessors();
+	private int maxPutsInFlight = DefaultPutsInFlight;
+	private long maxBatchBytes = DefaultMaxBatchBytes;
+	private final ExecutorService deleter = Executors.newCachedThreadPool(newThreadFactory("import-deleter"));
 
 	//------------------------------------------------------------------------------------------------------
 	//Constructors
@@ -102,48 +134,258 @@ public class DatastoreImporter extends RemoteDatastoreClient {
 		this.persistenceXmlFile = persistenceXmlFile;
 	}
 
+	/**
+	 * Loads into the datastore of the current thread's API environment, e.g. a local datastore
+	 * set up by the SDK's LocalServiceTestHelper.
+	 */
+	public DatastoreImporter(Path persistenceXmlFile){
+		this.persistenceXmlFile = persistenceXmlFile;
+	}
+
 	//------------------------------------------------------------------------------------------------------
 	//Public methods
 	//------------------------------------------------------------------------------------------------------
 
-	public void importData(List<Path> csvFiles) throws IOException {
+	/**
+	 * Decodes the CSV files of the kind using the given persistent class, in addition to the
+	 * classes of the persistence XML file (whose kinds are their simple names). Useful when a
+	 * kind is not named after its class.
+	 */
+	public void mapKind(String kind, Class<?> persistentClass){
+		mappedKinds.put(kind, persistentClass);
+	}
+
+	/**
+	 * Sets the number of threads which parse rows into entities.
+	 */
+	public void setImportThreads(int importThreads){
+		if( importThreads < 1 )
+			throw new IllegalArgumentException("Invalid number of import threads: " + importThreads);
+		this.importThreads = importThreads;
+	}
 
-		List<Class<?>> persistentClasses = PersistenceXmlReader.readClasses(persistenceXmlFile);
-		HashMap<String, Class<?>> kindToClassMap = new HashMap<>(persistentClasses.size());
-		for( Class<?> clazz : persistentClasses )
-			kindToClassMap.put(clazz.getSimpleName(), clazz);
+	/**
+	 * Sets the largest number of asynchronous put RPCs that may be in flight at the same time.
+	 * The importer starts with a single put and raises the number while the datastore keeps up.
+	 */
+	public void setMaxPutsInFlight(int maxPutsInFlight){
+		if( maxPutsInFlight < 1 )
+			throw new IllegalArgumentException("Invalid number of puts in flight: " + maxPutsInFlight);
+		this.maxPutsInFlight = maxPutsInFlight;
+	}
+
+	/**
+	 * Sets the estimated number of bytes above which the entities are put in another batch.
+	 */
+	public void setMaxBatchBytes(long maxBatchBytes){
+		if( maxBatchBytes < 1 )
+			throw new IllegalArgumentException("Invalid batch size: " + maxBatchBytes);
+		this.maxBatchBytes = maxBatchBytes;
+	}
 
-		ArrayList<Entity> entityBuffer = new ArrayList<>(EntityBufferSize);
+	/**
+	 * Loads the CSV files in a pipeline of three stages:
+	 * <ol>
+	 * 	<li>the calling thread cuts the files into blocks of complete rows (or, for entity dumps
+	 * 	written by {@link KindEntityWriter}, into the blocks of records listed in their index); large
+	 * 	uncompressed files are split into ranges which the parser threads read from a memory mapping</li>
+	 * 	<li>the parser threads turn the rows of each block into entities and group them into batches</li>
+	 * 	<li>the writer thread puts the batches asynchronously, keeping a bounded number of puts in flight</li>
+	 * </ol>
+	 * The number of puts in flight and the number of entities per put are adapted to how the
+	 * datastore copes by an {@link AdaptiveWriteController}; throttled puts are retried.
+	 * The stages are connected by bounded queues, so a slow stage holds back the stages before it.
+	 * A file which fails to parse or to be written is reported once all files have been loaded; the
+	 * other files are loaded regardless, and an IOException is thrown at the end. The progress is tracked in {@link TransferMetrics}, whose
+	 * ETA is based on the bytes of the files read so far.
+	 */
+	public void importData(List<Path> csvFiles) throws IOException {
+
+		HashMap<String, Class<?>> kindToClassMap = new HashMap<>();
+		if( persistenceXmlFile != null )
+			for( Class<?> clazz : PersistenceXmlReader.readClasses(persistenceXmlFile) )
+				kindToClassMap.put(clazz.getSimpleName(), clazz);
+		kindToClassMap.putAll(mappedKinds);
 
+		final TransferMetrics metrics = startMetrics("import");
+		HashMap<Path, Long> fileSizes = new HashMap<>();
 		for( Path csv : csvFiles ){
-			String kind = parseFileNameForKind(csv);
-			Class<?> persistentClass = kindToClassMap.get(kind);
-			if( persistentClass == null ){
-				System.out.println("Skipping " + kind + " because no respective Java class found");
-				continue;
+			if( isDump(csv) || kindToClassMap.containsKey(parseFileNameForKind(csv)) ){
+				fileSizes.put(csv, Files.size(csv));
+				metrics.addExpectedInput(fileSizes.get(csv));
 			}
+		}
 
-			System.out.println("Loading " + csv);
+		final BlockingQueue<Batch> batches = new ArrayBlockingQueue<>(maxPutsInFlight * 2);
+		final Semaphore blocks = new Semaphore(importThreads * 2);
+		final int maxBlocks = importThreads * 2;
+		ExecutorService parsers = Executors.newFixedThreadPool(importThreads, newThreadFactory("import-parser"));
+		ExecutorService writer = Executors.newSingleThreadExecutor(newThreadFactory("import-writer"));
+		ArrayList<FileImport> imports = new ArrayList<>();
+		metrics.watch("blocks", new TransferMetrics.Gauge(){
+			@Override
+			public long get(){
+				return maxBlocks - blocks.availablePermits();
+			}
+		});
+		watchBatches(metrics, batches);
+
+		try{
+			final AdaptiveWriteController control = new AdaptiveWriteController(1, maxPutsInFlight,
+					MinBatchSize, EntityBufferSize);
+			Future<?> writing = writer.submit(new Callable<Void>(){
+				@Override
+				public Void call() throws InterruptedException{
+					new BatchWriter(batches, control).run();
+					return null;
+				}
+			});
+
+			for( Path csv : csvFiles ){
+				boolean dump = isDump(csv);
+				String kind = parseFileNameForKind(csv);
+				Class<?> persistentClass = kindToClassMap.get(kind);
+				if( persistentClass == null && !dump ){
+					System.out.println("Skipping " + kind + " because no respective Java class found");
+					continue;
+				}
 
-			try( BufferedReader reader = new BufferedReader(new FileReader(csv.toFile())) ){
+				System.out.println("Loading " + csv);
+				FileImport file = new FileImport(kind, csv);
+				imports.add(file);
+				metrics.startKind(kind);
+				try{
+					if( dump )
+						readDump(file, parsers, blocks, batches);
+					else
+						readFile(file, persistentClass, parsers, blocks, batches);
+				}
+				catch( IOException | RuntimeException e ){
+					file.fail(e);
+				}
+				// the bytes which were not handed to the parsers (e.g. of a file which failed) are done as well
+				metrics.recordInput(Math.max(0, fileSizes.get(csv) - file.input));
+			}
 
-				String line = reader.readLine(); //read the header line
-				String[] propertyNames = line.split(DatastoreExporter.FieldSeparator);
+			parsers.shutdown();
+			parsers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+			batches.put(EndOfBatches);
+			writing.get();
+			System.out.println("Wrote: " + control);
+		}
+		catch( InterruptedException e ){
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while importing", e);
+		}
+		catch( ExecutionException e ){
+			throw new IOException("Failed to write entities", e.getCause());
+		}
+		finally{
+			parsers.shutdownNow();
+			writer.shutdownNow();
+			finishMetrics(metrics);
+		}
+		report(imports);
+	}
 
-				while( (line = reader.readLine()) != null ){
-					Entity e = readEntity(persistentClass, propertyNames, line);
-					entityBuffer.add(e);
-					if( entityBuffer.size() >= EntityBufferSize ){
-						ds.put(entityBuffer);
-						entityBuffer.clear();
-					}
+	/**
+	 * Puts the entities taken from the queue until it is closed, e.g. while an exporter
+	 * connected to another datastore fills it (see {@link DatastoreMigrator}). The entities
+	 * are grouped into batches and put like the entities of a file; the progress is reported
+	 * per kind. No persistent classes are needed since the entities are already typed. The
+	 * entities are moved into the application being imported into (see {@link EntityDecoder#rekey}).
+	 * A kind which fails is skipped from then on, and an IOException is thrown at the end.
+	 */
+	public void importData(final EntityQueue queue) throws IOException {
+
+		final BlockingQueue<Batch> batches = new ArrayBlockingQueue<>(maxPutsInFlight * 2);
+		ExecutorService writer = Executors.newSingleThreadExecutor(newThreadFactory("import-writer"));
+		LinkedHashMap<String, FileImport> imports = new LinkedHashMap<>();
+		TransferMetrics metrics = startMetrics("import");
+		metrics.watch("stream", new TransferMetrics.Gauge(){
+			@Override
+			public long get(){
+				return queue.size();
+			}
+		});
+		watchBatches(metrics, batches);
+
+		try{
+			final AdaptiveWriteController control = new AdaptiveWriteController(1, maxPutsInFlight,
+					MinBatchSize, EntityBufferSize);
+			Future<?> writing = writer.submit(new Callable<Void>(){
+				@Override
+				public Void call() throws InterruptedException{
+					new BatchWriter(batches, control).run();
+					return null;
+				}
+			});
+
+			EntityQueue.KindBatch kindBatch;
+			while( (kindBatch = queue.take()) != null ){
+				FileImport kind = imports.get(kindBatch.kind);
+				if( kind == null ){
+					System.out.println("Loading " + kindBatch.kind);
+					kind = new FileImport(kindBatch.kind, null);
+					imports.put(kindBatch.kind, kind);
+					metrics.startKind(kindBatch.kind);
 				}
+				if( kind.failed() )
+					continue;
+				BatchBuilder builder = new BatchBuilder(kind, batches);
+				for( Entity entity : kindBatch.entities )
+					builder.add(EntityDecoder.rekey(entity));
+				builder.flush();
 			}
+
+			batches.put(EndOfBatches);
+			writing.get();
+			System.out.println("Wrote: " + control);
+		}
+		catch( InterruptedException e ){
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while importing", e);
+		}
+		catch( ExecutionException e ){
+			throw new IOException("Failed to write entities", e.getCause());
+		}
+		finally{
+			writer.shutdownNow();
+			finishMetrics(metrics);
 		}
+		report(imports.values());
+	}
 
-		if( entityBuffer.size() > 0 )
-			ds.put(entityBuffer);
-		System.out.println("Finished");
+	/**
+	 * Deletes the entities of the keys, e.g. the ones which the source of a sync lacks (see
+	 * {@link DatastoreExporter#syncData}). May be called on any thread; the delete is issued on a
+	 * thread connected to this importer's datastore. A delete which is throttled is retried as
+	 * two deletes of half the keys.
+	 */
+	public void deleteKeys(final List<Key> keys) throws IOException {
+		Future<?> deleting = deleter.submit(new Callable<Void>(){
+			@Override
+			public Void call(){
+				delete(keys);
+				return null;
+			}
+		});
+		try{
+			deleting.get();
+		}
+		catch( InterruptedException e ){
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while deleting", e);
+		}
+		catch( ExecutionException e ){
+			throw new IOException("Failed to delete " + keys.size() + " keys", e.getCause());
+		}
+	}
+
+	@Override
+	public void close() throws Exception {
+		deleter.shutdownNow();
+		super.close();
 	}
 
 	//------------------------------------------------------------------------------------------------------
@@ -156,177 +398,614 @@ public class DatastoreImporter extends RemoteDatastoreClient {
 	}
 
 	/**
-	 * Converts a CSV row into a datastore Entity.
-	 * @param javaClass the java class that is mapped to the datastore kind
-	 * @param propertyNames defines the order of columns within the row
-	 * @param row the comma separated values that make up the entity
+	 * Tokenizes a row of comma separated values using a {@link CsvParser}.
+	 * Static so it can be easily unit tested.
 	 */
-	Entity readEntity(Class<?> javaClass, String[] propertyNames, String row){
+	static List<String> tokenize(String csvRow){
 
-		Entity entity = null;
-		List<String> tokens = tokenize(row);
+		ArrayList<String> tokens = new ArrayList<>();
+		try( CsvParser parser = new CsvParser(new StringReader(csvRow)) ){
+			if( parser.next() )
+				for( int i = 0; i < parser.getTokenCount(); i++ )
+					tokens.add(parser.getString(i));
+			else
+				tokens.add(EMPTY);
+		}
+		catch( IOException e ){
+			throw new RuntimeException(e);
+		}
+		return tokens;
+	}
 
-		int i = 0;
-		for( String propertyName : propertyNames ){
+	//------------------------------------------------------------------------------------------------------
+	//Private methods
+	//------------------------------------------------------------------------------------------------------
 
-			String token = tokens.get(i);
+	/**
+	 * Cuts the file into blocks of rows and hands every block to a parser thread. The header
+	 * is parsed up front, so the decoder is compiled once for the whole file. Uncompressed files
+	 * are split into ranges which the parser threads read from a memory mapping of the file;
+	 * compressed files are read in blocks by the calling thread.
+	 */
+	private void readFile(final FileImport file, Class<?> persistentClass, ExecutorService parsers,
+			final Semaphore blocks, final BlockingQueue<Batch> batches) throws IOException, InterruptedException{
 
-			if( Entity.KEY_RESERVED_PROPERTY.equals(propertyName) ){
-				Key key = KeyFactory.stringToKey(token);
-				entity = new Entity(key);
-			}
-			else if( DatastoreExporter.Null.equals(token) ){
-				entity.setProperty(propertyName, null);
+		boolean gzip = isGzip(file.csv);
+		if( !gzip && CsvFileSplitter.isSupported(Charset.defaultCharset()) ){
+			readMappedFile(file, persistentClass, parsers, blocks, batches);
+			return;
+		}
+
+		CountingInputStream in = new CountingInputStream(Files.newInputStream(file.csv));
+		try( CsvBlockReader reader = new CsvBlockReader(openReader(in, gzip)) ){
+
+			char[] block = reader.nextBlock();
+			if( block == null )
+				return;
+			CsvParser parser = new CsvParser(new CharArrayReader(block), block.length);
+			EntityDecoder decoder = readHeader(persistentClass, parser);
+			if( decoder == null )
+				return;
+
+			while( block != null && !file.failed() ){
+				parseLater(file, decoder, parser != null ? parser : new CsvParser(new CharArrayReader(block), block.length),
+						in.count - file.input, parsers, blocks, batches);
+				parser = null;
+				block = reader.nextBlock();
 			}
-			else{
-				Field field = BeanUtil.getField(javaClass, propertyName);
-				Class<?> fieldType = field.getType();
-				Object propertyValue;
-				if( isListOrSet(fieldType) ){
-					Class<?> classOfObjectsInColletion;
-					if( field.isAnnotationPresent(OneToMany.class) ){
-						classOfObjectsInColletion = Key.class;
+		}
+	}
+
+	/**
+	 * Splits the file into ranges of complete rows (see {@link CsvFileSplitter}) and hands every
+	 * range to a parser thread, which decodes it straight from a memory mapping of the file.
+	 */
+	private void readMappedFile(FileImport file, Class<?> persistentClass, ExecutorService parsers,
+			Semaphore blocks, BlockingQueue<Batch> batches) throws IOException, InterruptedException{
+
+		try( CsvFileSplitter splitter = new CsvFileSplitter(file.csv, Charset.defaultCharset()) ){
+
+			EntityDecoder decoder = readHeader(persistentClass, splitter.newHeaderParser());
+			if( decoder == null )
+				return;
+
+			long[] bounds = splitter.split(parsers, CsvFileSplitter.DefaultRangeSize);
+			for( int i = 0; i + 1 < bounds.length && !file.failed(); i++ )
+				parseLater(file, decoder, splitter.newParser(bounds[i], bounds[i + 1]),
+						bounds[i + 1] - file.input, parsers, blocks, batches);
+		}
+	}
+
+	/**
+	 * Reads the header line and compiles the decoder for the property names in it.
+	 * @return null if the file is empty
+	 */
+	private static EntityDecoder readHeader(Class<?> persistentClass, CsvParser parser) throws IOException{
+		if( !parser.next() )
+			return null;
+		String[] propertyNames = new String[parser.getTokenCount()];
+		for( int i = 0; i < propertyNames.length; i++ )
+			propertyNames[i] = parser.getString(i);
+		return new EntityDecoder(persistentClass, propertyNames);
+	}
+
+	/**
+	 * Hands the rows of the parser to a parser thread, waiting while too many blocks are pending.
+	 * @param input the bytes of the file the rows were read from, which are counted as input
+	 * once the rows have been parsed
+	 */
+	private void parseLater(final FileImport file, final EntityDecoder decoder, final CsvParser parser,
+			final long input, ExecutorService parsers, final Semaphore blocks,
+			final BlockingQueue<Batch> batches) throws InterruptedException{
+
+		blocks.acquire();
+		try{
+			parsers.execute(new Runnable(){
+				@Override
+				public void run(){
+					try{
+						parseBlock(file, decoder, parser, batches);
 					}
-					else{
-						classOfObjectsInColletion = BeanUtil.getParameterizedTypeArguments(field).get(0);
+					finally{
+						metrics.recordInput(input);
+						blocks.release();
 					}
-					propertyValue = readMultiValue(classOfObjectsInColletion, token);
-				}
-				else{
-					propertyValue = readSingleValue(fieldType, token);
 				}
-				entity.setProperty(propertyName, propertyValue);
-			}
-			i++;
+			});
+			file.input += input;
+		}
+		catch( RuntimeException e ){
+			blocks.release();
+			throw e;
 		}
+	}
 
-		return entity;
+	private static void watchBatches(TransferMetrics metrics, final BlockingQueue<Batch> batches){
+		metrics.watch("batches", new TransferMetrics.Gauge(){
+			@Override
+			public long get(){
+				return batches.size();
+			}
+		});
 	}
 
 	/**
-	 * Tokenizes a row of comma separated values. Tries to follow most of the rules here:
-	 * http://en.wikipedia.org/wiki/Comma-separated_values
-	 * but it does not support rows which have embedded carriage returns/new lines
-	 * so the DatastoreExporter escapes \r and \n into __R__ and __N__ respectively.
-	 * Static so it can be easily unit tested.
+	 * Prints the outcome of every file.
+	 * @throws IOException if any file failed, caused by the error of the first one
 	 */
-	static List<String> tokenize(String csvRow){
+	private static void report(Collection<FileImport> imports) throws IOException{
+		FileImport firstFailed = null;
+		int failed = 0;
+		for( FileImport file : imports ){
+			if( file.error == null )
+				System.out.println("Loaded " + file.name + ": " + file.written + " entities");
+			else{
+				System.out.println("Failed to load " + file.name + " (" + file.written + " of "
+						+ file.parsed + " entities written): " + file.error);
+				if( failed++ == 0 )
+					firstFailed = file;
+			}
+		}
+		System.out.println("Finished");
+		if( firstFailed != null )
+			throw new IOException("Failed to load " + firstFailed.name
+					+ (failed > 1 ? " and " + (failed - 1) + " more" : ""), firstFailed.error);
+	}
 
-		ArrayList<String> tokens = new ArrayList<>();
-		StringBuilder token = new StringBuilder();
-		boolean inQuotedString = false;
+	/**
+	 * Opens the file for reading, decompressing it on the fly if it starts with the gzip magic
+	 * number (as the files written by a compressing exporter do, see {@link #isGzip(Path)}).
+	 */
+	private static Reader openReader(InputStream file, boolean gzip) throws IOException{
+		InputStream in = new BufferedInputStream(file, GzipBufferSize);
+		try{
+			if( gzip )
+				in = new GZIPInputStream(in, GzipBufferSize);
+			return new InputStreamReader(in);
+		}
+		catch( IOException | RuntimeException e ){
+			in.close();
+			throw e;
+		}
+	}
+
+	private void delete(List<Key> keys){
+		try{
+			ds.delete(keys);
+		}
+		catch( RuntimeException e ){
+			if( !AdaptiveWriteController.isRetryable(e) || keys.size() == 1 )
+				throw e;
+			delete(keys.subList(0, keys.size() / 2));
+			delete(keys.subList(keys.size() / 2, keys.size()));
+		}
+	}
 
-		for( int i = 0; i < csvRow.length(); i++ ){
+	private static boolean isDump(Path file){
+		return file.getFileName().toString().endsWith(KindEntityWriter.FileExtension);
+	}
 
-			char c = csvRow.charAt(i);
-			switch(c){
+	private static boolean isGzip(Path file) throws IOException{
+		try( InputStream in = Files.newInputStream(file) ){
+			int magic = in.read() | (in.read() << 8);
+			return magic == GZIPInputStream.GZIP_MAGIC;
+		}
+	}
 
-			case DatastoreExporter.DoubleQuoteChar:
-				if( inQuotedString ){
-					if( nextCharIsDoubleQuote(i, csvRow) ){ //escaped double-quote
-						token.append(c);
-						i++; //"consume" the next double-quote
-					}
-					else{ //end of quoted string
-						inQuotedString = false;
-					}
+	/**
+	 * Reads the blocks of an entity dump (see {@link KindEntityWriter}) and hands every block to a
+	 * parser thread. The entities carry their own keys and typed values, so no persistent class is needed.
+	 */
+	private void readDump(final FileImport file, ExecutorService parsers,
+			final Semaphore blocks, final BlockingQueue<Batch> batches) throws IOException, InterruptedException{
+
+		try( EntityDumpReader reader = new EntityDumpReader(file.csv) ){
+			for( int i = 0; i < reader.getBlockCount() && !file.failed(); i++ ){
+				final byte[] block = reader.readBlock(i);
+				blocks.acquire();
+				try{
+					parsers.execute(new Runnable(){
+						@Override
+						public void run(){
+							try{
+								decodeBlock(file, block, batches);
+							}
+							finally{
+								metrics.recordInput(block.length);
+								blocks.release();
+							}
+						}
+					});
+					file.input += block.length;
 				}
-				else{
-					inQuotedString = true;
+				catch( RuntimeException e ){
+					blocks.release();
+					throw e;
 				}
-				break;
+			}
+		}
+	}
 
-			case DatastoreExporter.FieldSeparatorChar:
-				if( inQuotedString ){
-					token.append(c);
-				}
-				else{
-					tokens.add(token.toString());
-					token.setLength(0);
-				}
-				break;
+	/**
+	 * Decodes the rows of a block and queues them for the writer in batches.
+	 */
+	private void parseBlock(FileImport file, EntityDecoder decoder, CsvParser parser, BlockingQueue<Batch> batches){
+		try{
+			BatchBuilder builder = new BatchBuilder(file, batches);
+			while( !file.failed() && parser.next() ){
+				if( parser.getTokenCount() == 1 && parser.getLength(0) == 0 ) //blank line
+					continue;
+				builder.add(decoder.decode(parser));
+			}
+			builder.flush();
+		}
+		catch( InterruptedException e ){
+			Thread.currentThread().interrupt();
+		}
+		catch( IOException | RuntimeException e ){
+			file.fail(e);
+		}
+	}
 
-			default:
-				token.append(c);
+	/**
+	 * Decodes the records of an entity dump block and queues them for the writer in batches. The
+	 * entities are moved into the application being imported into (see {@link EntityDecoder#rekey}).
+	 */
+	private void decodeBlock(FileImport file, byte[] block, BlockingQueue<Batch> batches){
+		try{
+			BatchBuilder builder = new BatchBuilder(file, batches);
+			for( Entity entity : EntityDumpReader.decode(block) ){
+				if( file.failed() )
+					return;
+				builder.add(EntityDecoder.rekey(entity));
 			}
+			builder.flush();
+		}
+		catch( InterruptedException e ){
+			Thread.currentThread().interrupt();
 		}
+		catch( IOException | RuntimeException e ){
+			file.fail(e);
+		}
+	}
 
-		tokens.add(token.toString());
-		return tokens;
+	/**
+	 * @return whether the put failed because its request was too large
+	 */
+	private static boolean isTooLarge(Throwable e){
+		if( e instanceof RequestTooLargeException )
+			return true;
+		return e instanceof IllegalArgumentException && e.getMessage() != null
+				&& e.getMessage().contains(TooBig);
+	}
+
+	/**
+	 * Estimates the size of the entity once encoded for a put: the encoded key plus, for
+	 * every value, the property name, the value and a few bytes of framing. A property
+	 * with several values repeats its name for each of them. The exporter uses it to size
+	 * the entities it streams, which are never written as CSV.
+	 */
+	static long estimateSize(Entity entity){
+		long size = estimateSize(entity.getKey());
+		for( Map.Entry<String, Object> property : entity.getProperties().entrySet() ){
+			int nameSize = property.getKey().length() + PropertyOverhead;
+			Object value = property.getValue();
+			if( value instanceof Collection ){
+				for( Object element : (Collection<?>) value )
+					size += nameSize + estimateValueSize(element);
+			}
+			else{
+				size += nameSize + estimateValueSize(value);
+			}
+		}
+		return size;
+	}
+
+	private static long estimateSize(Key key){
+		long size = KeyOverhead;
+		for( ; key != null; key = key.getParent() ){
+			size += key.getKind().length() + PropertyOverhead;
+			size += key.getName() != null ? utf8Length(key.getName()) : FixedValueSize;
+		}
+		return size;
+	}
+
+	private static long estimateValueSize(Object value){
+		if( value instanceof String )
+			return utf8Length((String) value);
+		if( value instanceof Text )
+			return utf8Length(((Text) value).getValue());
+		if( value instanceof Key )
+			return estimateSize((Key) value);
+		return FixedValueSize;
+	}
+
+	private static long utf8Length(String s){
+		long length = s.length();
+		for( int i = 0; i < s.length(); i++ ){
+			char c = s.charAt(i);
+			if( c >= 0x800 )
+				length += 2;
+			else if( c >= 0x80 )
+				length += 1;
+		}
+		return length;
+	}
+
+	private static <T> void addAll(Collection<T> collection, Iterator<T> i){
+		while( i.hasNext() )
+			collection.add(i.next());
 	}
 
 	//------------------------------------------------------------------------------------------------------
-	//Private methods
+	//Nested classes
 	//------------------------------------------------------------------------------------------------------
 
 	/**
-	 * Converts a string token into a Java object.
-	 * @param type the type to which the token should be coerced
-	 * @param token the property value
-	 * @return java object
+	 * The progress of loading one file (or one kind streamed from another datastore). The
+	 * first error stops the file from being parsed any further.
 	 */
-	private Object readSingleValue(Class<?> type, String token){
+	private static class FileImport {
+
+		final String kind;
+		final String name;
+		final Path csv;
+		final AtomicLong parsed = new AtomicLong();
+		final AtomicLong written = new AtomicLong();
+		volatile Throwable error;
+		long input; //bytes handed to the parsers so far, only used by the reading thread
+
+		/**
+		 * @param csv the file, or null if the entities are streamed
+		 */
+		FileImport(String kind, Path csv){
+			this.kind = kind;
+			this.name = csv == null ? kind : csv.toString();
+			this.csv = csv;
+		}
 
-		if( DatastoreExporter.Null.equals(token) )
-			return null;
+		synchronized void fail(Throwable e){
+			if( error == null )
+				error = e;
+		}
 
-		if( type.isEnum() )
-			return token;
+		boolean failed(){
+			return error != null;
+		}
+	}
 
-		if( type == String.class )
-			return unescape(token);
+	/**
+	 * Entities of one file which are put in a single RPC.
+	 */
+	private static class Batch {
+
+		final FileImport file;
+		final List<Entity> entities;
+		final long bytes;
+		int attempts;
+		long startNanos;
+		long dueNanos;
+		Future<List<Key>> put;
+
+		/**
+		 * @param bytes the estimated size of the entities
+		 */
+		Batch(FileImport file, List<Entity> entities, long bytes){
+			this.file = file;
+			this.entities = entities;
+			this.bytes = bytes;
+		}
 
-		if( type == Date.class )
-			return new Date(Long.parseLong(token));
+		/**
+		 * A part of this batch, which inherits the attempts made so far.
+		 */
+		Batch slice(int from, int to){
+			Batch slice = new Batch(file, entities.subList(from, to), bytes * (to - from) / entities.size());
+			slice.attempts = attempts;
+			return slice;
+		}
+	}
 
-		if( type == Long.class || type == Long.TYPE )
-			return Long.parseLong(token);
+	/**
+	 * Groups the entities decoded from one block into batches and queues them for the writer.
+	 * A batch is queued once it holds EntityBufferSize entities or once the next entity would
+	 * take its estimated size over the byte budget.
+	 */
+	private class BatchBuilder {
 
-		if( type == Boolean.class || type == Boolean.TYPE )
-			return Boolean.valueOf(token);
+		private final FileImport file;
+		private final BlockingQueue<Batch> batches;
+		private ArrayList<Entity> entities = new ArrayList<>(EntityBufferSize);
+		private long bytes;
 
-		if( type == Integer.class || type == Integer.TYPE )
-			return Integer.parseInt(token);
+		BatchBuilder(FileImport file, BlockingQueue<Batch> batches){
+			this.file = file;
+			this.batches = batches;
+		}
 
-		if( type == Double.class || type == Double.TYPE )
-			return Double.parseDouble(token);
+		void add(Entity entity) throws InterruptedException{
+			long size = estimateSize(entity);
+			if( !entities.isEmpty() && bytes + size > maxBatchBytes )
+				flush();
+			entities.add(entity);
+			bytes += size;
+			if( entities.size() >= EntityBufferSize )
+				flush();
+		}
 
-		if( type == Text.class )
-			return new Text(unescape(token));
+		void flush() throws InterruptedException{
+			if( entities.isEmpty() )
+				return;
+			file.parsed.addAndGet(entities.size());
+			batches.put(new Batch(file, entities, bytes));
+			entities = new ArrayList<>(EntityBufferSize);
+			bytes = 0;
+		}
+	}
 
-		if( type == Key.class )
-			return KeyFactory.stringToKey(token);
+	/**
+	 * Puts the queued batches asynchronously until the end marker is taken. A batch is
+	 * sliced into puts of the controller's batch size, and no more puts are started than
+	 * the controller allows in flight. A put which is rejected for being too large is split
+	 * in two halves which are put in its place; a put which is throttled is retried after
+	 * a backoff.
+	 */
+	private class BatchWriter {
+
+		private final BlockingQueue<Batch> batches;
+		private final AdaptiveWriteController control;
+		private final ArrayDeque<Batch> inFlight = new ArrayDeque<>();
+		private final ArrayDeque<Batch> ready = new ArrayDeque<>();
+		private final PriorityQueue<Batch> delayed = new PriorityQueue<>(11, new Comparator<Batch>(){
+			@Override
+			public int compare(Batch a, Batch b){
+				return Long.signum(a.dueNanos - b.dueNanos);
+			}
+		});
 
-		return token;
-	}
+		BatchWriter(BlockingQueue<Batch> batches, AdaptiveWriteController control){
+			this.batches = batches;
+			this.control = control;
+		}
 
-	private String unescape(String token){
-		return token.replaceAll(DatastoreExporter.EscapedCarriageReturn, DatastoreExporter.CarriageReturn)
-					.replaceAll(DatastoreExporter.EscapedNewline, DatastoreExporter.Newline);
-	}
+		void run() throws InterruptedException{
+			boolean end = false;
+			while( !end || !ready.isEmpty() || !delayed.isEmpty() || !inFlight.isEmpty() ){
 
-	private Collection<Object> readMultiValue(Class<?> classOfObjectsInCollection, String token){
-		ArrayList<Object> list = new ArrayList<>();
-		String[] values = token.split(DatastoreExporter.CollectionValueSeparator);
-		for( String value : values )
-			list.add(readSingleValue(classOfObjectsInCollection, value));
-		return list;
-	}
+				completeFinished();
+				long now = System.nanoTime();
+				while( !delayed.isEmpty() && delayed.peek().dueNanos - now <= 0 )
+					ready.add(delayed.poll());
 
-	private boolean isListOrSet(Class<?> type){
-		return type == List.class || type == Set.class;
-	}
+				if( inFlight.size() >= control.getConcurrency() ){
+					complete(inFlight.poll());
+					continue;
+				}
+
+				Batch batch = ready.poll();
+				if( batch == null && !end ){
+					if( inFlight.isEmpty() && delayed.isEmpty() )
+						batch = batches.take();
+					else // keep an eye on the puts in flight and the backoffs
+						batch = batches.poll(PollMillis, TimeUnit.MILLISECONDS);
+					if( batch == EndOfBatches ){
+						end = true;
+						batch = null;
+					}
+				}
+
+				if( batch != null )
+					start(batch);
+				else if( end && delayed.isEmpty() && !inFlight.isEmpty() )
+					complete(inFlight.poll());
+				else if( end )
+					Thread.sleep(PollMillis);
+			}
+		}
 
-	private static boolean nextCharIsDoubleQuote(int i, String csvRow){
-		if( i + 1 >= csvRow.length() )
-			return false;
-		char c = csvRow.charAt(i+1);
-		return c == DatastoreExporter.DoubleQuoteChar;
+		/**
+		 * Puts the batch, unless its file has failed already, in which case the rest of the file
+		 * is dropped.
+		 */
+		private void start(Batch batch){
+			if( batch.file.failed() )
+				return;
+			int size = batch.entities.size();
+			int batchSize = control.getBatchSize();
+			if( size > batchSize ){
+				for( int from = batchSize; from < size; from += batchSize )
+					ready.add(batch.slice(from, Math.min(size, from + batchSize)));
+				batch = batch.slice(0, batchSize);
+			}
+
+			batch.startNanos = System.nanoTime();
+			metrics.recordBatch(batch.entities.size());
+			try{
+				batch.put = asyncDs.put(batch.entities);
+				inFlight.add(batch);
+			}
+			catch( RuntimeException e ){
+				failed(batch, e);
+			}
+		}
+
+		private void completeFinished() throws InterruptedException{
+			Iterator<Batch> i = inFlight.iterator();
+			while( i.hasNext() ){
+				Batch batch = i.next();
+				if( batch.put.isDone() ){
+					i.remove();
+					complete(batch);
+				}
+			}
+		}
+
+		/**
+		 * Waits for the put of the batch and records its outcome.
+		 */
+		private void complete(Batch batch) throws InterruptedException{
+			try{
+				batch.put.get();
+				long nanos = System.nanoTime() - batch.startNanos;
+				control.recordSuccess(batch.startNanos, nanos);
+				metrics.recordPut(nanos);
+				metrics.recordEntities(batch.file.kind, batch.entities.size(), batch.bytes);
+				batch.file.written.addAndGet(batch.entities.size());
+			}
+			catch( ExecutionException e ){
+				metrics.recordPut(System.nanoTime() - batch.startNanos);
+				failed(batch, e.getCause());
+			}
+		}
+
+		private void failed(Batch batch, Throwable e){
+			int size = batch.entities.size();
+			if( isTooLarge(e) && size > 1 ){
+				metrics.recordRetry();
+				ready.add(batch.slice(0, size / 2));
+				ready.add(batch.slice(size / 2, size));
+				return;
+			}
+			if( AdaptiveWriteController.isRetryable(e) ){
+				long delay = control.recordThrottled(batch.startNanos, ++batch.attempts);
+				if( delay >= 0 ){
+					metrics.recordRetry();
+					batch.dueNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay);
+					delayed.add(batch);
+					return;
+				}
+			}
+			batch.file.fail(e);
+		}
 	}
 
-	private static <T> void addAll(Collection<T> collection, Iterator<T> i){
-		while( i.hasNext() )
-			collection.add(i.next());
+	/**
+	 * Counts the bytes read from a file, which may be compressed, so that the blocks of rows
+	 * can be weighed in bytes of the file.
+	 */
+	private static class CountingInputStream extends FilterInputStream {
+
+		long count;
+
+		CountingInputStream(InputStream in){
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException{
+			int b = super.read();
+			if( b >= 0 )
+				count++;
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException{
+			int read = super.read(b, off, len);
+			if( read > 0 )
+				count += read;
+			return read;
+		}
 	}
 
 }
@@ -1,14 +1,25 @@
 package net.styleguise.tools;
 
 import java.io.Console;
+import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 public class DatastoreMigrator {
 
+	private static final int QueueCapacity = 16;
+
 	/**
 	 * Convenient utility for exporting from GAE datastore in the cloud into DevMode datastore on localhost.
+	 * The entities are either streamed straight into the DevMode datastore (see {@link #migrate}) or
+	 * exported to CSV files which are then imported.
 	 */
 	public static void main(String[] args) throws Exception {
 
@@ -21,7 +32,19 @@ public class DatastoreMigrator {
 		System.out.println("Enter host and port for the remote datastore");
 		String host = console.readLine("Host (ex. APPNAME.appspot.com): ");
 		int port = Integer.parseInt(console.readLine("Port (on GAE 443, on localhost 8888): "));
-		
+
+		if (!console.readLine("Stream directly into the local datastore without CSV files? (Y/n): ").trim().equalsIgnoreCase("n")) {
+			DatastoreExporter exporter = new DatastoreExporter(host, port, email, password);
+			if (console.readLine("Only copy the entities the local datastore lacks? (y/N): ").trim().equalsIgnoreCase("y")) {
+				boolean deleteExtras = console.readLine("Delete the entities the remote datastore lacks? (y/N): ").trim().equalsIgnoreCase("y");
+				sync(exporter, DatastoreImporter.Localhost, DatastoreImporter.DevRemoteApiPort, deleteExtras);
+			} else {
+				migrate(exporter, DatastoreImporter.Localhost, DatastoreImporter.DevRemoteApiPort);
+			}
+			exporter.close();
+			return;
+		}
+
 		System.out.println("Enter path to JPA persistence XML file");
 		Path persistenceXmlFile = Paths.get(console.readLine("File: "));
 
@@ -37,4 +60,138 @@ public class DatastoreMigrator {
 		importer.close();
 	}
 
+	/**
+	 * Copies the entities of the exporter's datastore into the datastore at the given host and
+	 * port, without intermediate files. The exporter streams its batches into a bounded
+	 * {@link EntityQueue} from which an importer puts them, so reading and writing overlap and
+	 * the migration takes about as long as the slower of the two. The exporter's settings
+	 * (export threads, sharded kinds, fetch limits) apply as for an export to files.
+	 *
+	 * The remote API is installed per thread, so the importer is connected on a thread of its own.
+	 * Must be called on the thread which constructed the exporter.
+	 */
+	public static void migrate(DatastoreExporter exporter, final String targetHost, final int targetPort) throws Exception {
+		try {
+			migrate(exporter, new Callable<DatastoreImporter>() {
+				@Override
+				public DatastoreImporter call() throws IOException {
+					return new DatastoreImporter(targetHost, targetPort, null);
+				}
+			});
+		} catch (ExecutionException e) {
+			throw new Exception("Failed to import into " + targetHost + ":" + targetPort, e.getCause());
+		}
+	}
+
+	/**
+	 * Copies the entities of the exporter's datastore into the datastore of the importer which
+	 * the factory creates, as {@link #migrate(DatastoreExporter, String, int)} does. The factory
+	 * is called on the thread which runs the importer.
+	 * @throws ExecutionException if the import failed
+	 */
+	public static void migrate(DatastoreExporter exporter, Callable<DatastoreImporter> importerFactory) throws Exception {
+		transfer(exporter, importerFactory, new Transfer() {
+			@Override
+			public void run(DatastoreExporter exporter, EntityQueue queue, Future<DatastoreImporter> target) throws IOException {
+				exporter.exportData(queue);
+			}
+		});
+	}
+
+	/**
+	 * Copies only the entities which the datastore at the given host and port lacks, as found by
+	 * comparing the keys of both datastores (see {@link DatastoreExporter#syncData}). Repeating
+	 * a migration of data which mostly has not changed thus only transfers the new entities.
+	 * @param deleteExtras whether to delete the entities which the exporter's datastore lacks
+	 * from the target
+	 */
+	public static void sync(DatastoreExporter exporter, final String targetHost, final int targetPort,
+			boolean deleteExtras) throws Exception {
+		try {
+			sync(exporter, new Callable<DatastoreImporter>() {
+				@Override
+				public DatastoreImporter call() throws IOException {
+					return new DatastoreImporter(targetHost, targetPort, null);
+				}
+			}, deleteExtras);
+		} catch (ExecutionException e) {
+			throw new Exception("Failed to sync into " + targetHost + ":" + targetPort, e.getCause());
+		}
+	}
+
+	/**
+	 * Copies only the entities which the datastore of the importer which the factory creates
+	 * lacks, as {@link #sync(DatastoreExporter, String, int, boolean)} does.
+	 * @throws ExecutionException if the import failed
+	 */
+	public static void sync(DatastoreExporter exporter, Callable<DatastoreImporter> importerFactory,
+			final boolean deleteExtras) throws Exception {
+		transfer(exporter, importerFactory, new Transfer() {
+			@Override
+			public void run(DatastoreExporter exporter, EntityQueue queue, Future<DatastoreImporter> target)
+					throws Exception {
+				exporter.syncData(queue, target.get(), deleteExtras);
+			}
+		});
+	}
+
+	/**
+	 * Runs an importer created by the factory on a thread of its own, which puts the entities
+	 * that the transfer adds to the queue until the transfer is done.
+	 */
+	private static void transfer(DatastoreExporter exporter, Callable<DatastoreImporter> importerFactory,
+			Transfer transfer) throws Exception {
+
+		final EntityQueue queue = new EntityQueue(QueueCapacity);
+		final FutureTask<DatastoreImporter> connecting = new FutureTask<>(importerFactory);
+		ExecutorService target = Executors.newSingleThreadExecutor();
+		try {
+			Future<?> importing = target.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					try (DatastoreImporter importer = connect(connecting)) {
+						importer.importData(queue);
+					} finally {
+						// the exporter must not wait for an importer which stopped early
+						queue.abort();
+					}
+					return null;
+				}
+			});
+
+			try {
+				transfer.run(exporter, queue, connecting);
+			} finally {
+				queue.close();
+			}
+			importing.get();
+		} finally {
+			target.shutdownNow();
+		}
+	}
+
+	/**
+	 * Creates the importer.
+	 * @throws Exception what the factory threw
+	 */
+	private static DatastoreImporter connect(FutureTask<DatastoreImporter> connecting) throws Exception {
+		connecting.run();
+		try {
+			return connecting.get();
+		} catch (ExecutionException e) {
+			throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+		}
+	}
+
+	/**
+	 * Reads the entities of the exporter's datastore into the queue.
+	 */
+	private interface Transfer {
+
+		/**
+		 * @param target the importer, once it is connected
+		 */
+		void run(DatastoreExporter exporter, EntityQueue queue, Future<DatastoreImporter> target) throws Exception;
+	}
+
 }
@@ -0,0 +1,405 @@
+package net.styleguise.tools;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.persistence.OneToMany;
+
+import com.google.appengine.api.NamespaceManager;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Text;
+import com.google.apphosting.api.ApiProxy;
+
+/**
+ * Converts the rows of a CSV file into datastore Entities. The decoder is compiled once for a
+ * persistent class and the header of a file: the field of every column is looked up up front and
+ * turned into a typed {@link ColumnDecoder}, so decoding a row involves no reflection at all.
+ *
+ * A column whose property has no respective field in the persistent class is imported as a string.
+ *
+ * Decoders hold no per-row state, so one decoder can be shared by several threads.
+ *
+ * @see DatastoreImporter for the supported datatypes
+ */
+public class EntityDecoder {
+
+	private final int keyColumn;
+	private final String[] propertyNames;
+	private final ColumnDecoder[] columns;
+
+	/**
+	 * Compiles the decoder.
+	 * @param javaClass the java class that is mapped to the datastore kind
+	 * @param propertyNames defines the order of columns within the rows
+	 */
+	public EntityDecoder(Class<?> javaClass, String[] propertyNames){
+
+		this.propertyNames = propertyNames.clone();
+		this.columns = new ColumnDecoder[propertyNames.length];
+
+		int keyColumn = -1;
+		for( int i = 0; i < propertyNames.length; i++ ){
+			if( Entity.KEY_RESERVED_PROPERTY.equals(propertyNames[i]) )
+				keyColumn = i;
+			else
+				columns[i] = forField(BeanUtil.getField(javaClass, propertyNames[i]));
+		}
+		if( keyColumn < 0 )
+			throw new IllegalArgumentException("No " + Entity.KEY_RESERVED_PROPERTY
+					+ " column for " + javaClass.getSimpleName());
+		this.keyColumn = keyColumn;
+	}
+
+	/**
+	 * Converts the row the parser is positioned on into an Entity.
+	 */
+	public Entity decode(CsvParser row){
+
+		if( row.getTokenCount() < columns.length )
+			throw new IllegalArgumentException("Row " + row.getRowNumber() + " has "
+					+ row.getTokenCount() + " values but the header has " + columns.length);
+
+		Entity entity = new Entity(parseKey(unescape(row.getString(keyColumn))));
+		for( int i = 0; i < columns.length; i++ ){
+			if( i == keyColumn )
+				continue;
+			Object propertyValue = row.isNull(i) ? null : columns[i].decode(row, i);
+			entity.setProperty(propertyNames[i], propertyValue);
+		}
+		return entity;
+	}
+
+	//------------------------------------------------------------------------------------------------------
+	//Column decoders
+	//------------------------------------------------------------------------------------------------------
+
+	/**
+	 * Converts a token into a Java object. Tokens are never NULL by the time they reach a decoder.
+	 */
+	abstract static class ColumnDecoder {
+
+		abstract Object decode(String token);
+
+		Object decode(CsvParser row, int column){
+			return decode(row.getString(column));
+		}
+	}
+
+	private static ColumnDecoder forField(Field field){
+
+		if( field == null )
+			return StringDecoder;
+
+		Class<?> fieldType = field.getType();
+		if( fieldType == List.class || fieldType == Set.class ){
+			Class<?> classOfObjectsInCollection;
+			if( field.isAnnotationPresent(OneToMany.class) )
+				classOfObjectsInCollection = Key.class;
+			else
+				classOfObjectsInCollection = BeanUtil.getParameterizedTypeArguments(field).get(0);
+			return new MultiValueDecoder(forType(classOfObjectsInCollection));
+		}
+		return forType(fieldType);
+	}
+
+	private static ColumnDecoder forType(Class<?> type){
+
+		if( type.isEnum() )
+			return RawDecoder;
+
+		if( type == String.class )
+			return StringDecoder;
+
+		if( type == Date.class )
+			return DateDecoder;
+
+		if( type == Long.class || type == Long.TYPE )
+			return LongDecoder;
+
+		if( type == Boolean.class || type == Boolean.TYPE )
+			return BooleanDecoder;
+
+		if( type == Integer.class || type == Integer.TYPE )
+			return IntegerDecoder;
+
+		if( type == Double.class || type == Double.TYPE )
+			return DoubleDecoder;
+
+		if( type == Text.class )
+			return TextDecoder;
+
+		if( type == Key.class )
+			return KeyDecoder;
+
+		return RawDecoder;
+	}
+
+	private static final ColumnDecoder RawDecoder = new ColumnDecoder(){
+		@Override
+		Object decode(String token){
+			return token;
+		}
+	};
+
+	private static final ColumnDecoder StringDecoder = new ColumnDecoder(){
+		@Override
+		Object decode(String token){
+			return unescape(token);
+		}
+	};
+
+	private static final ColumnDecoder TextDecoder = new ColumnDecoder(){
+		@Override
+		Object decode(String token){
+			return new Text(unescape(token));
+		}
+	};
+
+	private static final ColumnDecoder DateDecoder = new ColumnDecoder(){
+		@Override
+		Object decode(String token){
+			return new Date(Long.parseLong(token));
+		}
+
+		@Override
+		Object decode(CsvParser row, int column){
+			return new Date(row.getLong(column));
+		}
+	};
+
+	private static final ColumnDecoder LongDecoder = new ColumnDecoder(){
+		@Override
+		Object decode(String token){
+			return Long.parseLong(token);
+		}
+
+		@Override
+		Object decode(CsvParser row, int column){
+			return row.getLong(column);
+		}
+	};
+
+	private static final ColumnDecoder IntegerDecoder = new ColumnDecoder(){
+		@Override
+		Object decode(String token){
+			return Integer.parseInt(token);
+		}
+
+		@Override
+		Object decode(CsvParser row, int column){
+			return row.getInt(column);
+		}
+	};
+
+	private static final ColumnDecoder BooleanDecoder = new ColumnDecoder(){
+		@Override
+		Object decode(String token){
+			return Boolean.valueOf(token);
+		}
+	};
+
+	private static final ColumnDecoder DoubleDecoder = new ColumnDecoder(){
+		@Override
+		Object decode(String token){
+			return Double.parseDouble(token);
+		}
+	};
+
+	private static final ColumnDecoder KeyDecoder = new ColumnDecoder(){
+		@Override
+		Object decode(String token){
+			return parseKey(unescape(token));
+		}
+	};
+
+	/**
+	 * Splits the token at the collection value separator and decodes each value.
+	 */
+	private static class MultiValueDecoder extends ColumnDecoder {
+
+		private final ColumnDecoder elementDecoder;
+
+		MultiValueDecoder(ColumnDecoder elementDecoder){
+			this.elementDecoder = elementDecoder;
+		}
+
+		@Override
+		Object decode(String token){
+			Collection<Object> list = new ArrayList<>();
+			int start = 0;
+			while( true ){
+				int end = token.indexOf(DatastoreExporter.CollectionValueSeparatorChar, start);
+				if( end < 0 )
+					end = token.length();
+				String value = token.substring(start, end);
+				list.add(DatastoreExporter.Null.equals(value) ? null : elementDecoder.decode(value));
+				if( end == token.length() )
+					break;
+				start = end + 1;
+			}
+			return list;
+		}
+	}
+
+	/**
+	 * Parses a key. The exporter writes keys the way {@link Key#toString()} does, e.g.
+	 * Parent(1)/Child("name"), prefixed with !namespace: outside the default namespace; such
+	 * keys are created in the application being imported into. Keys encoded with
+	 * {@link KeyFactory#keyToString(Key)} are accepted as well.
+	 */
+	static Key parseKey(String token){
+
+		if( !token.endsWith(")") )
+			return KeyFactory.stringToKey(token);
+
+		int pos = 0;
+		String namespace = null;
+		if( token.startsWith("!") ){
+			pos = token.indexOf(':');
+			if( pos < 0 )
+				throw new IllegalArgumentException("Invalid key: " + token);
+			namespace = token.substring(1, pos++);
+		}
+
+		String previousNamespace = NamespaceManager.get();
+		if( namespace != null )
+			NamespaceManager.set(namespace);
+		try{
+			Key key = null;
+			while( pos < token.length() ){
+				int open = token.indexOf('(', pos);
+				if( open < 0 || open + 1 == token.length() )
+					throw new IllegalArgumentException("Invalid key: " + token);
+				String kind = token.substring(pos, open);
+				int close;
+				if( token.charAt(open + 1) == '"' ){
+					// names are not escaped, so the name ends at the quote which ends the path element
+					close = open + 1;
+					do{
+						close = token.indexOf("\")", close + 1);
+					} while( close >= 0 && close + 2 < token.length() && token.charAt(close + 2) != '/' );
+					if( close < 0 )
+						throw new IllegalArgumentException("Invalid key: " + token);
+					String name = token.substring(open + 2, close);
+					key = key == null ? KeyFactory.createKey(kind, name) : KeyFactory.createKey(key, kind, name);
+					close++;
+				}
+				else{
+					close = token.indexOf(')', open);
+					long id = Long.parseLong(token.substring(open + 1, close));
+					key = key == null ? KeyFactory.createKey(kind, id) : KeyFactory.createKey(key, kind, id);
+				}
+				pos = close + 2;
+			}
+			return key;
+		}
+		finally{
+			if( namespace != null )
+				NamespaceManager.set(previousNamespace);
+		}
+	}
+
+	/**
+	 * Moves an entity read from an entity dump, or copied from another datastore, into the
+	 * application being imported into. A key carries the id of the application it was created
+	 * in and the datastore keeps the entities of every application apart, so the key of the
+	 * entity, its parents and the Key values of its properties are created again in this
+	 * application. They keep their namespaces, as with {@link #parseKey(String)}. An entity whose
+	 * key already belongs to this application is returned as it is.
+	 */
+	static Entity rekey(Entity entity){
+
+		String appId = ApiProxy.getCurrentEnvironment().getAppId();
+		if( appId.equals(entity.getKey().getAppId()) )
+			return entity;
+
+		Entity rekeyed = new Entity(rekey(entity.getKey(), appId));
+		for( Map.Entry<String, Object> property : entity.getProperties().entrySet() ){
+			Object value = property.getValue();
+			if( value instanceof Key )
+				value = rekey((Key) value, appId);
+			else if( value instanceof Collection ){
+				ArrayList<Object> values = new ArrayList<>(((Collection<?>) value).size());
+				for( Object element : (Collection<?>) value )
+					values.add(element instanceof Key ? rekey((Key) element, appId) : element);
+				value = values;
+			}
+			if( entity.isUnindexedProperty(property.getKey()) )
+				rekeyed.setUnindexedProperty(property.getKey(), value);
+			else
+				rekeyed.setProperty(property.getKey(), value);
+		}
+		return rekeyed;
+	}
+
+	private static Key rekey(Key key, String appId){
+
+		if( key == null || appId.equals(key.getAppId()) )
+			return key;
+
+		Key parent = rekey(key.getParent(), appId);
+		if( parent != null )
+			return key.getName() != null
+					? KeyFactory.createKey(parent, key.getKind(), key.getName())
+					: KeyFactory.createKey(parent, key.getKind(), key.getId());
+
+		String previousNamespace = NamespaceManager.get();
+		NamespaceManager.set(key.getNamespace());
+		try{
+			return key.getName() != null
+					? KeyFactory.createKey(key.getKind(), key.getName())
+					: KeyFactory.createKey(key.getKind(), key.getId());
+		}
+		finally{
+			NamespaceManager.set(previousNamespace);
+		}
+	}
+
+	/**
+	 * Undoes the escapes of the {@link CsvValueEncoder} left to right. An underscore which does
+	 * not start an escape stands for itself.
+	 */
+	static String unescape(String token){
+		int underscore = token.indexOf("__");
+		if( underscore < 0 )
+			return token;
+
+		int length = DatastoreExporter.EscapedNewline.length();
+		StringBuilder value = new StringBuilder(token.length());
+		value.append(token, 0, underscore);
+		for( int i = underscore; i < token.length(); i++ ){
+			char c = token.charAt(i);
+			if( c == '_' && token.startsWith("__", i) && token.startsWith("__", i + 3) ){
+				char escaped = unescape(token.charAt(i + 2));
+				if( escaped != 0 ){
+					value.append(escaped);
+					i += length - 1;
+					continue;
+				}
+			}
+			value.append(c);
+		}
+		return value.toString();
+	}
+
+	/**
+	 * @return the character which the letter of an escape stands for, or 0 if it is no escape
+	 */
+	private static char unescape(char letter){
+		switch( letter ){
+		case 'N': return '\n';
+		case 'R': return '\r';
+		case 'U': return '_';
+		case 'S': return DatastoreExporter.CollectionValueSeparatorChar;
+		default: return 0;
+		}
+	}
+
+}
@@ -0,0 +1,132 @@
+package net.styleguise.tools;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityTranslator;
+
+/**
+ * Reads a file written by {@link KindEntityWriter}. The index at the end of the file splits the
+ * records into blocks, which can be read one after the other and decoded independently (and
+ * concurrently).
+ */
+public class EntityDumpReader implements Closeable {
+
+	private static final int TrailerSize = 8 + 4 + KindEntityWriter.Magic.length;
+
+	private final Path file;
+	private final FileChannel channel;
+	private final long[] offsets;
+	private final int[] counts;
+
+	public EntityDumpReader(Path file) throws IOException {
+		this.file = file;
+		this.channel = FileChannel.open(file, StandardOpenOption.READ);
+		try {
+			long size = channel.size();
+			if (size < KindEntityWriter.Magic.length + TrailerSize
+					|| !Arrays.equals(read(0, KindEntityWriter.Magic.length).array(), KindEntityWriter.Magic))
+				throw new IOException("Not an entity dump: " + file);
+
+			ByteBuffer trailer = read(size - TrailerSize, TrailerSize);
+			long indexOffset = trailer.getLong();
+			int entries = trailer.getInt();
+			byte[] magic = new byte[KindEntityWriter.Magic.length];
+			trailer.get(magic);
+			if (!Arrays.equals(magic, KindEntityWriter.Magic)
+					|| indexOffset < KindEntityWriter.Magic.length
+					|| indexOffset + entries * 16L != size - TrailerSize)
+				throw new IOException("Incomplete entity dump (the export was not finished?): " + file);
+
+			ByteBuffer index = read(indexOffset, entries * 16);
+			offsets = new long[entries + 1];
+			counts = new int[entries];
+			for (int i = 0; i < entries; i++) {
+				offsets[i] = index.getLong();
+				counts[i] = (int) index.getLong();
+			}
+			offsets[entries] = indexOffset;
+		}
+		catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * The number of blocks in the file.
+	 */
+	public int getBlockCount() {
+		return counts.length;
+	}
+
+	/**
+	 * The number of entities in the given block.
+	 */
+	public int getEntityCount(int block) {
+		return counts[block];
+	}
+
+	/**
+	 * The total number of entities in the file.
+	 */
+	public long getEntityCount() {
+		long total = 0;
+		for (int count : counts)
+			total += count;
+		return total;
+	}
+
+	/**
+	 * Reads the records of the given block without decoding them.
+	 */
+	public byte[] readBlock(int block) throws IOException {
+		long length = offsets[block + 1] - offsets[block];
+		if (length < 0 || length > Integer.MAX_VALUE)
+			throw new IOException("Corrupt index entry " + block + " in " + file);
+		return read(offsets[block], (int) length).array();
+	}
+
+	/**
+	 * Decodes the records of a block read by {@link #readBlock(int)}.
+	 */
+	public static List<Entity> decode(byte[] block) throws IOException {
+		ArrayList<Entity> entities = new ArrayList<>();
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(block));
+		int position = 0;
+		while (position < block.length) {
+			int length = in.readInt();
+			byte[] bytes = new byte[length];
+			in.readFully(bytes);
+			entities.add(EntityTranslator.createFromPbBytes(bytes));
+			position += 4 + length;
+		}
+		return entities;
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	private ByteBuffer read(long position, int length) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0)
+				throw new IOException("Unexpected end of " + file);
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+}
@@ -0,0 +1,100 @@
+package net.styleguise.tools;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import com.google.appengine.api.datastore.Entity;
+
+/**
+ * Hands batches of entities from an exporter to an importer (see
+ * {@link DatastoreImporter#importData(EntityQueue)}). The queue is bounded, so an exporter
+ * which is faster than the importer is held back rather than buffering the datastore in memory.
+ */
+public class EntityQueue implements EntitySink {
+
+	private static final KindBatch EndOfBatches = new KindBatch(null, null);
+	private static final long PollMillis = 100;
+
+	private final BlockingQueue<KindBatch> batches;
+	private volatile boolean aborted;
+
+	/**
+	 * @param capacity the number of batches which may be waiting for the importer
+	 */
+	public EntityQueue(int capacity) {
+		this.batches = new ArrayBlockingQueue<>(capacity);
+	}
+
+	/**
+	 * Waits for room in the queue.
+	 * @throws IllegalStateException if the queue was aborted
+	 */
+	@Override
+	public void put(String kind, List<Entity> entities) throws InterruptedException {
+		if (entities.isEmpty())
+			return;
+		KindBatch batch = new KindBatch(kind, entities);
+		while (!batches.offer(batch, PollMillis, TimeUnit.MILLISECONDS))
+			checkAborted();
+		checkAborted();
+	}
+
+	/**
+	 * Marks the end of the entities, once all of them have been put.
+	 */
+	public void close() throws InterruptedException {
+		while (!aborted && !batches.offer(EndOfBatches, PollMillis, TimeUnit.MILLISECONDS))
+			;
+	}
+
+	/**
+	 * Discards the batches and makes any further put fail, so that the exporter does not wait
+	 * for an importer which stopped.
+	 */
+	public void abort() {
+		aborted = true;
+		batches.clear();
+	}
+
+	/**
+	 * Waits for the next batch.
+	 * @return the batch, or null once the queue has been closed and emptied
+	 */
+	public KindBatch take() throws InterruptedException {
+		KindBatch batch = batches.take();
+		if (batch == EndOfBatches) {
+			batches.put(EndOfBatches); //for any other taker
+			return null;
+		}
+		return batch;
+	}
+
+	/**
+	 * The number of batches waiting for the importer.
+	 */
+	public int size() {
+		return batches.size();
+	}
+
+	private void checkAborted() {
+		if (aborted)
+			throw new IllegalStateException("The importer stopped");
+	}
+
+	/**
+	 * Entities of one kind.
+	 */
+	public static class KindBatch {
+
+		public final String kind;
+		public final List<Entity> entities;
+
+		KindBatch(String kind, List<Entity> entities) {
+			this.kind = kind;
+			this.entities = entities;
+		}
+	}
+
+}
@@ -0,0 +1,19 @@
+package net.styleguise.tools;
+
+import java.util.List;
+
+import com.google.appengine.api.datastore.Entity;
+
+/**
+ * Receives the entities read by {@link DatastoreExporter#exportData(EntitySink)} instead of
+ * them being written to files. The entities of a kind arrive in batches, possibly from several
+ * threads at once.
+ */
+public interface EntitySink {
+
+	/**
+	 * Takes a batch of entities of the kind. May block to hold back the exporter.
+	 */
+	void put(String kind, List<Entity> entities) throws InterruptedException;
+
+}
@@ -0,0 +1,399 @@
+package net.styleguise.tools;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.PropertyProjection;
+
+/**
+ * Records the progress of an export in a properties file inside the dump directory so that an
+ * export which died can be resumed (see DatastoreExporter#resume).
+ *
+ * For every kind the manifest holds the name of its CSV file, its columns (in column id order)
+ * and a checkpoint for each of its parts: the key range of the part, the cursor of the last batch
+ * that was flushed to disk, the number of rows written, the byte offsets of the CSV and spill
+ * files at that point and the batch size the fetches had adapted to. A kind which is fetched with a
+ * projection query also has its projection, so that it is resumed with the same query.
+ *
+ * The manifest is rewritten when a kind starts or is done and when a part finishes; the
+ * checkpoints in between are written at most once per {@link #SaveIntervalNanos}, since losing
+ * the last of them only means that a resumed export fetches a few batches again. The new version
+ * is synced to disk and then replaces the old one atomically, so a crash never leaves a half
+ * written manifest behind.
+ */
+public class ExportManifest {
+
+	public static final String FileName = "manifest.properties";
+	private static final String TmpExtension = ".tmp";
+	static final long SaveIntervalNanos = TimeUnit.SECONDS.toNanos(1);
+	private static final char ListSeparator = ',';
+	private static final char Escape = '\\';
+	private static final String Kinds = "kinds";
+	private static final String File = ".file";
+	private static final String Result = ".result";
+	private static final String Columns = ".columns";
+	private static final String Column = ".column.";
+	private static final String KnownColumns = ".knownColumns";
+	private static final String Parts = ".parts";
+	private static final String Part = ".part.";
+	private static final String Start = ".start";
+	private static final String End = ".end";
+	private static final String CursorSuffix = ".cursor";
+	private static final String Rows = ".rows";
+	private static final String Direct = ".direct";
+	private static final String Offset = ".offset";
+	private static final String SpillOffset = ".spillOffset";
+	private static final String Done = ".done";
+	private static final String TimestampProperty = ".timestampProperty";
+	private static final String Since = ".since";
+	private static final String Watermark = ".watermark";
+	private static final String Limit = ".limit";
+	private static final String LastKey = ".lastKey";
+	private static final String Projections = ".projections";
+	private static final String Projection = ".projection.";
+	private static final String TypeSeparator = ":";
+
+	private final Path file;
+	private final Properties properties;
+	private long savedNanos;
+	private boolean unsaved;
+
+	private ExportManifest(Path file, Properties properties) {
+		this.file = file;
+		this.properties = properties;
+	}
+
+	/**
+	 * Creates the manifest of a new export of the given kinds.
+	 */
+	public static ExportManifest create(Path dumpDir, List<String> kinds) throws IOException {
+		ExportManifest manifest = new ExportManifest(dumpDir.resolve(FileName), new Properties());
+		manifest.properties.setProperty(Kinds, join(kinds));
+		manifest.save();
+		return manifest;
+	}
+
+	public static ExportManifest load(Path dumpDir) throws IOException {
+		Path file = dumpDir.resolve(FileName);
+		if (!Files.exists(file))
+			throw new IOException("No export manifest found in " + dumpDir);
+		Properties properties = new Properties();
+		try (InputStream in = Files.newInputStream(file)) {
+			properties.load(in);
+		}
+		return new ExportManifest(file, properties);
+	}
+
+	public synchronized List<String> getKinds() {
+		return split(properties.getProperty(Kinds));
+	}
+
+	/**
+	 * The file name of the kind's CSV, or null if the export of the kind has not started.
+	 */
+	public synchronized String getFile(String kind) {
+		return properties.getProperty(kind + File);
+	}
+
+	/**
+	 * Records that the export of a kind has started along with the initial checkpoint of each
+	 * of its parts. An incremental export also records its timestamp property and the high-water
+	 * mark it started from, and a projected export its projection, so that it can be resumed with
+	 * the same query.
+	 * @param projection the projected properties, or null if whole entities are fetched
+	 */
+	public synchronized void startKind(String kind, String fileName, List<PartCheckpoint> checkpoints,
+			List<String> columns, int knownColumnCount, String timestampProperty, Object since,
+			List<PropertyProjection> projection) throws IOException {
+		properties.setProperty(kind + File, fileName);
+		setOrRemove(kind + TimestampProperty, timestampProperty);
+		setOrRemove(kind + Since, Watermarks.encode(since));
+		setOrRemove(kind + Projections, projection == null ? null : Integer.toString(projection.size()));
+		if (projection != null)
+			for (int i = 0; i < projection.size(); i++)
+				properties.setProperty(kind + Projection + i,
+						projection.get(i).getType().getName() + TypeSeparator + projection.get(i).getName());
+		properties.setProperty(kind + Parts, Integer.toString(checkpoints.size()));
+		for (int i = 0; i < checkpoints.size(); i++)
+			setCheckpoint(kind, i, checkpoints.get(i));
+		setColumns(kind, columns, knownColumnCount);
+		save();
+	}
+
+	/**
+	 * Forgets the progress of a kind, so that its export starts over.
+	 */
+	public synchronized void restartKind(String kind) throws IOException {
+		properties.remove(kind + File);
+		save();
+	}
+
+	public synchronized List<PartCheckpoint> getCheckpoints(String kind) {
+		int parts = Integer.parseInt(properties.getProperty(kind + Parts));
+		ArrayList<PartCheckpoint> checkpoints = new ArrayList<>(parts);
+		for (int i = 0; i < parts; i++) {
+			String prefix = kind + Part + i;
+			PartCheckpoint checkpoint = new PartCheckpoint(
+					toKey(properties.getProperty(prefix + Start)),
+					toKey(properties.getProperty(prefix + End)));
+			String cursor = properties.getProperty(prefix + CursorSuffix);
+			checkpoint.cursor = cursor == null ? null : Cursor.fromWebSafeString(cursor);
+			checkpoint.rows = Long.parseLong(properties.getProperty(prefix + Rows));
+			checkpoint.direct = Boolean.parseBoolean(properties.getProperty(prefix + Direct));
+			checkpoint.offset = Long.parseLong(properties.getProperty(prefix + Offset));
+			checkpoint.spillOffset = Long.parseLong(properties.getProperty(prefix + SpillOffset));
+			checkpoint.done = Boolean.parseBoolean(properties.getProperty(prefix + Done));
+			checkpoint.watermark = Watermarks.decode(properties.getProperty(prefix + Watermark));
+			String limit = properties.getProperty(prefix + Limit);
+			checkpoint.limit = limit == null ? 0 : Integer.parseInt(limit);
+			checkpoint.lastKey = toKey(properties.getProperty(prefix + LastKey));
+			checkpoints.add(checkpoint);
+		}
+		return checkpoints;
+	}
+
+	/**
+	 * Records the checkpoint of a part along with the columns of the kind at that point. The
+	 * columns only ever grow, so they cover every column id in the flushed spill files. The
+	 * checkpoint is written with the next save unless the part is done.
+	 */
+	public synchronized void checkpoint(String kind, int part, PartCheckpoint checkpoint,
+			List<String> columns, int knownColumnCount) throws IOException {
+		setCheckpoint(kind, part, checkpoint);
+		setColumns(kind, columns, knownColumnCount);
+		unsaved = true;
+		if (checkpoint.done || System.nanoTime() - savedNanos >= SaveIntervalNanos)
+			save();
+	}
+
+	/**
+	 * Writes the checkpoints which were recorded since the manifest was last written.
+	 */
+	public synchronized void flush() throws IOException {
+		if (unsaved)
+			save();
+	}
+
+	public synchronized List<String> getColumns(String kind) {
+		String count = properties.getProperty(kind + Columns);
+		int columns = count == null ? 0 : Integer.parseInt(count);
+		ArrayList<String> names = new ArrayList<>(columns);
+		for (int i = 0; i < columns; i++)
+			names.add(properties.getProperty(kind + Column + i));
+		return names;
+	}
+
+	/**
+	 * The timestamp property of an incremental export of the kind, or null.
+	 */
+	public synchronized String getTimestampProperty(String kind) {
+		return properties.getProperty(kind + TimestampProperty);
+	}
+
+	/**
+	 * The high-water mark an incremental export of the kind started from, or null.
+	 */
+	public synchronized Object getSince(String kind) {
+		return Watermarks.decode(properties.getProperty(kind + Since));
+	}
+
+	/**
+	 * The properties the kind is fetched with, or null if whole entities are fetched.
+	 */
+	public synchronized List<PropertyProjection> getProjection(String kind) {
+		String count = properties.getProperty(kind + Projections);
+		if (count == null)
+			return null;
+		int projections = Integer.parseInt(count);
+		ArrayList<PropertyProjection> projection = new ArrayList<>(projections);
+		for (int i = 0; i < projections; i++) {
+			String[] value = properties.getProperty(kind + Projection + i).split(TypeSeparator, 2);
+			try {
+				projection.add(new PropertyProjection(value[1], Class.forName(value[0])));
+			} catch (ClassNotFoundException e) {
+				throw new IllegalStateException("Unknown type of projected property " + value[1] + ": " + value[0], e);
+			}
+		}
+		return projection;
+	}
+
+	/**
+	 * The greatest timestamp among the rows of the kind written so far, or null.
+	 */
+	public synchronized Object getWatermark(String kind) {
+		Object watermark = null;
+		for (PartCheckpoint checkpoint : getCheckpoints(kind))
+			watermark = Watermarks.max(watermark, checkpoint.watermark);
+		return watermark;
+	}
+
+	public synchronized int getKnownColumnCount(String kind) {
+		String count = properties.getProperty(kind + KnownColumns);
+		return count == null ? 0 : Integer.parseInt(count);
+	}
+
+	/**
+	 * Records that the kind was exported completely into the given file.
+	 */
+	public synchronized void setDone(String kind, String resultFileName) throws IOException {
+		properties.setProperty(kind + Result, resultFileName);
+		save();
+	}
+
+	/**
+	 * The file name of the kind's completed CSV, or null if the kind is not done yet.
+	 */
+	public synchronized String getResult(String kind) {
+		return properties.getProperty(kind + Result);
+	}
+
+	public synchronized long getRows(String kind) {
+		long rows = 0;
+		if (properties.getProperty(kind + Parts) != null)
+			for (PartCheckpoint checkpoint : getCheckpoints(kind))
+				rows += checkpoint.rows;
+		return rows;
+	}
+
+	private void setColumns(String kind, List<String> columns, int knownColumnCount) {
+		properties.setProperty(kind + Columns, Integer.toString(columns.size()));
+		for (int i = 0; i < columns.size(); i++)
+			properties.setProperty(kind + Column + i, columns.get(i));
+		properties.setProperty(kind + KnownColumns, Integer.toString(knownColumnCount));
+	}
+
+	private void setCheckpoint(String kind, int part, PartCheckpoint checkpoint) {
+		String prefix = kind + Part + part;
+		setOrRemove(prefix + Start, checkpoint.start == null ? null : KeyFactory.keyToString(checkpoint.start));
+		setOrRemove(prefix + End, checkpoint.end == null ? null : KeyFactory.keyToString(checkpoint.end));
+		setOrRemove(prefix + CursorSuffix, checkpoint.cursor == null ? null : checkpoint.cursor.toWebSafeString());
+		properties.setProperty(prefix + Rows, Long.toString(checkpoint.rows));
+		properties.setProperty(prefix + Direct, Boolean.toString(checkpoint.direct));
+		properties.setProperty(prefix + Offset, Long.toString(checkpoint.offset));
+		properties.setProperty(prefix + SpillOffset, Long.toString(checkpoint.spillOffset));
+		properties.setProperty(prefix + Done, Boolean.toString(checkpoint.done));
+		setOrRemove(prefix + Watermark, Watermarks.encode(checkpoint.watermark));
+		properties.setProperty(prefix + Limit, Integer.toString(checkpoint.limit));
+		setOrRemove(prefix + LastKey, checkpoint.lastKey == null ? null : KeyFactory.keyToString(checkpoint.lastKey));
+	}
+
+	private void setOrRemove(String key, String value) {
+		if (value == null)
+			properties.remove(key);
+		else
+			properties.setProperty(key, value);
+	}
+
+	private void save() throws IOException {
+		Path tmp = file.resolveSibling(file.getFileName() + TmpExtension);
+		try (FileOutputStream out = new FileOutputStream(tmp.toFile())) {
+			properties.store(out, null);
+			out.getChannel().force(true);
+		}
+		Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		savedNanos = System.nanoTime();
+		unsaved = false;
+	}
+
+	private static Key toKey(String value) {
+		return value == null ? null : KeyFactory.stringToKey(value);
+	}
+
+	/**
+	 * Joins the values with commas, escaping the commas and escape characters within them.
+	 */
+	static String join(List<String> values) {
+		StringBuilder joined = new StringBuilder();
+		for (String value : values) {
+			if (joined.length() > 0)
+				joined.append(ListSeparator);
+			for (int i = 0; i < value.length(); i++) {
+				char c = value.charAt(i);
+				if (c == ListSeparator || c == Escape)
+					joined.append(Escape);
+				joined.append(c);
+			}
+		}
+		return joined.toString();
+	}
+
+	/**
+	 * Splits a list joined by {@link #join(List)}.
+	 */
+	static List<String> split(String joined) {
+		ArrayList<String> values = new ArrayList<>();
+		if (joined.isEmpty())
+			return values;
+		StringBuilder value = new StringBuilder();
+		for (int i = 0; i < joined.length(); i++) {
+			char c = joined.charAt(i);
+			if (c == Escape && i + 1 < joined.length()) {
+				value.append(joined.charAt(++i));
+			} else if (c == ListSeparator) {
+				values.add(value.toString());
+				value.setLength(0);
+			} else {
+				value.append(c);
+			}
+		}
+		values.add(value.toString());
+		return values;
+	}
+
+	/**
+	 * The progress of one part (key range) of a kind. The cursor is the point from which the
+	 * part's query continues, the offsets are the lengths to which the CSV file (first part
+	 * only) and the spill file are truncated before continuing. The watermark is the greatest
+	 * timestamp among the rows written so far if the kind has a timestamp property. The limit is
+	 * the batch size the part's fetches had adapted to (0 if none yet). The last key is that of the
+	 * last row written by a projected part, which tells a repeated key apart after resuming.
+	 */
+	public static class PartCheckpoint {
+
+		public final Key start;
+		public final Key end;
+		public Cursor cursor;
+		public long rows;
+		public boolean direct;
+		public long offset;
+		public long spillOffset;
+		public boolean done;
+		public Object watermark;
+		public int limit;
+		public Key lastKey;
+
+		public PartCheckpoint(Key start, Key end) {
+			this.start = start;
+			this.end = end;
+		}
+
+		/**
+		 * A copy of the checkpoint as it is now, which can be recorded later.
+		 */
+		public PartCheckpoint copy() {
+			PartCheckpoint copy = new PartCheckpoint(start, end);
+			copy.cursor = cursor;
+			copy.rows = rows;
+			copy.direct = direct;
+			copy.offset = offset;
+			copy.spillOffset = spillOffset;
+			copy.done = done;
+			copy.watermark = watermark;
+			copy.limit = limit;
+			copy.lastKey = lastKey;
+			return copy;
+		}
+	}
+
+}
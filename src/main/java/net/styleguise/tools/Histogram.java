@@ -0,0 +1,84 @@
+package net.styleguise.tools;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts non-negative values (latencies, batch sizes, queue depths) in buckets whose bounds
+ * are powers of two, so that recording is a couple of atomic increments and the memory used
+ * does not depend on the number of values. Percentiles are therefore approximate: they are
+ * reported as the upper bound of the bucket they fall in, which is at most twice the exact
+ * value (but never more than the largest value recorded).
+ */
+public class Histogram {
+
+	private static final int Buckets = 64;
+
+	private final AtomicLongArray counts = new AtomicLongArray(Buckets);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Records a value; negative values are recorded as 0.
+	 */
+	public void record(long value) {
+		value = Math.max(0, value);
+		// bucket i holds the values below 2^i which are not in bucket i - 1
+		counts.incrementAndGet(Buckets - Long.numberOfLeadingZeros(value));
+		count.incrementAndGet();
+		sum.addAndGet(value);
+		long previous;
+		while (value > (previous = max.get()) && !max.compareAndSet(previous, value))
+			;
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	public double getMean() {
+		long n = count.get();
+		return n == 0 ? 0 : (double) sum.get() / n;
+	}
+
+	/**
+	 * @param percentile between 0 and 100
+	 * @return the value below which about the given percentage of the values fall, or 0 if
+	 * no value has been recorded
+	 */
+	public long getPercentile(double percentile) {
+		long n = count.get();
+		if (n == 0)
+			return 0;
+		long rank = (long) Math.ceil(n * percentile / 100);
+		long seen = 0;
+		for (int i = 0; i < Buckets; i++) {
+			seen += counts.get(i);
+			if (seen >= rank && seen > 0)
+				return Math.min((1L << i) - 1, max.get());
+		}
+		return max.get();
+	}
+
+	/**
+	 * The count, mean, median, 90th and 99th percentiles and the maximum, by name.
+	 */
+	public Map<String, Long> getSummary() {
+		LinkedHashMap<String, Long> summary = new LinkedHashMap<>();
+		summary.put("count", getCount());
+		summary.put("mean", Math.round(getMean()));
+		summary.put("p50", getPercentile(50));
+		summary.put("p90", getPercentile(90));
+		summary.put("p99", getPercentile(99));
+		summary.put("max", getMax());
+		return summary;
+	}
+
+}
@@ -0,0 +1,210 @@
+package net.styleguise.tools;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+
+/**
+ * Finds the keys of a kind which only the source or only the target datastore has by
+ * merge-joining the keys of both, each listed in key order (e.g. by a keys-only query sorted by
+ * __key__, see {@link #keysOf(QueryBatchPrefetcher)}). Both lists are read once and only the
+ * current key of each is held, so a kind of any size is compared in constant memory. The keys
+ * found are handed to a {@link Handler} in batches.
+ *
+ * The keys of the two datastores belong to different applications, so they are compared by
+ * their paths only (see {@link #compare(Key, Key)}).
+ */
+public class KeyDiff {
+
+	/**
+	 * Receives the keys which only one of the datastores has, in key order.
+	 */
+	public interface Handler {
+
+		/**
+		 * Takes a batch of keys which the source has and the target lacks.
+		 */
+		void missing(List<Key> keys) throws IOException;
+
+		/**
+		 * Takes a batch of keys which the target has and the source lacks.
+		 */
+		void extra(List<Key> keys) throws IOException;
+	}
+
+	/**
+	 * A list of keys in key order.
+	 */
+	public interface KeyStream {
+
+		/**
+		 * @return the next key, or null after the last one
+		 */
+		Key next() throws IOException;
+	}
+
+	private final int batchSize;
+	private long sourceKeys;
+	private long targetKeys;
+	private long missing;
+	private long extra;
+
+	/**
+	 * @param batchSize the number of keys handed to the handler at once
+	 */
+	public KeyDiff(int batchSize) {
+		if (batchSize < 1)
+			throw new IllegalArgumentException("batchSize must be at least 1");
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * Merge-joins the keys of the source and the target.
+	 * @throws IllegalStateException if either list is not in key order
+	 */
+	public void run(KeyStream source, KeyStream target, Handler handler) throws IOException {
+		ArrayList<Key> missingKeys = new ArrayList<>(batchSize);
+		ArrayList<Key> extraKeys = new ArrayList<>(batchSize);
+		Key sourceKey = next(source, null);
+		Key targetKey = next(target, null);
+		while (sourceKey != null || targetKey != null) {
+			int c = sourceKey == null ? 1 : targetKey == null ? -1 : compare(sourceKey, targetKey);
+			if (c < 0) {
+				missing++;
+				missingKeys.add(sourceKey);
+				if (missingKeys.size() == batchSize) {
+					handler.missing(missingKeys);
+					missingKeys.clear();
+				}
+			}
+			else if (c > 0) {
+				extra++;
+				extraKeys.add(targetKey);
+				if (extraKeys.size() == batchSize) {
+					handler.extra(extraKeys);
+					extraKeys.clear();
+				}
+			}
+			if (c <= 0) {
+				sourceKeys++;
+				sourceKey = next(source, sourceKey);
+			}
+			if (c >= 0) {
+				targetKeys++;
+				targetKey = next(target, targetKey);
+			}
+		}
+		if (!missingKeys.isEmpty())
+			handler.missing(missingKeys);
+		if (!extraKeys.isEmpty())
+			handler.extra(extraKeys);
+	}
+
+	public long getSourceKeys() {
+		return sourceKeys;
+	}
+
+	public long getTargetKeys() {
+		return targetKeys;
+	}
+
+	public long getMissing() {
+		return missing;
+	}
+
+	public long getExtra() {
+		return extra;
+	}
+
+	@Override
+	public String toString() {
+		return "source=" + sourceKeys + ", target=" + targetKeys + ", missing=" + missing + ", extra=" + extra;
+	}
+
+	/**
+	 * Compares keys in the order of the datastore, ignoring their application and namespace:
+	 * path element by path element starting at the root, by kind and then by id or name, where
+	 * ids come before names. Strings are compared by code point, which is the order of their
+	 * UTF-8 bytes in which the datastore sorts them.
+	 */
+	public static int compare(Key a, Key b) {
+		if (a.getParent() == null && b.getParent() == null)
+			return compareElements(a, b);
+
+		List<Key> pathA = path(a);
+		List<Key> pathB = path(b);
+		int length = Math.min(pathA.size(), pathB.size());
+		for (int i = 0; i < length; i++) {
+			int c = compareElements(pathA.get(i), pathB.get(i));
+			if (c != 0)
+				return c;
+		}
+		return Integer.compare(pathA.size(), pathB.size());
+	}
+
+	/**
+	 * Lists the keys of the batches of a keys-only query.
+	 */
+	public static KeyStream keysOf(final QueryBatchPrefetcher prefetcher) {
+		return new KeyStream() {
+
+			private Iterator<Entity> batch;
+
+			@Override
+			public Key next() throws IOException {
+				while (batch == null || !batch.hasNext()) {
+					QueryBatchPrefetcher.Batch next = prefetcher.next();
+					if (next == null)
+						return null;
+					batch = next.results.iterator();
+				}
+				return batch.next().getKey();
+			}
+		};
+	}
+
+	private Key next(KeyStream keys, Key previous) throws IOException {
+		Key key = keys.next();
+		if (key != null && previous != null && compare(previous, key) >= 0)
+			throw new IllegalStateException("Keys out of order: " + key + " after " + previous);
+		return key;
+	}
+
+	private static int compareElements(Key a, Key b) {
+		int c = compareStrings(a.getKind(), b.getKind());
+		if (c != 0)
+			return c;
+		if (a.getName() == null)
+			return b.getName() == null ? Long.compare(a.getId(), b.getId()) : -1;
+		return b.getName() == null ? 1 : compareStrings(a.getName(), b.getName());
+	}
+
+	private static int compareStrings(String a, String b) {
+		int length = Math.min(a.length(), b.length());
+		for (int i = 0; i < length; i++) {
+			char x = a.charAt(i);
+			char y = b.charAt(i);
+			if (x != y) {
+				// surrogates encode code points above every other char
+				boolean surrogateX = Character.isSurrogate(x);
+				boolean surrogateY = Character.isSurrogate(y);
+				if (surrogateX != surrogateY)
+					return surrogateX ? 1 : -1;
+				return x - y;
+			}
+		}
+		return a.length() - b.length();
+	}
+
+	private static List<Key> path(Key key) {
+		ArrayList<Key> path = new ArrayList<>();
+		for (Key k = key; k != null; k = k.getParent())
+			path.add(0, k);
+		return path;
+	}
+
+}
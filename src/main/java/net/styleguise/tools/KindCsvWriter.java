@@ -0,0 +1,521 @@
+package net.styleguise.tools;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+
+import com.google.appengine.api.datastore.Entity;
+
+/**
+ * Writes the CSV file of a single kind in one pass over the datastore using a bounded amount of memory.
+ *
+ * The writer is usually given the property names of the kind up front (from the datastore
+ * property metadata). In that case the header is written immediately and the rows of the first
+ * part are streamed straight into the CSV file.
+ *
+ * Entities of a kind do not need to have homogeneous property names, and properties which are not
+ * known up front (unindexed properties do not appear in the property metadata) may show up at any
+ * time. Rather than buffering the entities (or querying the kind twice) such rows are spilled to
+ * disk as they arrive. Each cell is stored with the id of its column, ids being assigned in the
+ * order the property names are discovered. When the writer is finished the spilled rows are
+ * expanded into full CSV rows with missing properties written as NULL. Discovered columns are
+ * added after the known ones, in which case the rows that were already streamed are padded.
+ *
+ * A kind can be written in several parts concurrently (one thread per part). The parts share
+ * the column ids and are written out in the order in which they were created. Only the first
+ * part streams its rows directly; the other parts always spill.
+ *
+ * The CSV and spill files are only ever appended to, so after flushing a part its progress can be
+ * checkpointed as a pair of file lengths and writing can later be resumed from that checkpoint.
+ *
+ * The CSV file can be compressed with gzip while it is written (see {@link ParallelGzipOutputStream}).
+ * Flushing the file ends a gzip member, so a checkpoint of a compressed file is still a length to
+ * which it can be truncated; the members written after resuming are appended to it.
+ */
+public class KindCsvWriter implements KindWriter {
+
+	private static final String SpillFileExtension = ".spill";
+	private static final String CompleteFileSuffix = "-complete";
+	private static final int EndOfRow = -1;
+
+	private final Path csv;
+	private final FileChannel channel;
+	private final ParallelGzipOutputStream gzip;
+	private final long gzipOffset;
+	private final PrintWriter writer;
+	private final int knownColumnCount;
+	private final HashMap<String, Integer> columnIds = new HashMap<>();
+	private final ArrayList<String> columnNames = new ArrayList<>();
+	private final ArrayList<Part> parts = new ArrayList<>();
+	private final int compressionThreads;
+	private volatile Set<String> keptColumns;
+
+	public KindCsvWriter(Path csv) throws IOException {
+		this(csv, new ArrayList<String>());
+	}
+
+	public KindCsvWriter(Path csv, Collection<String> knownColumns) throws IOException {
+		this(csv, knownColumns, 0);
+	}
+
+	/**
+	 * Starts a new CSV file.
+	 * @param knownColumns the property names of the kind, if known in advance; they are sorted by name
+	 * @param compressionThreads the number of blocks compressed at the same time, or 0 to leave the file uncompressed
+	 */
+	public KindCsvWriter(Path csv, Collection<String> knownColumns, int compressionThreads) throws IOException {
+		this(csv, sort(knownColumns), compressionThreads);
+	}
+
+	/**
+	 * Starts a new CSV file of only the given columns, in the given order (see {@link #pruneColumns()}).
+	 * @param compressionThreads the number of blocks compressed at the same time, or 0 to leave the file uncompressed
+	 */
+	public static KindCsvWriter selectColumns(Path csv, List<String> columns, int compressionThreads) throws IOException {
+		KindCsvWriter writer = new KindCsvWriter(csv, columns.toArray(new String[columns.size()]), compressionThreads);
+		writer.pruneColumns();
+		return writer;
+	}
+
+	private KindCsvWriter(Path csv, String[] knownColumns, int compressionThreads) throws IOException {
+		for (String name : knownColumns)
+			getColumnId(name);
+		this.knownColumnCount = columnNames.size();
+		this.compressionThreads = checkCompressionThreads(compressionThreads);
+
+		this.csv = csv;
+		FileOutputStream out = new FileOutputStream(csv.toFile());
+		this.channel = out.getChannel();
+		this.gzipOffset = 0;
+		this.gzip = compress(out);
+		this.writer = newWriter(gzip != null ? gzip : out);
+		writeHeaderRow(writer, columnNames);
+	}
+
+	public KindCsvWriter(Path csv, List<String> columns, int knownColumnCount, long offset) throws IOException {
+		this(csv, columns, knownColumnCount, offset, 0);
+	}
+
+	/**
+	 * Continues a CSV file from a checkpoint. The file is truncated to the given length.
+	 * @param columns the columns in column id order, as returned by {@link #getColumnNames()}
+	 * @param compressionThreads the number of blocks compressed at the same time, or 0 if the file is uncompressed
+	 */
+	public KindCsvWriter(Path csv, List<String> columns, int knownColumnCount, long offset,
+			int compressionThreads) throws IOException {
+		for (String name : columns)
+			getColumnId(name);
+		this.knownColumnCount = knownColumnCount;
+		this.compressionThreads = checkCompressionThreads(compressionThreads);
+
+		this.csv = csv;
+		FileOutputStream out = new FileOutputStream(csv.toFile(), true);
+		this.channel = out.getChannel();
+		channel.truncate(offset);
+		this.gzipOffset = offset;
+		this.gzip = compress(out);
+		this.writer = newWriter(gzip != null ? gzip : out);
+	}
+
+	/**
+	 * Only writes the columns known so far and leaves out the other properties of the entities,
+	 * so the header never grows and every row of the first part is streamed straight into the
+	 * file. Used to export selected columns of a kind.
+	 */
+	public synchronized void pruneColumns() {
+		keptColumns = new HashSet<>(columnNames);
+	}
+
+	@Override
+	public Part newPart() throws IOException {
+		return newPart(parts.isEmpty(), 0);
+	}
+
+	@Override
+	public synchronized Part newPart(boolean direct, long spillOffset) throws IOException {
+		Path spill = csv.resolveSibling(csv.getFileName() + "." + parts.size() + SpillFileExtension);
+		Part part = new Part(direct && parts.isEmpty(), spill, spillOffset);
+		parts.add(part);
+		return part;
+	}
+
+	@Override
+	public long getOffset() throws IOException {
+		writer.flush();
+		checkError(writer);
+		if (gzip != null)
+			gzip.drain();
+		return channel.position();
+	}
+
+	/**
+	 * The mark of a compressed file is the number of uncompressed bytes, which is a point at which
+	 * the file can be continued once the blocks up to it are compressed and written.
+	 */
+	@Override
+	public long mark() throws IOException {
+		writer.flush();
+		checkError(writer);
+		return gzip != null ? gzip.getMark() : channel.position();
+	}
+
+	@Override
+	public long getOffset(long mark) {
+		if (gzip == null)
+			return mark;
+		long offset = gzip.getOutputOffset(mark);
+		return offset < 0 ? -1 : gzipOffset + offset;
+	}
+
+	@Override
+	public synchronized List<String> getColumnNames() {
+		return new ArrayList<>(columnNames);
+	}
+
+	@Override
+	public int getKnownColumnCount() {
+		return knownColumnCount;
+	}
+
+	/**
+	 * Appends the spilled rows of every part to the CSV file and deletes the spill files. The known
+	 * columns come first, in the order of the header, followed by the discovered columns sorted by
+	 * name, so the output does not depend on the order in which the property names were discovered.
+	 *
+	 * If columns were discovered the header and the streamed rows have to be rewritten, in which
+	 * case the complete CSV is written to a new file next to the original one. The original file
+	 * is left in place so that the export can still be resumed from its checkpoints until the new
+	 * file has been recorded.
+	 *
+	 * @return the complete CSV file
+	 */
+	@Override
+	public synchronized Path finish() throws IOException {
+
+		for (Part part : parts)
+			part.close();
+
+		ArrayList<String> names = new ArrayList<>(columnNames);
+		List<String> discovered = names.subList(knownColumnCount, names.size());
+		String[] sorted = discovered.toArray(new String[discovered.size()]);
+		Arrays.sort(sorted);
+		discovered.clear();
+		discovered.addAll(Arrays.asList(sorted));
+
+		int[] positions = new int[names.size()];
+		for (int i = 0; i < names.size(); i++)
+			positions[columnIds.get(names.get(i))] = i;
+
+		Path result = csv;
+		PrintWriter out = writer;
+		if (sorted.length > 0) {
+			// the header and the streamed rows are rewritten, padded with the discovered columns
+			writer.close();
+			checkError(writer);
+			String fileName = csv.getFileName().toString();
+			String compression = compressionThreads > 0 ? ParallelGzipOutputStream.FileExtension : "";
+			String baseName = fileName.substring(0, fileName.length() - compression.length());
+			int dot = baseName.lastIndexOf('.');
+			result = csv.resolveSibling(baseName.substring(0, dot) + CompleteFileSuffix + baseName.substring(dot) + compression);
+			FileOutputStream file = new FileOutputStream(result.toFile());
+			out = newWriter(compressionThreads > 0 ? compress(file) : file);
+			writeHeaderRow(out, names);
+			copyPaddedRows(out, csv, sorted.length);
+		}
+
+		String[] cells = new String[names.size()];
+		for (Part part : parts) {
+			if (part.out == null)
+				continue;
+			try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(part.spill)))) {
+				String keyCell;
+				while ((keyCell = readKeyCell(in)) != null) {
+					Arrays.fill(cells, null);
+					int columnId;
+					while ((columnId = in.readInt()) != EndOfRow)
+						cells[positions[columnId]] = readString(in);
+					writeRow(out, keyCell, cells);
+				}
+			}
+		}
+
+		out.close();
+		checkError(out);
+
+		for (Part part : parts)
+			Files.deleteIfExists(part.spill);
+		return result;
+	}
+
+	/**
+	 * Closes the CSV and spill files. Spill files are kept so that writing can be resumed.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		writer.close();
+		for (Part part : parts)
+			part.close();
+	}
+
+	/**
+	 * Closes the writer and deletes the CSV and spill files, for an export which starts over.
+	 */
+	public synchronized void delete() throws IOException {
+		close();
+		for (Part part : parts)
+			Files.deleteIfExists(part.spill);
+		Files.deleteIfExists(csv);
+	}
+
+	private synchronized int getColumnId(String propertyName) {
+		Integer id = columnIds.get(propertyName);
+		if (id == null) {
+			id = columnNames.size();
+			columnIds.put(propertyName, id);
+			columnNames.add(propertyName);
+		}
+		return id;
+	}
+
+	private static String[] sort(Collection<String> names) {
+		String[] sorted = names.toArray(new String[names.size()]);
+		Arrays.sort(sorted);
+		return sorted;
+	}
+
+	private static int checkCompressionThreads(int threads) {
+		if (threads < 0)
+			throw new IllegalArgumentException("Invalid number of compression threads: " + threads);
+		return threads;
+	}
+
+	private ParallelGzipOutputStream compress(OutputStream out) {
+		return compressionThreads > 0 ? new ParallelGzipOutputStream(out, compressionThreads) : null;
+	}
+
+	private static PrintWriter newWriter(OutputStream out) {
+		return new PrintWriter(new BufferedWriter(new OutputStreamWriter(out)));
+	}
+
+	/**
+	 * Exported rows never contain line breaks (the exporter escapes them) so the rows that were
+	 * streamed can be padded line by line. The old header line is skipped.
+	 */
+	private void copyPaddedRows(PrintWriter out, Path prefix, int padding) throws IOException {
+		StringBuilder nulls = new StringBuilder();
+		for (int i = 0; i < padding; i++)
+			nulls.append(DatastoreExporter.FieldSeparator).append(DatastoreExporter.Null);
+		InputStream in = Files.newInputStream(prefix);
+		if (compressionThreads > 0)
+			in = new GZIPInputStream(in);
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(in))) {
+			String line = reader.readLine();
+			while ((line = reader.readLine()) != null) {
+				out.write(line);
+				out.write(nulls.toString());
+				out.println();
+			}
+		}
+	}
+
+	private void checkError(PrintWriter out) throws IOException {
+		if (out.checkError())
+			throw new IOException("Failed to write " + csv);
+	}
+
+	private static void writeHeaderRow(PrintWriter out, List<String> names) {
+		out.write(Entity.KEY_RESERVED_PROPERTY);
+		for (String name : names) {
+			out.write(DatastoreExporter.FieldSeparator);
+			out.write(name);
+		}
+		out.println();
+	}
+
+	private static void writeRow(PrintWriter out, String keyCell, String[] cells) {
+		out.write(keyCell);
+		for (String cell : cells) {
+			out.write(DatastoreExporter.FieldSeparator);
+			out.write(cell == null ? DatastoreExporter.Null : cell);
+		}
+		out.println();
+	}
+
+	private static String readKeyCell(DataInputStream in) throws IOException {
+		try {
+			return readString(in);
+		} catch (EOFException e) {
+			return null;
+		}
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	/**
+	 * A sequence of rows. The first part writes rows straight into the CSV file for as long as
+	 * they only have known columns. From the first row with an unknown column on (and for any other
+	 * part, from the start) rows are spilled to a file. Each spilled row is stored as the key cell
+	 * followed by the column id and value of each cell, and is terminated by an end of row marker.
+	 */
+	public class Part implements KindWriter.Part {
+
+		private final StringWriter cell = new StringWriter();
+		private final CsvValueEncoder encoder = new CsvValueEncoder();
+		private final ArrayList<Integer> rowColumnIds = new ArrayList<>();
+		private final ArrayList<String> rowCells = new ArrayList<>();
+		private final String[] directCells = new String[knownColumnCount];
+		private final Path spill;
+		private boolean direct;
+		private String rowKey;
+		private long spillOffset;
+		private FileChannel spillChannel;
+		private DataOutputStream out;
+		private boolean closed;
+
+		private Part(boolean direct, Path spill, long spillOffset) throws IOException {
+			this.direct = direct;
+			this.spill = spill;
+			this.spillOffset = spillOffset;
+			if (spillOffset > 0)
+				openSpill();
+		}
+
+		/**
+		 * Writes the entity as a row. Each property value is converted into a CSV cell
+		 * by the part's {@link CsvValueEncoder}; the properties of pruned columns (see
+		 * {@link KindCsvWriter#pruneColumns()}) are skipped.
+		 * @return the number of characters in the row
+		 */
+		@Override
+		public long write(Entity entity) throws IOException {
+			cell.getBuffer().setLength(0);
+			encoder.writeValue(cell, entity.getKey());
+			String key = cell.toString();
+			long length = key.length();
+			startRow(key);
+			Set<String> kept = keptColumns;
+			for (Map.Entry<String, Object> property : entity.getProperties().entrySet()) {
+				if (kept != null && !kept.contains(property.getKey()))
+					continue;
+				cell.getBuffer().setLength(0);
+				encoder.writeValue(cell, property.getValue());
+				writeCell(property.getKey(), cell.toString());
+				length += cell.getBuffer().length() + 1;
+			}
+			endRow();
+			return length;
+		}
+
+		public void startRow(String keyCell) {
+			rowKey = keyCell;
+			rowColumnIds.clear();
+			rowCells.clear();
+		}
+
+		public void writeCell(String propertyName, String cell) {
+			rowColumnIds.add(getColumnId(propertyName));
+			rowCells.add(cell);
+		}
+
+		public void endRow() throws IOException {
+			if (direct && writeDirectRow())
+				return;
+
+			if (out == null)
+				openSpill();
+			writeString(out, rowKey);
+			for (int i = 0; i < rowCells.size(); i++) {
+				out.writeInt(rowColumnIds.get(i));
+				writeString(out, rowCells.get(i));
+			}
+			out.writeInt(EndOfRow);
+		}
+
+		@Override
+		public void flush() throws IOException {
+			if (direct) {
+				writer.flush();
+				checkError(writer);
+			}
+			if (out != null) {
+				out.flush();
+				spillOffset = spillChannel.position();
+			}
+		}
+
+		@Override
+		public boolean isDirect() {
+			return direct;
+		}
+
+		@Override
+		public long getSpillOffset() {
+			return spillOffset;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (!closed) {
+				closed = true;
+				if (out != null)
+					out.close();
+			}
+		}
+
+		private void openSpill() throws IOException {
+			direct = false;
+			FileOutputStream spillStream = new FileOutputStream(spill.toFile(), true);
+			spillChannel = spillStream.getChannel();
+			spillChannel.truncate(spillOffset);
+			out = new DataOutputStream(new BufferedOutputStream(spillStream));
+		}
+
+		private boolean writeDirectRow() {
+			Arrays.fill(directCells, null);
+			for (int i = 0; i < rowCells.size(); i++) {
+				int columnId = rowColumnIds.get(i);
+				if (columnId >= knownColumnCount)
+					return false;
+				directCells[columnId] = rowCells.get(i);
+			}
+			writeRow(writer, rowKey, directCells);
+			return true;
+		}
+	}
+
+}
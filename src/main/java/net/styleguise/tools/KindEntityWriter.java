@@ -0,0 +1,269 @@
+package net.styleguise.tools;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityTranslator;
+
+/**
+ * Writes the entities of a single kind as serialized entity protocol buffers (see
+ * EntityTranslator), which preserves every value exactly as it is stored in the datastore.
+ *
+ * The file starts with {@link #Magic} followed by one record per entity: the length of the
+ * serialized entity as an int followed by its bytes. When the writer is finished an index is
+ * appended: for every block of up to {@link #IndexInterval} records the offset of its first record
+ * and its number of records, both as longs, followed by the offset of the index, the number of
+ * index entries and {@link #Magic} again. The index lets a reader split the file into blocks of
+ * records without reading it. See {@link EntityDumpReader}.
+ *
+ * The parts write the same records, so the spill files can simply be appended to the file.
+ */
+public class KindEntityWriter implements KindWriter {
+
+	public static final String FileExtension = ".entities";
+	public static final byte[] Magic = { 'G', 'A', 'E', 'D', 'U', 'M', 'P', '1' };
+	public static final int IndexInterval = 1000;
+	private static final String SpillFileExtension = ".spill";
+
+	private final Path file;
+	private final FileChannel channel;
+	private final DataOutputStream out;
+	private final ArrayList<Part> parts = new ArrayList<>();
+
+	/**
+	 * Starts a new file.
+	 */
+	public KindEntityWriter(Path file) throws IOException {
+		this.file = file;
+		FileOutputStream stream = new FileOutputStream(file.toFile());
+		this.channel = stream.getChannel();
+		this.out = new DataOutputStream(new BufferedOutputStream(stream));
+		out.write(Magic);
+	}
+
+	/**
+	 * Continues a file from a checkpoint. The file is truncated to the given length.
+	 */
+	public KindEntityWriter(Path file, long offset) throws IOException {
+		this.file = file;
+		FileOutputStream stream = new FileOutputStream(file.toFile(), true);
+		this.channel = stream.getChannel();
+		channel.truncate(offset);
+		this.out = new DataOutputStream(new BufferedOutputStream(stream));
+	}
+
+	@Override
+	public Part newPart() throws IOException {
+		return newPart(parts.isEmpty(), 0);
+	}
+
+	@Override
+	public synchronized Part newPart(boolean direct, long spillOffset) throws IOException {
+		Path spill = file.resolveSibling(file.getFileName() + "." + parts.size() + SpillFileExtension);
+		Part part = parts.isEmpty() && direct
+				? new Part(null, getOffset())
+				: new Part(spill, spillOffset);
+		parts.add(part);
+		return part;
+	}
+
+	@Override
+	public long getOffset() throws IOException {
+		out.flush();
+		return channel.position();
+	}
+
+	@Override
+	public long mark() throws IOException {
+		return getOffset();
+	}
+
+	@Override
+	public long getOffset(long mark) {
+		return mark;
+	}
+
+	@Override
+	public List<String> getColumnNames() {
+		return new ArrayList<>();
+	}
+
+	@Override
+	public int getKnownColumnCount() {
+		return 0;
+	}
+
+	/**
+	 * Appends the spilled parts and the index to the file and deletes the spill files.
+	 * @return the file
+	 */
+	@Override
+	public synchronized Path finish() throws IOException {
+
+		for (Part part : parts)
+			part.close();
+
+		ArrayList<long[]> index = new ArrayList<>();
+		long offset = getOffset();
+		for (Part part : parts) {
+			if (part.spill == null) {
+				index.addAll(part.index);
+				continue;
+			}
+			if (part.position == 0)
+				continue;
+			for (long[] entry : part.index)
+				index.add(new long[] { offset + entry[0], entry[1] });
+			try (InputStream in = Files.newInputStream(part.spill)) {
+				byte[] buffer = new byte[64 * 1024];
+				int read;
+				while ((read = in.read(buffer)) > 0)
+					out.write(buffer, 0, read);
+			}
+			offset += part.position;
+		}
+
+		long indexOffset = offset;
+		for (long[] entry : index) {
+			out.writeLong(entry[0]);
+			out.writeLong(entry[1]);
+		}
+		out.writeLong(indexOffset);
+		out.writeInt(index.size());
+		out.write(Magic);
+		out.close();
+
+		for (Part part : parts)
+			if (part.spill != null)
+				Files.deleteIfExists(part.spill);
+		return file;
+	}
+
+	/**
+	 * Closes the file and the spill files. Spill files are kept so that writing can be resumed.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		out.close();
+		for (Part part : parts)
+			part.close();
+	}
+
+	/**
+	 * Reads the records between the given offsets (after a resume) to rebuild their index.
+	 */
+	private static void scanIndex(Path path, long start, long end, Part part) throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+			skipFully(in, start);
+			long position = start;
+			while (position < end) {
+				part.addToIndex(position);
+				int length = in.readInt();
+				skipFully(in, length);
+				position += 4 + length;
+			}
+		}
+	}
+
+	private static void skipFully(DataInputStream in, long bytes) throws IOException {
+		while (bytes > 0) {
+			long skipped = in.skip(bytes);
+			if (skipped <= 0)
+				throw new EOFException();
+			bytes -= skipped;
+		}
+	}
+
+	/**
+	 * A sequence of records, written either directly into the file (first part only) or into
+	 * the part's spill file. The part keeps the index entries of its records, with offsets
+	 * relative to the file it writes to.
+	 */
+	public class Part implements KindWriter.Part {
+
+		private final Path spill;
+		private final DataOutputStream partOut;
+		private final FileChannel spillChannel;
+		private final ArrayList<long[]> index = new ArrayList<>();
+		private long position;
+		private long spillOffset;
+		private boolean closed;
+
+		private Part(Path spill, long offset) throws IOException {
+			this.spill = spill;
+			if (spill == null) {
+				partOut = out;
+				spillChannel = null;
+				if (offset > Magic.length)
+					scanIndex(file, Magic.length, offset, this);
+			}
+			else {
+				FileOutputStream stream = new FileOutputStream(spill.toFile(), true);
+				spillChannel = stream.getChannel();
+				spillChannel.truncate(offset);
+				partOut = new DataOutputStream(new BufferedOutputStream(stream));
+				if (offset > 0)
+					scanIndex(spill, 0, offset, this);
+			}
+			this.position = offset;
+			this.spillOffset = spill == null ? 0 : offset;
+		}
+
+		@Override
+		public long write(Entity entity) throws IOException {
+			byte[] bytes = EntityTranslator.convertToPb(entity).toByteArray();
+			addToIndex(position);
+			partOut.writeInt(bytes.length);
+			partOut.write(bytes);
+			position += 4 + bytes.length;
+			return 4 + bytes.length;
+		}
+
+		@Override
+		public void flush() throws IOException {
+			partOut.flush();
+			if (spill != null)
+				spillOffset = spillChannel.position();
+		}
+
+		@Override
+		public boolean isDirect() {
+			return spill == null;
+		}
+
+		@Override
+		public long getSpillOffset() {
+			return spillOffset;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (!closed) {
+				closed = true;
+				if (spill != null)
+					partOut.close();
+			}
+		}
+
+		private void addToIndex(long recordOffset) {
+			long[] last = index.isEmpty() ? null : index.get(index.size() - 1);
+			if (last == null || last[1] == IndexInterval)
+				index.add(new long[] { recordOffset, 1 });
+			else
+				last[1]++;
+		}
+	}
+
+}
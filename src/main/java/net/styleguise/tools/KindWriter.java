@@ -0,0 +1,93 @@
+package net.styleguise.tools;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+
+import com.google.appengine.api.datastore.Entity;
+
+/**
+ * Writes the dump file of a single kind, possibly in several parts which are written concurrently
+ * (one thread per part) and which end up in the file in the order in which they were created.
+ * Only the first part may write directly into the file; the other parts are spilled to their own
+ * files until the writer is finished.
+ *
+ * Files are only ever appended to, so after flushing a part its progress can be checkpointed as
+ * a pair of file lengths and writing can later be resumed from that checkpoint.
+ *
+ * @see KindCsvWriter
+ * @see KindEntityWriter
+ */
+public interface KindWriter extends Closeable {
+
+	/**
+	 * Creates a new part into which entities can be written. A part must only be used by one thread.
+	 */
+	Part newPart() throws IOException;
+
+	/**
+	 * Creates a part which continues from a checkpoint.
+	 * @param direct whether the part still writes directly into the file (first part only)
+	 * @param spillOffset the length to which the part's spill file is truncated
+	 */
+	Part newPart(boolean direct, long spillOffset) throws IOException;
+
+	/**
+	 * The length of the file after flushing what the first part wrote so far. Must only be called
+	 * by the thread which writes the first part.
+	 */
+	long getOffset() throws IOException;
+
+	/**
+	 * Marks the point up to which the first part has been flushed, to be looked up with
+	 * {@link #getOffset(long)}. Must only be called by the thread which writes the first part.
+	 * @return the mark, or -1 if the file cannot be continued from this point
+	 */
+	long mark() throws IOException;
+
+	/**
+	 * The length of the file up to a mark, or -1 while the bytes before the mark are still being
+	 * written (a compressed file is written in the background). Marks are looked up in the order
+	 * in which they were made.
+	 */
+	long getOffset(long mark) throws IOException;
+
+	/**
+	 * The columns discovered so far in column id order (empty if the format has no columns).
+	 */
+	List<String> getColumnNames();
+
+	int getKnownColumnCount();
+
+	/**
+	 * Appends the spilled parts to the file and deletes the spill files.
+	 * @return the complete file, which may be a different file than the one written to
+	 */
+	Path finish() throws IOException;
+
+	/**
+	 * A sequence of entities.
+	 */
+	interface Part extends Closeable {
+
+		/**
+		 * Writes the entity.
+		 * @return the (approximate) number of bytes written
+		 */
+		long write(Entity entity) throws IOException;
+
+		/**
+		 * Flushes the entities written so far to disk.
+		 */
+		void flush() throws IOException;
+
+		boolean isDirect();
+
+		/**
+		 * The length of the spill file as of the last {@link #flush()}.
+		 */
+		long getSpillOffset();
+	}
+
+}
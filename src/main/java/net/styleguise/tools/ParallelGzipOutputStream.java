@@ -0,0 +1,226 @@
+package net.styleguise.tools;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compresses a stream with gzip on several threads (like pigz). The data is cut into blocks
+ * which are compressed independently, each into a complete gzip member, and the members are
+ * written in order. A concatenation of gzip members is itself a valid gzip file, so the output
+ * can be read by gzip, zcat or {@link java.util.zip.GZIPInputStream}.
+ *
+ * Compressing the blocks independently costs a little compression (each block starts without
+ * a dictionary), which is negligible for blocks of a megabyte.
+ *
+ * The blocks of every stream are compressed by one shared pool of threads, one per processor, so
+ * that streams written at the same time (e.g. the files of kinds exported concurrently) share the
+ * processors instead of each starting threads of its own.
+ *
+ * Flushing does not wait for the blocks being compressed. The end of a block is a point at which
+ * the output can be cut off and continued later, which {@link #getMark()} and
+ * {@link #getOutputOffset(long)} tell once the block has been written.
+ */
+public class ParallelGzipOutputStream extends OutputStream {
+
+	public static final String FileExtension = ".gz";
+	public static final int DefaultBlockSize = 1024 * 1024;
+
+	private static final ExecutorService Compressors = Executors.newFixedThreadPool(
+			Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+				private final AtomicInteger count = new AtomicInteger();
+
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "gzip-" + count.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}
+			});
+
+	private final OutputStream out;
+	private final int blockSize;
+	private final int maxPending;
+	private final ArrayDeque<Block> pending = new ArrayDeque<>();
+	private final ArrayDeque<long[]> marks = new ArrayDeque<>();
+	private byte[] block;
+	private int length;
+	private long inputCount;
+	private long outputCount;
+	private boolean closed;
+
+	public ParallelGzipOutputStream(OutputStream out, int threads) {
+		this(out, threads, DefaultBlockSize);
+	}
+
+	/**
+	 * @param threads the number of blocks of this stream which may be compressed at the same time
+	 * @param blockSize the number of bytes per block
+	 */
+	public ParallelGzipOutputStream(OutputStream out, int threads, int blockSize) {
+		if (threads < 1 || blockSize < 1)
+			throw new IllegalArgumentException("Invalid compression settings: " + threads + " threads, "
+					+ blockSize + " byte blocks");
+		this.out = out;
+		this.blockSize = blockSize;
+		this.maxPending = threads * 2;
+		this.block = new byte[blockSize];
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		if (length == blockSize)
+			submit();
+		block[length++] = (byte) b;
+		inputCount++;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			if (length == blockSize)
+				submit();
+			int n = Math.min(len, blockSize - length);
+			System.arraycopy(b, off, block, length, n);
+			length += n;
+			inputCount += n;
+			off += n;
+			len -= n;
+		}
+	}
+
+	/**
+	 * Writes the blocks which are compressed by now, without waiting for the others. The current
+	 * block is ended first if it is at least half full; a smaller one is kept so that frequent
+	 * flushes do not cut the stream into tiny blocks, which compress badly.
+	 */
+	@Override
+	public void flush() throws IOException {
+		if (length >= (blockSize + 1) / 2)
+			submit();
+		while (!pending.isEmpty() && pending.peek().member.isDone())
+			writeNext();
+		out.flush();
+	}
+
+	/**
+	 * Compresses the buffered bytes and waits until every block has been written.
+	 */
+	public void drain() throws IOException {
+		if (length > 0)
+			submit();
+		while (!pending.isEmpty())
+			writeNext();
+		out.flush();
+	}
+
+	/**
+	 * Marks the end of the bytes written so far if they end a block, which is the case after a
+	 * {@link #flush()} that ended the block.
+	 * @return the number of bytes written to the stream, or -1 if some are left in the current block
+	 */
+	public long getMark() {
+		if (length > 0)
+			return -1;
+		if (!pending.isEmpty())
+			pending.peekLast().marked = true;
+		else if (marks.isEmpty() || marks.peekLast()[0] != inputCount)
+			marks.add(new long[] { inputCount, outputCount });
+		return inputCount;
+	}
+
+	/**
+	 * The number of compressed bytes written up to a mark, or -1 while the blocks before the mark
+	 * are still being compressed. Marks are looked up in the order in which they were made; the
+	 * earlier ones are forgotten.
+	 */
+	public long getOutputOffset(long mark) {
+		while (!marks.isEmpty() && marks.peek()[0] < mark)
+			marks.poll();
+		return !marks.isEmpty() && marks.peek()[0] == mark ? marks.peek()[1] : -1;
+	}
+
+	/**
+	 * Writes the remaining blocks and closes the underlying stream. The compression threads are
+	 * shared and keep running.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed)
+			return;
+		try {
+			drain();
+		} finally {
+			closed = true;
+			out.close();
+		}
+	}
+
+	/**
+	 * Hands the current block to a compressor. Waits for the oldest block to be written first if
+	 * too many blocks are pending, which bounds the memory used.
+	 */
+	private void submit() throws IOException {
+		if (closed)
+			throw new IOException("Stream closed");
+		while (pending.size() >= maxPending)
+			writeNext();
+		final byte[] data = block;
+		final int dataLength = length;
+		pending.add(new Block(inputCount, Compressors.submit(new Callable<byte[]>() {
+			@Override
+			public byte[] call() throws IOException {
+				ByteArrayOutputStream member = new ByteArrayOutputStream(dataLength / 4 + 64);
+				try (GZIPOutputStream gzip = new GZIPOutputStream(member)) {
+					gzip.write(data, 0, dataLength);
+				}
+				return member.toByteArray();
+			}
+		})));
+		block = new byte[blockSize];
+		length = 0;
+	}
+
+	private void writeNext() throws IOException {
+		try {
+			Block next = pending.poll();
+			byte[] member = next.member.get();
+			out.write(member);
+			outputCount += member.length;
+			if (next.marked)
+				marks.add(new long[] { next.end, outputCount });
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while compressing");
+		} catch (ExecutionException e) {
+			throw new IOException("Failed to compress", e.getCause());
+		}
+	}
+
+	/**
+	 * A block being compressed. The end is the number of bytes written to the stream up to the end
+	 * of the block.
+	 */
+	private static class Block {
+
+		final long end;
+		final Future<byte[]> member;
+		boolean marked;
+
+		Block(long end, Future<byte[]> member) {
+			this.end = end;
+			this.member = member;
+		}
+	}
+
+}
@@ -0,0 +1,143 @@
+package net.styleguise.tools;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadFactory;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.PreparedQuery;
+import com.google.appengine.api.datastore.QueryResultList;
+
+/**
+ * Fetches the batches of a query on a background thread so that the next batch is on its way
+ * while the current one is being written. The batches are handed over through a bounded queue,
+ * so at most {@link #QueueCapacity} batches are held in memory besides the one being written.
+ *
+ * Each batch continues from the cursor of the previous one and is sized by the given
+ * {@link AdaptiveFetchController}. A batch which runs into a deadline is retried with a smaller
+ * size; any other failure is handed to the consumer. The latency of every fetch and every retry
+ * is recorded in the given {@link TransferMetrics}.
+ */
+public class QueryBatchPrefetcher implements Closeable {
+
+	public static final int QueueCapacity = 2;
+
+	private final PreparedQuery pq;
+	private final AdaptiveFetchController fetch;
+	private final TransferMetrics metrics;
+	private final BlockingQueue<Batch> queue = new ArrayBlockingQueue<>(QueueCapacity);
+	private final Thread thread;
+	private Cursor cursor;
+	private boolean exhausted;
+
+	/**
+	 * Starts fetching.
+	 * @param startCursor the cursor to start from, or null to start at the beginning
+	 * @param threadFactory creates the fetch thread, which must be able to issue datastore calls
+	 */
+	public QueryBatchPrefetcher(PreparedQuery pq, AdaptiveFetchController fetch, TransferMetrics metrics,
+			Cursor startCursor, ThreadFactory threadFactory) {
+		this.pq = pq;
+		this.fetch = fetch;
+		this.metrics = metrics;
+		this.cursor = startCursor;
+		this.thread = threadFactory.newThread(new Runnable() {
+			@Override
+			public void run() {
+				fetchAll();
+			}
+		});
+		thread.start();
+	}
+
+	/**
+	 * Waits for the next batch.
+	 * @return the next batch, or null once the last batch has been returned
+	 */
+	public Batch next() throws IOException {
+		if (exhausted)
+			return null;
+		Batch batch;
+		try {
+			batch = queue.take();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for the next batch", e);
+		}
+		if (batch.error != null) {
+			exhausted = true;
+			if (batch.error instanceof RuntimeException)
+				throw (RuntimeException) batch.error;
+			throw new IOException(batch.error);
+		}
+		exhausted = batch.last;
+		return batch;
+	}
+
+	/**
+	 * Stops the fetch thread.
+	 */
+	@Override
+	public void close() {
+		thread.interrupt();
+	}
+
+	private void fetchAll() {
+		try {
+			boolean more = true;
+			while (more) {
+				int limit = fetch.getLimit();
+				long start = System.nanoTime();
+				QueryResultList<Entity> results;
+				try {
+					results = pq.asQueryResultList(fetch.newFetchOptions(cursor));
+					results.size();
+				} catch (RuntimeException e) {
+					if (AdaptiveFetchController.isDeadline(e) && fetch.recordDeadline()) {
+						metrics.recordFetch(System.nanoTime() - start);
+						metrics.recordRetry();
+						continue;
+					}
+					throw e;
+				}
+				long nanos = System.nanoTime() - start;
+				fetch.recordBatch(results.size(), nanos);
+				metrics.recordFetch(nanos);
+				metrics.recordBatch(results.size());
+
+				// a short batch means the query is exhausted
+				more = results.size() == limit;
+				if (!results.isEmpty())
+					cursor = results.getCursor();
+				queue.put(new Batch(results, cursor, !more, null));
+			}
+		} catch (InterruptedException e) {
+			// closed by the consumer
+		} catch (Throwable e) {
+			queue.clear();
+			queue.offer(new Batch(null, null, true, e));
+		}
+	}
+
+	/**
+	 * The entities of a batch and the cursor from which the query continues after them.
+	 */
+	public static class Batch {
+
+		public final QueryResultList<Entity> results;
+		public final Cursor cursor;
+		public final boolean last;
+		private final Throwable error;
+
+		private Batch(QueryResultList<Entity> results, Cursor cursor, boolean last, Throwable error) {
+			this.results = results;
+			this.cursor = cursor;
+			this.last = last;
+			this.error = error;
+		}
+	}
+
+}
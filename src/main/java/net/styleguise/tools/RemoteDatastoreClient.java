@@ -1,26 +1,183 @@
 package net.styleguise.tools;
 
 import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import com.google.appengine.api.datastore.AsyncDatastoreService;
 import com.google.appengine.api.datastore.DatastoreService;
 import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.PreparedQuery;
+import com.google.appengine.api.datastore.Query;
 import com.google.appengine.tools.remoteapi.RemoteApiInstaller;
 import com.google.appengine.tools.remoteapi.RemoteApiOptions;
+import com.google.apphosting.api.ApiProxy;
 
 public abstract class RemoteDatastoreClient implements AutoCloseable {
 
-	private final RemoteApiInstaller installer = new RemoteApiInstaller();
+	private static final String ThreadLocalDelegateClass = "com.google.appengine.tools.remoteapi.ThreadLocalDelegate";
+	private static final int KeysFetchLimit = 1000;
+	private static final int MaxKeysFetchLimit = 20000;
+
+	private final RemoteApiInstaller installer;
+	private final ApiProxy.Environment environment;
+	private final ApiProxy.Delegate<?> delegate;
 	protected final DatastoreService ds;
+	protected final AsyncDatastoreService asyncDs;
+	protected volatile TransferMetrics metrics;
+	private long progressMillis;
+	private Path summaryFile;
 
 	public RemoteDatastoreClient(String host, int port, String email, String password) throws IOException {
 		RemoteApiOptions options = new RemoteApiOptions().server(host, port).credentials(email, password);
+		installer = new RemoteApiInstaller();
 		installer.install(options);
+		environment = ApiProxy.getCurrentEnvironment();
+		delegate = (ApiProxy.Delegate<?>) invokeThreadLocalDelegate("getDelegateForThread");
 		ds = DatastoreServiceFactory.getDatastoreService();
+		asyncDs = DatastoreServiceFactory.getAsyncDatastoreService();
+	}
+
+	/**
+	 * Uses the datastore of the current thread's API environment instead of installing the
+	 * remote API, e.g. the in-process local datastore of the SDK's LocalServiceTestHelper.
+	 */
+	protected RemoteDatastoreClient() {
+		installer = null;
+		environment = ApiProxy.getCurrentEnvironment();
+		delegate = (ApiProxy.Delegate<?>) invokeThreadLocalDelegate("getDelegateForThread");
+		ds = DatastoreServiceFactory.getDatastoreService();
+		asyncDs = DatastoreServiceFactory.getAsyncDatastoreService();
 	}
 
 	@Override
 	public void close() throws Exception {
-		installer.uninstall();
+		if (installer != null)
+			installer.uninstall();
+	}
+
+	/**
+	 * Prints a progress line with the rates and an ETA at the given interval while data is
+	 * transferred. Defaults to 0, which prints none.
+	 */
+	public void setProgressInterval(long progressMillis) {
+		if (progressMillis < 0)
+			throw new IllegalArgumentException("Invalid progress interval: " + progressMillis);
+		this.progressMillis = progressMillis;
+	}
+
+	/**
+	 * Sets a file to which the JSON summary of every transfer is written (see
+	 * {@link TransferMetrics#toJson()}); it is printed in any case.
+	 */
+	public void setSummaryFile(Path summaryFile) {
+		this.summaryFile = summaryFile;
+	}
+
+	/**
+	 * The metrics of the current (or last) transfer, or null if nothing was transferred yet.
+	 */
+	public TransferMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Starts collecting the metrics of a new transfer and exposes them over JMX.
+	 */
+	protected TransferMetrics startMetrics(String name) {
+		TransferMetrics metrics = new TransferMetrics(name);
+		this.metrics = metrics;
+		metrics.start(progressMillis);
+		return metrics;
+	}
+
+	/**
+	 * Stops collecting the metrics of the transfer and reports their summary.
+	 */
+	protected void finishMetrics(TransferMetrics metrics) throws IOException {
+		metrics.stop();
+		String summary = metrics.toJson();
+		System.out.println("Summary: " + summary);
+		if (summaryFile != null)
+			Files.write(summaryFile, (summary + "\n").getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Lists the keys of the kind in key order with a keys-only query. The batches are fetched
+	 * ahead on a thread which can reach this client's datastore, so they may be consumed on any
+	 * thread (see {@link KeyDiff#keysOf(QueryBatchPrefetcher)}). A query belongs to the application
+	 * of the thread which creates it, so it is created in this client's API environment.
+	 */
+	QueryBatchPrefetcher prefetchKeys(String kind, TransferMetrics metrics) {
+		PreparedQuery pq;
+		ApiProxy.Environment previous = ApiProxy.getCurrentEnvironment();
+		ApiProxy.setEnvironmentForCurrentThread(environment);
+		try {
+			pq = ds.prepare(new Query(kind).setKeysOnly().addSort(Entity.KEY_RESERVED_PROPERTY));
+		} finally {
+			if (previous != null)
+				ApiProxy.setEnvironmentForCurrentThread(previous);
+			else
+				ApiProxy.clearEnvironmentForCurrentThread();
+		}
+		AdaptiveFetchController fetch = new AdaptiveFetchController(KeysFetchLimit, MaxKeysFetchLimit,
+				KeysFetchLimit, KeysFetchLimit);
+		return new QueryBatchPrefetcher(pq, fetch, metrics, null, newThreadFactory("keys-" + kind));
+	}
+
+	/**
+	 * The remote API is only installed on the thread which constructed this client.
+	 * Threads created by this factory adopt that thread's API environment and remote API
+	 * delegate before running so that they can issue datastore calls as well. Since the
+	 * delegate is per thread, clients connected to different datastores can be used in the
+	 * same process as long as each is constructed on its own thread.
+	 */
+	protected ThreadFactory newThreadFactory(final String name) {
+		final AtomicInteger count = new AtomicInteger();
+		return new ThreadFactory() {
+			@Override
+			public Thread newThread(final Runnable r) {
+				Thread t = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						ApiProxy.setEnvironmentForCurrentThread(environment);
+						if (delegate != null)
+							invokeThreadLocalDelegate("setDelegateForThread", delegate);
+						r.run();
+					}
+				}, name + "-" + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		};
+	}
+
+	/**
+	 * The remote API keeps the delegate of each thread in a ThreadLocalDelegate, whose
+	 * accessors are package private.
+	 * @return the result of the accessor, or null if the API delegate is not a ThreadLocalDelegate
+	 */
+	private static Object invokeThreadLocalDelegate(String name, Object... args) {
+		Object threadLocalDelegate = ApiProxy.getDelegate();
+		if (threadLocalDelegate == null || !threadLocalDelegate.getClass().getName().equals(ThreadLocalDelegateClass))
+			return null;
+		try {
+			for (Method method : threadLocalDelegate.getClass().getDeclaredMethods()) {
+				if (method.getName().equals(name) && method.getParameterTypes().length == args.length) {
+					method.setAccessible(true);
+					return method.invoke(threadLocalDelegate, args);
+				}
+			}
+			throw new IllegalStateException("No method " + name + " in " + ThreadLocalDelegateClass);
+		} catch (IllegalAccessException | InvocationTargetException e) {
+			throw new IllegalStateException("Failed to call " + ThreadLocalDelegateClass + "." + name, e);
+		}
 	}
 
 }
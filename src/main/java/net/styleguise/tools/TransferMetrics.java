@@ -0,0 +1,487 @@
+package net.styleguise.tools;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Instrumentation shared by the exporter and the importer: the entities and bytes transferred
+ * per kind, the sizes of the batches, the latencies of the fetch and put RPCs, the number of
+ * retries and the depths of the queues between the stages of a transfer.
+ *
+ * While a transfer runs (see {@link #start(long)}) the metrics are registered as an MXBean
+ * under {@value #Domain}:type=TransferMetrics, the watched queues are sampled every
+ * {@link #SampleMillis} and, optionally, a progress line with an ETA is printed periodically.
+ * Once it is done, {@link #toJson()} summarizes the transfer.
+ *
+ * The ETA is based on the input bytes read if the size of the input is known (an import) and
+ * otherwise on the entities transferred if their number could be estimated (an export, from
+ * the datastore statistics).
+ */
+public class TransferMetrics implements TransferMetricsMXBean {
+
+	public static final String Domain = "net.styleguise.tools";
+	public static final long SampleMillis = 1000;
+	private static final AtomicInteger Instances = new AtomicInteger();
+	private static final double NanosPerSecond = 1e9;
+
+	/**
+	 * A value which is sampled, like the number of items in a queue.
+	 */
+	public interface Gauge {
+		long get();
+	}
+
+	private final String name;
+	private final long startNanos = System.nanoTime();
+	private volatile long endNanos;
+	private final ConcurrentHashMap<String, KindCounts> kinds = new ConcurrentHashMap<>();
+	private final AtomicLong entities = new AtomicLong();
+	private final AtomicLong bytes = new AtomicLong();
+	private final AtomicLong retries = new AtomicLong();
+	private final AtomicLong expectedEntities = new AtomicLong();
+	private final AtomicLong inputBytes = new AtomicLong();
+	private final AtomicLong expectedInputBytes = new AtomicLong();
+	private final Histogram batchSizes = new Histogram();
+	private final Histogram fetchLatency = new Histogram();
+	private final Histogram putLatency = new Histogram();
+	private final Map<String, Gauge> gauges = Collections.synchronizedMap(new LinkedHashMap<String, Gauge>());
+	private final Map<String, Histogram> depths = Collections.synchronizedMap(new LinkedHashMap<String, Histogram>());
+	private ScheduledExecutorService sampler;
+	private ObjectName objectName;
+	private long lastProgressNanos = startNanos;
+	private long lastProgressEntities;
+	private long lastProgressBytes;
+
+	/**
+	 * @param name what is transferred, e.g. export or import
+	 */
+	public TransferMetrics(String name) {
+		this.name = name;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	// ------------------------------------------------------------------------------------------------------
+	// Recording
+	// ------------------------------------------------------------------------------------------------------
+
+	/**
+	 * Marks the start of the transfer of a kind, from which its rates are computed.
+	 */
+	public void startKind(String kind) {
+		getKind(kind);
+	}
+
+	/**
+	 * Records entities of the kind which were transferred.
+	 * @param bytes their size, as written or as estimated
+	 */
+	public void recordEntities(String kind, long entities, long bytes) {
+		KindCounts counts = getKind(kind);
+		counts.entities.addAndGet(entities);
+		counts.bytes.addAndGet(bytes);
+		counts.lastNanos = System.nanoTime();
+		this.entities.addAndGet(entities);
+		this.bytes.addAndGet(bytes);
+	}
+
+	public void recordBatch(int size) {
+		batchSizes.record(size);
+	}
+
+	public void recordFetch(long nanos) {
+		fetchLatency.record(TimeUnit.NANOSECONDS.toMicros(nanos));
+	}
+
+	public void recordPut(long nanos) {
+		putLatency.record(TimeUnit.NANOSECONDS.toMicros(nanos));
+	}
+
+	public void recordRetry() {
+		retries.incrementAndGet();
+	}
+
+	public void addExpectedEntities(long entities) {
+		expectedEntities.addAndGet(entities);
+	}
+
+	public void addExpectedInput(long bytes) {
+		expectedInputBytes.addAndGet(bytes);
+	}
+
+	/**
+	 * Records input bytes which were read, e.g. from the files being imported.
+	 */
+	public void recordInput(long bytes) {
+		inputBytes.addAndGet(bytes);
+	}
+
+	public long getInputBytes() {
+		return inputBytes.get();
+	}
+
+	/**
+	 * Samples the gauge while the transfer runs, e.g. the number of batches in a queue.
+	 */
+	public void watch(String queue, Gauge depth) {
+		depths.put(queue, new Histogram());
+		gauges.put(queue, depth);
+	}
+
+	// ------------------------------------------------------------------------------------------------------
+	// Lifecycle
+	// ------------------------------------------------------------------------------------------------------
+
+	/**
+	 * Registers the MXBean and starts sampling the watched queues.
+	 * @param progressMillis the interval at which a progress line is printed, or 0 for none
+	 */
+	public synchronized void start(long progressMillis) {
+		try {
+			objectName = new ObjectName(Domain + ":type=TransferMetrics,name=" + ObjectName.quote(name)
+					+ ",id=" + Instances.incrementAndGet());
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+		} catch (JMException e) {
+			objectName = null;
+			System.out.println("Failed to register the " + name + " metrics: " + e);
+		}
+
+		sampler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, name + "-metrics");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		sampler.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				sample();
+			}
+		}, SampleMillis, SampleMillis, TimeUnit.MILLISECONDS);
+		if (progressMillis > 0)
+			sampler.scheduleAtFixedRate(new Runnable() {
+				@Override
+				public void run() {
+					System.out.println(getProgress());
+				}
+			}, progressMillis, progressMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stops sampling and unregisters the MXBean. The rates are frozen at this point.
+	 */
+	public synchronized void stop() {
+		if (endNanos == 0)
+			endNanos = System.nanoTime();
+		if (sampler != null)
+			sampler.shutdownNow();
+		if (objectName != null) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+			} catch (JMException e) {
+				// already gone
+			}
+			objectName = null;
+		}
+	}
+
+	// ------------------------------------------------------------------------------------------------------
+	// TransferMetricsMXBean
+	// ------------------------------------------------------------------------------------------------------
+
+	@Override
+	public long getElapsedMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(now() - startNanos);
+	}
+
+	@Override
+	public long getEntities() {
+		return entities.get();
+	}
+
+	@Override
+	public long getBytes() {
+		return bytes.get();
+	}
+
+	@Override
+	public double getEntitiesPerSecond() {
+		return rate(entities.get(), now() - startNanos);
+	}
+
+	@Override
+	public double getBytesPerSecond() {
+		return rate(bytes.get(), now() - startNanos);
+	}
+
+	@Override
+	public Map<String, Long> getEntitiesByKind() {
+		TreeMap<String, Long> map = new TreeMap<>();
+		for (Map.Entry<String, KindCounts> kind : kinds.entrySet())
+			map.put(kind.getKey(), kind.getValue().entities.get());
+		return map;
+	}
+
+	@Override
+	public Map<String, Long> getBytesByKind() {
+		TreeMap<String, Long> map = new TreeMap<>();
+		for (Map.Entry<String, KindCounts> kind : kinds.entrySet())
+			map.put(kind.getKey(), kind.getValue().bytes.get());
+		return map;
+	}
+
+	@Override
+	public Map<String, Double> getEntitiesPerSecondByKind() {
+		TreeMap<String, Double> map = new TreeMap<>();
+		for (Map.Entry<String, KindCounts> kind : kinds.entrySet())
+			map.put(kind.getKey(), kind.getValue().rate(kind.getValue().entities.get()));
+		return map;
+	}
+
+	@Override
+	public Map<String, Double> getBytesPerSecondByKind() {
+		TreeMap<String, Double> map = new TreeMap<>();
+		for (Map.Entry<String, KindCounts> kind : kinds.entrySet())
+			map.put(kind.getKey(), kind.getValue().rate(kind.getValue().bytes.get()));
+		return map;
+	}
+
+	@Override
+	public Map<String, Long> getBatchSizes() {
+		return batchSizes.getSummary();
+	}
+
+	@Override
+	public Map<String, Long> getFetchLatencyMicros() {
+		return fetchLatency.getSummary();
+	}
+
+	@Override
+	public Map<String, Long> getPutLatencyMicros() {
+		return putLatency.getSummary();
+	}
+
+	@Override
+	public long getRetries() {
+		return retries.get();
+	}
+
+	@Override
+	public Map<String, Long> getQueueDepths() {
+		LinkedHashMap<String, Long> map = new LinkedHashMap<>();
+		synchronized (gauges) {
+			for (Map.Entry<String, Gauge> gauge : gauges.entrySet())
+				map.put(gauge.getKey(), gauge.getValue().get());
+		}
+		return map;
+	}
+
+	@Override
+	public long getEtaSeconds() {
+		if (endNanos != 0)
+			return 0;
+		long elapsed = now() - startNanos;
+		if (expectedInputBytes.get() > 0)
+			return eta(inputBytes.get(), expectedInputBytes.get(), elapsed);
+		if (expectedEntities.get() > 0)
+			return eta(entities.get(), expectedEntities.get(), elapsed);
+		return -1;
+	}
+
+	// ------------------------------------------------------------------------------------------------------
+	// Reporting
+	// ------------------------------------------------------------------------------------------------------
+
+	/**
+	 * A line with the entities and bytes transferred so far, the rates since the previous
+	 * line and the ETA.
+	 */
+	public synchronized String getProgress() {
+		long nanos = System.nanoTime();
+		long entities = this.entities.get();
+		long bytes = this.bytes.get();
+		double entityRate = rate(entities - lastProgressEntities, nanos - lastProgressNanos);
+		double byteRate = rate(bytes - lastProgressBytes, nanos - lastProgressNanos);
+		lastProgressNanos = nanos;
+		lastProgressEntities = entities;
+		lastProgressBytes = bytes;
+
+		StringBuilder line = new StringBuilder(name).append(": ")
+				.append(entities).append(" entities (").append(Math.round(entityRate)).append("/s), ")
+				.append(formatBytes(bytes)).append(" (").append(formatBytes(Math.round(byteRate))).append("/s)");
+		if (retries.get() > 0)
+			line.append(", ").append(retries.get()).append(" retries");
+		long eta = getEtaSeconds();
+		if (eta >= 0)
+			line.append(", ETA ").append(String.format(Locale.ROOT, "%d:%02d:%02d", eta / 3600, eta / 60 % 60, eta % 60));
+		return line.toString();
+	}
+
+	/**
+	 * A summary of the transfer as a JSON object. The queue depths are summarized over the
+	 * samples taken while the transfer ran.
+	 */
+	public String toJson() {
+		StringBuilder json = new StringBuilder("{");
+		appendField(json, "name").append(quote(name)).append(',');
+		appendField(json, "elapsedMillis").append(getElapsedMillis()).append(',');
+		appendField(json, "entities").append(getEntities()).append(',');
+		appendField(json, "bytes").append(getBytes()).append(',');
+		appendField(json, "entitiesPerSecond").append(format(getEntitiesPerSecond())).append(',');
+		appendField(json, "bytesPerSecond").append(format(getBytesPerSecond())).append(',');
+		appendField(json, "retries").append(getRetries()).append(',');
+
+		appendField(json, "kinds").append('{');
+		String separator = "";
+		for (Map.Entry<String, KindCounts> kind : new TreeMap<>(kinds).entrySet()) {
+			KindCounts counts = kind.getValue();
+			json.append(separator);
+			appendField(json, kind.getKey()).append('{');
+			appendField(json, "entities").append(counts.entities.get()).append(',');
+			appendField(json, "bytes").append(counts.bytes.get()).append(',');
+			appendField(json, "entitiesPerSecond").append(format(counts.rate(counts.entities.get()))).append(',');
+			appendField(json, "bytesPerSecond").append(format(counts.rate(counts.bytes.get()))).append('}');
+			separator = ",";
+		}
+		json.append("},");
+
+		appendField(json, "batchSizes");
+		appendSummary(json, batchSizes).append(',');
+		appendField(json, "fetchLatencyMicros");
+		appendSummary(json, fetchLatency).append(',');
+		appendField(json, "putLatencyMicros");
+		appendSummary(json, putLatency).append(',');
+
+		appendField(json, "queueDepths").append('{');
+		separator = "";
+		synchronized (depths) {
+			for (Map.Entry<String, Histogram> depth : depths.entrySet()) {
+				json.append(separator);
+				appendField(json, depth.getKey());
+				appendSummary(json, depth.getValue());
+				separator = ",";
+			}
+		}
+		return json.append("}}").toString();
+	}
+
+	@Override
+	public String toString() {
+		return toJson();
+	}
+
+	// ------------------------------------------------------------------------------------------------------
+	// Private methods
+	// ------------------------------------------------------------------------------------------------------
+
+	private KindCounts getKind(String kind) {
+		KindCounts counts = kinds.get(kind);
+		if (counts == null) {
+			KindCounts previous = kinds.putIfAbsent(kind, counts = new KindCounts());
+			if (previous != null)
+				counts = previous;
+		}
+		return counts;
+	}
+
+	private void sample() {
+		synchronized (gauges) {
+			for (Map.Entry<String, Gauge> gauge : gauges.entrySet())
+				depths.get(gauge.getKey()).record(gauge.getValue().get());
+		}
+	}
+
+	private long now() {
+		long end = endNanos;
+		return end != 0 ? end : System.nanoTime();
+	}
+
+	private static double rate(long amount, long nanos) {
+		return nanos <= 0 ? 0 : amount * NanosPerSecond / nanos;
+	}
+
+	private static long eta(long done, long expected, long elapsedNanos) {
+		if (done >= expected)
+			return 0;
+		double rate = rate(done, elapsedNanos);
+		return rate <= 0 ? -1 : (long) Math.ceil((expected - done) / rate);
+	}
+
+	private static String formatBytes(long bytes) {
+		if (bytes < 1024)
+			return bytes + " B";
+		if (bytes < 1024 * 1024)
+			return String.format(Locale.ROOT, "%.1f KB", bytes / 1024.0);
+		if (bytes < 1024L * 1024 * 1024)
+			return String.format(Locale.ROOT, "%.1f MB", bytes / (1024.0 * 1024));
+		return String.format(Locale.ROOT, "%.1f GB", bytes / (1024.0 * 1024 * 1024));
+	}
+
+	private static String format(double value) {
+		return String.format(Locale.ROOT, "%.1f", value);
+	}
+
+	private static StringBuilder appendField(StringBuilder json, String field) {
+		return json.append(quote(field)).append(':');
+	}
+
+	private static StringBuilder appendSummary(StringBuilder json, Histogram histogram) {
+		json.append('{');
+		String separator = "";
+		for (Map.Entry<String, Long> value : histogram.getSummary().entrySet()) {
+			json.append(separator);
+			appendField(json, value.getKey()).append(value.getValue());
+			separator = ",";
+		}
+		return json.append('}');
+	}
+
+	private static String quote(String s) {
+		StringBuilder quoted = new StringBuilder(s.length() + 2).append('"');
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '"' || c == '\\')
+				quoted.append('\\').append(c);
+			else if (c < 0x20)
+				quoted.append(String.format(Locale.ROOT, "\\u%04x", (int) c));
+			else
+				quoted.append(c);
+		}
+		return quoted.append('"').toString();
+	}
+
+	/**
+	 * The transfer of one kind. Its rates are computed from when it started until the last
+	 * entities were recorded.
+	 */
+	private static class KindCounts {
+
+		final long startNanos = System.nanoTime();
+		final AtomicLong entities = new AtomicLong();
+		final AtomicLong bytes = new AtomicLong();
+		volatile long lastNanos = startNanos;
+
+		double rate(long amount) {
+			return TransferMetrics.rate(amount, lastNanos - startNanos);
+		}
+	}
+
+}
@@ -0,0 +1,50 @@
+package net.styleguise.tools;
+
+import java.util.Map;
+
+/**
+ * The management interface of {@link TransferMetrics}, through which a running export or
+ * import can be watched with JConsole or any other JMX client.
+ */
+public interface TransferMetricsMXBean {
+
+	long getElapsedMillis();
+
+	long getEntities();
+
+	long getBytes();
+
+	double getEntitiesPerSecond();
+
+	double getBytesPerSecond();
+
+	Map<String, Long> getEntitiesByKind();
+
+	Map<String, Long> getBytesByKind();
+
+	Map<String, Double> getEntitiesPerSecondByKind();
+
+	Map<String, Double> getBytesPerSecondByKind();
+
+	/**
+	 * The number of entities per fetched batch or per put.
+	 */
+	Map<String, Long> getBatchSizes();
+
+	Map<String, Long> getFetchLatencyMicros();
+
+	Map<String, Long> getPutLatencyMicros();
+
+	long getRetries();
+
+	/**
+	 * The current number of items waiting in each watched queue.
+	 */
+	Map<String, Long> getQueueDepths();
+
+	/**
+	 * The estimated number of seconds until the transfer is complete, or -1 if unknown.
+	 */
+	long getEtaSeconds();
+
+}
@@ -0,0 +1,116 @@
+package net.styleguise.tools;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Date;
+import java.util.Properties;
+
+/**
+ * The high-water marks of incremental exports, kept in a properties file between runs.
+ *
+ * The high-water mark of a kind is the greatest value of its timestamp property among the
+ * entities exported so far. The next export of the kind only fetches entities whose timestamp is
+ * greater than it, less a lag which covers the entities written late with an earlier timestamp.
+ * Timestamps may be stored either as java.util.Date or as milliseconds in a
+ * java.lang.Long; the type is recorded along with the value so the datastore filter compares like
+ * with like.
+ */
+public class Watermarks {
+
+	private static final String TmpExtension = ".tmp";
+	private static final String DatePrefix = "date:";
+	private static final String LongPrefix = "long:";
+
+	private final Path file;
+	private final Properties properties = new Properties();
+
+	private Watermarks(Path file) {
+		this.file = file;
+	}
+
+	/**
+	 * Loads the high-water marks from the file. The file does not need to exist yet.
+	 */
+	public static Watermarks load(Path file) throws IOException {
+		Watermarks watermarks = new Watermarks(file);
+		if (Files.exists(file)) {
+			try (InputStream in = Files.newInputStream(file)) {
+				watermarks.properties.load(in);
+			}
+		}
+		return watermarks;
+	}
+
+	/**
+	 * @return the high-water mark of the kind, or null if it has never been exported
+	 */
+	public synchronized Object get(String kind) {
+		return decode(properties.getProperty(kind));
+	}
+
+	public synchronized void put(String kind, Object watermark) {
+		properties.setProperty(kind, encode(watermark));
+	}
+
+	public synchronized void save() throws IOException {
+		Path tmp = file.resolveSibling(file.getFileName() + TmpExtension);
+		try (OutputStream out = Files.newOutputStream(tmp)) {
+			properties.store(out, null);
+		}
+		Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * @return whether the property value can be used as a timestamp
+	 */
+	public static boolean isTimestamp(Object value) {
+		return value instanceof Date || value instanceof Long;
+	}
+
+	/**
+	 * @return the greater of two timestamps, either of which may be null
+	 */
+	public static Object max(Object a, Object b) {
+		if (a == null)
+			return b;
+		if (b == null)
+			return a;
+		return toMillis(b) > toMillis(a) ? b : a;
+	}
+
+	/**
+	 * @return the timestamp moved back by the given number of milliseconds, of the same type
+	 */
+	public static Object minus(Object timestamp, long millis) {
+		if (timestamp instanceof Date)
+			return new Date(((Date) timestamp).getTime() - millis);
+		return (Long) timestamp - millis;
+	}
+
+	public static String encode(Object watermark) {
+		if (watermark == null)
+			return null;
+		if (watermark instanceof Date)
+			return DatePrefix + ((Date) watermark).getTime();
+		return LongPrefix + watermark;
+	}
+
+	public static Object decode(String value) {
+		if (value == null)
+			return null;
+		if (value.startsWith(DatePrefix))
+			return new Date(Long.parseLong(value.substring(DatePrefix.length())));
+		if (value.startsWith(LongPrefix))
+			return Long.parseLong(value.substring(LongPrefix.length()));
+		throw new IllegalArgumentException("Invalid high-water mark: " + value);
+	}
+
+	private static long toMillis(Object timestamp) {
+		return timestamp instanceof Date ? ((Date) timestamp).getTime() : (Long) timestamp;
+	}
+
+}
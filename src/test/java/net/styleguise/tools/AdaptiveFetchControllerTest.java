@@ -0,0 +1,73 @@
+package net.styleguise.tools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.google.appengine.api.datastore.FetchOptions;
+
+public class AdaptiveFetchControllerTest {
+
+	private static final long FastNanos = 10 * 1000000L;
+	private static final long SlowNanos = (AdaptiveFetchController.TargetBatchMillis + 1) * 1000000L;
+
+	@Test
+	public void testGrowsWhileBatchesAreFast() {
+		AdaptiveFetchController fetch = new AdaptiveFetchController(10, 1000, 500, 100);
+		fetch.recordBatch(100, FastNanos);
+		assertEquals(200, fetch.getLimit());
+		// a short batch is the end of the query, not a reason to grow
+		fetch.recordBatch(50, FastNanos);
+		assertEquals(200, fetch.getLimit());
+		for (int i = 0; i < 10; i++)
+			fetch.recordBatch(fetch.getLimit(), FastNanos);
+		assertEquals(1000, fetch.getLimit());
+	}
+
+	@Test
+	public void testBacksOffAndRecovers() {
+		AdaptiveFetchController fetch = new AdaptiveFetchController(10, 1000, 500, 400);
+		fetch.recordBatch(400, SlowNanos);
+		assertEquals(200, fetch.getLimit());
+		assertTrue(fetch.recordDeadline());
+		assertEquals(100, fetch.getLimit());
+
+		fetch.recordBatch(100, FastNanos);
+		fetch.recordBatch(200, FastNanos);
+		assertEquals(400, fetch.getLimit());
+		assertTrue(fetch.toString().contains("limit=400 (100..400)"));
+		assertTrue(fetch.toString().contains("retries=1"));
+	}
+
+	@Test
+	public void testBacksOffFromLargeBatches() {
+		AdaptiveFetchController fetch = new AdaptiveFetchController(10, 1000, 500, 1000);
+		// 1000 entities of 10KB are more than the targeted batch size
+		fetch.recordBytes(1000, 1000 * 10 * 1024);
+		fetch.recordBatch(1000, FastNanos);
+		assertEquals(500, fetch.getLimit());
+		// the chunks stay around the targeted RPC size
+		FetchOptions options = fetch.newFetchOptions(null);
+		assertEquals(Integer.valueOf(500), options.getLimit());
+		assertEquals(Integer.valueOf(102), options.getChunkSize());
+		assertEquals(Integer.valueOf(102), options.getPrefetchSize());
+	}
+
+	@Test
+	public void testGivesUpAtTheMinimum() {
+		AdaptiveFetchController fetch = new AdaptiveFetchController(10, 1000, 500, 20);
+		assertTrue(fetch.recordDeadline());
+		assertEquals(10, fetch.getLimit());
+		for (int i = 0; i < AdaptiveFetchController.MaxRetries; i++)
+			assertTrue(fetch.recordDeadline());
+		assertFalse(fetch.recordDeadline());
+		assertEquals(10, fetch.getLimit());
+
+		// a successful batch resets the retries
+		fetch.recordBatch(10, FastNanos);
+		assertTrue(fetch.recordDeadline());
+	}
+
+}
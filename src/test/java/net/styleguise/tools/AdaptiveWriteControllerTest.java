@@ -0,0 +1,77 @@
+package net.styleguise.tools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ConcurrentModificationException;
+
+import org.junit.Test;
+
+import com.google.appengine.api.datastore.DatastoreTimeoutException;
+
+public class AdaptiveWriteControllerTest {
+
+	private static final long FastNanos = 10 * 1000000L;
+	private static final long SlowNanos = (AdaptiveWriteController.TargetPutMillis + 1) * 1000000L;
+
+	@Test
+	public void testBacksOffAndRecovers() {
+		AdaptiveWriteController write = new AdaptiveWriteController(4, 8, 50, 500);
+		long before = System.nanoTime();
+		long delay = write.recordThrottled(System.nanoTime(), 1);
+		assertTrue(delay >= 0 && delay <= 2 * AdaptiveWriteController.BaseBackoffMillis);
+		assertEquals(2, write.getConcurrency());
+		assertEquals(250, write.getBatchSize());
+
+		// puts which were in flight before the decrease do not halve the limits again
+		write.recordThrottled(before, 1);
+		write.recordSuccess(before, SlowNanos);
+		assertEquals(2, write.getConcurrency());
+		assertEquals(250, write.getBatchSize());
+
+		// one more put in flight and a larger batch each time as many puts as are in flight succeed
+		for (int i = 0; i < 2; i++)
+			write.recordSuccess(System.nanoTime(), FastNanos);
+		assertEquals(3, write.getConcurrency());
+		assertEquals(300, write.getBatchSize());
+		for (int i = 0; i < 3; i++)
+			write.recordSuccess(System.nanoTime(), FastNanos);
+		assertEquals(4, write.getConcurrency());
+		assertEquals(350, write.getBatchSize());
+
+		// a slow put backs off as well
+		write.recordSuccess(System.nanoTime(), SlowNanos);
+		assertEquals(2, write.getConcurrency());
+		assertEquals(175, write.getBatchSize());
+		assertTrue(write.toString().contains("inFlight=2 (2..4)"));
+		assertTrue(write.toString().contains("decreases=2"));
+	}
+
+	@Test
+	public void testLimits() {
+		AdaptiveWriteController write = new AdaptiveWriteController(2, 3, 50, 100);
+		for (int i = 0; i < 20; i++)
+			write.recordSuccess(System.nanoTime(), FastNanos);
+		assertEquals(3, write.getConcurrency());
+		assertEquals(100, write.getBatchSize());
+
+		for (int i = 0; i < 5; i++)
+			write.recordThrottled(System.nanoTime(), 1);
+		assertEquals(1, write.getConcurrency());
+		assertEquals(50, write.getBatchSize());
+
+		// the backoff is capped and the put is given up after the last attempt
+		assertTrue(write.recordThrottled(System.nanoTime(), AdaptiveWriteController.MaxAttempts - 1)
+				<= AdaptiveWriteController.MaxBackoffMillis);
+		assertEquals(-1, write.recordThrottled(System.nanoTime(), AdaptiveWriteController.MaxAttempts));
+	}
+
+	@Test
+	public void testIsRetryable() {
+		assertTrue(AdaptiveWriteController.isRetryable(new DatastoreTimeoutException("timeout")));
+		assertTrue(AdaptiveWriteController.isRetryable(new ConcurrentModificationException()));
+		assertFalse(AdaptiveWriteController.isRetryable(new IllegalArgumentException()));
+	}
+
+}
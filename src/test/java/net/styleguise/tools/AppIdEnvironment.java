@@ -0,0 +1,37 @@
+package net.styleguise.tools;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import com.google.apphosting.api.ApiProxy;
+
+/**
+ * Lets a test create keys and entities of another application in the local datastore, which keeps
+ * the entities of every application apart, e.g. to copy the entities of a source application into
+ * the application of the test.
+ */
+public class AppIdEnvironment {
+
+	/**
+	 * The current thread's API environment, but with the given application id.
+	 */
+	public static ApiProxy.Environment of(final String appId) {
+		final ApiProxy.Environment environment = ApiProxy.getCurrentEnvironment();
+		return (ApiProxy.Environment) Proxy.newProxyInstance(AppIdEnvironment.class.getClassLoader(),
+				new Class<?>[] { ApiProxy.Environment.class }, new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						if (method.getName().equals("getAppId"))
+							return appId;
+						try {
+							return method.invoke(environment, args);
+						} catch (InvocationTargetException e) {
+							throw e.getCause();
+						}
+					}
+				});
+	}
+
+}
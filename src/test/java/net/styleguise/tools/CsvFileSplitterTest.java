@@ -0,0 +1,78 @@
+package net.styleguise.tools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StringReader;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Test;
+
+public class CsvFileSplitterTest {
+
+	private static final String Csv = "name,text,count\n"
+			+ "a,plain,1\r\n"
+			+ "b,\"quoted, with comma\",2\n"
+			+ "c,\"embedded\nline\r\nbreaks\",3\r"
+			+ "d,\"\"\"escaped\"\" quotes\",4\n"
+			+ "\n"
+			+ "e,\u00e9t\u00e9 \ud83d\ude00,5\r\n"
+			+ "f,\"\",6";
+
+	@Test
+	public void testSplitMatchesSingleParse() throws Exception {
+		Path file = Files.createTempFile("splitter", ".csv");
+		ExecutorService executor = Executors.newFixedThreadPool(3);
+		try {
+			Files.write(file, Csv.getBytes(StandardCharsets.UTF_8));
+			List<List<String>> expected = parse(new CsvParser(new StringReader(Csv)));
+
+			for (int rangeSize : new int[] { 1, 2, 7, 16, 64, 1024 }) {
+				List<List<String>> rows = new ArrayList<>();
+				try (CsvFileSplitter splitter = new CsvFileSplitter(file, StandardCharsets.UTF_8)) {
+					rows.addAll(parse(splitter.newHeaderParser()));
+					long[] bounds = splitter.split(executor, rangeSize);
+					for (int i = 0; i + 1 < bounds.length; i++)
+						rows.addAll(parse(splitter.newParser(bounds[i], bounds[i + 1])));
+				}
+				assertEquals("range size " + rangeSize, expected, rows);
+			}
+		} finally {
+			executor.shutdownNow();
+			Files.delete(file);
+		}
+	}
+
+	@Test
+	public void testSupportedCharsets() {
+		assertTrue(CsvFileSplitter.isSupported(StandardCharsets.UTF_8));
+		assertTrue(CsvFileSplitter.isSupported(StandardCharsets.ISO_8859_1));
+		assertFalse(CsvFileSplitter.isSupported(StandardCharsets.UTF_16LE));
+		assertFalse(CsvFileSplitter.isSupported(Charset.forName("UTF-32")));
+	}
+
+	private static List<List<String>> parse(CsvParser parser) throws Exception {
+		List<List<String>> rows = new ArrayList<>();
+		try {
+			while (parser.next()) {
+				String[] row = new String[parser.getTokenCount()];
+				for (int i = 0; i < row.length; i++)
+					row[i] = parser.getString(i);
+				rows.add(Arrays.asList(row));
+			}
+		} finally {
+			parser.close();
+		}
+		return rows;
+	}
+
+}
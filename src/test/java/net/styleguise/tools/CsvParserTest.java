@@ -0,0 +1,79 @@
+package net.styleguise.tools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.StringReader;
+
+import org.junit.Test;
+
+public class CsvParserTest {
+
+	@Test
+	public void testRows() throws Exception {
+
+		String csv = "a,b,c\r\n"
+				+ "\"multi\nline\",\"say \"\"hi\"\"\",NULL\n"
+				+ "\"crlf\r\ninside\",,\"\"\r"
+				+ "last";
+
+		// a tiny buffer forces rows, quotes and line ends to straddle refills
+		for( int bufferSize : new int[]{ 1, 2, 3, 7, CsvParser.DefaultBufferSize } ){
+			try( CsvParser parser = new CsvParser(new StringReader(csv), bufferSize) ){
+				assertTrue(parser.next());
+				assertRow(parser, "a", "b", "c");
+
+				assertTrue(parser.next());
+				assertRow(parser, "multi\nline", "say \"hi\"", "NULL");
+				assertTrue(parser.isNull(2));
+
+				assertTrue(parser.next());
+				assertRow(parser, "crlf\r\ninside", "", "");
+
+				assertTrue(parser.next());
+				assertRow(parser, "last");
+				assertEquals(4, parser.getRowNumber());
+
+				assertFalse(parser.next());
+			}
+		}
+	}
+
+	@Test
+	public void testNumbers() throws Exception {
+
+		String csv = "0,-42,+7," + Long.MIN_VALUE + "," + Long.MAX_VALUE + ",9223372036854775808,1x,,-";
+		try( CsvParser parser = new CsvParser(new StringReader(csv)) ){
+			assertTrue(parser.next());
+			assertEquals(0, parser.getLong(0));
+			assertEquals(-42, parser.getInt(1));
+			assertEquals(7, parser.getLong(2));
+			assertEquals(Long.MIN_VALUE, parser.getLong(3));
+			assertEquals(Long.MAX_VALUE, parser.getLong(4));
+			for( int i = 5; i < parser.getTokenCount(); i++ ){
+				try{
+					parser.getLong(i);
+					fail("Parsed " + parser.getString(i));
+				}
+				catch( NumberFormatException e ){
+					// expected
+				}
+			}
+			try{
+				parser.getInt(4);
+				fail("Parsed an int out of range");
+			}
+			catch( NumberFormatException e ){
+				// expected
+			}
+		}
+	}
+
+	private static void assertRow(CsvParser parser, String... tokens){
+		assertEquals(tokens.length, parser.getTokenCount());
+		for( int i = 0; i < tokens.length; i++ )
+			assertEquals(tokens[i], parser.getString(i));
+	}
+}
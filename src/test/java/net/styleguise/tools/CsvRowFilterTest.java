@@ -0,0 +1,61 @@
+package net.styleguise.tools;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class CsvRowFilterTest {
+
+	private static final String Csv = "__key__,created,title\n"
+			+ "\"Thing(\"\"a_1\"\")\",1000,\"one, \"\"quoted\"\"\"\n"
+			+ "\"Thing(\"\"b_2\"\")\",3000,two\n"
+			+ "\"Parent(5)/Thing(\"\"c_3\"\")\",4000,three\n"
+			+ "\"Thing(\"\"d_4\"\")\",NULL,four\n";
+
+	@Test
+	public void testAfter() throws Exception {
+		CsvRowFilter filter = new CsvRowFilter();
+		filter.addAfterFilter("created", 2000);
+
+		assertEquals("__key__,created,title\n"
+				+ "\"Thing(\"\"b_2\"\")\",3000,two\n"
+				+ "\"Parent(5)/Thing(\"\"c_3\"\")\",4000,three\n", filter(filter));
+		assertEquals(4, filter.getRowsRead());
+		assertEquals(2, filter.getRowsWritten());
+	}
+
+	@Test
+	public void testIdsAndColumns() throws Exception {
+		CsvRowFilter filter = new CsvRowFilter();
+		filter.addIdFilter("__key__", CsvRowFilter.IdExtractor.KeyName, Arrays.asList("a_1", "c_3", "x"));
+		filter.setColumns("title", "__key__");
+
+		assertEquals("title,__key__\n"
+				+ "\"one, \"\"quoted\"\"\",\"Thing(\"\"a_1\"\")\"\n"
+				+ "three,\"Parent(5)/Thing(\"\"c_3\"\")\"\n", filter(filter));
+
+		filter = new CsvRowFilter();
+		filter.addIdFilter("__key__", CsvRowFilter.IdExtractor.KeyNamePrefix, Arrays.asList("b", "d"));
+		filter.addIdFilter("title", CsvRowFilter.IdExtractor.Cell, Arrays.asList("four"));
+		filter.setColumns("title");
+		assertEquals("title\nfour\n", filter(filter));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testUnknownColumn() throws Exception {
+		CsvRowFilter filter = new CsvRowFilter();
+		filter.setColumns("missing");
+		filter(filter);
+	}
+
+	private static String filter(CsvRowFilter filter) throws Exception {
+		StringWriter out = new StringWriter();
+		filter.filter(new StringReader(Csv), out);
+		return out.toString();
+	}
+
+}
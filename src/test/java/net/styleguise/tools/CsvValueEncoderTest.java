@@ -0,0 +1,66 @@
+package net.styleguise.tools;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class CsvValueEncoderTest {
+
+	@Test
+	public void testEscaping() throws Exception {
+		assertEquals("plain", encode("plain"));
+		assertEquals("\"a,b\"", encode("a,b"));
+		assertEquals("\"say \"\"hi\"\"\"", encode("say \"hi\""));
+		assertEquals("one__N__two__R__", encode("one\ntwo\r"));
+		assertEquals("", encode(""));
+		assertEquals("my_name", encode("my_name"));
+		assertEquals("__U___N__U___", encode("__N__"));
+		assertEquals("a;b", encode("a;b"));
+	}
+
+	@Test
+	public void testCollection() throws Exception {
+		StringWriter writer = new StringWriter();
+		new CsvValueEncoder().writeValue(writer, Arrays.asList("a;b", "c,d", null));
+		// the cell is quoted as a whole, not each element
+		assertEquals("\"a__S__b;c,d;NULL\"", writer.toString());
+	}
+
+	@Test
+	public void testRoundTrip() throws Exception {
+		String[] values = { "plain", "a,b", "\"", "say \"hi\", then leave", ",,", "x\"" };
+		CsvValueEncoder encoder = new CsvValueEncoder();
+		StringWriter row = new StringWriter();
+		for (int i = 0; i < values.length; i++) {
+			if (i > 0)
+				row.write(DatastoreExporter.FieldSeparator);
+			encoder.write(row, values[i]);
+		}
+
+		List<String> tokens = DatastoreImporter.tokenize(row.toString());
+		assertEquals(values.length, tokens.size());
+		for (int i = 0; i < values.length; i++)
+			assertEquals(values[i], tokens.get(i));
+	}
+
+	@Test
+	public void testLongValue() throws Exception {
+		StringBuilder value = new StringBuilder();
+		StringBuilder expected = new StringBuilder();
+		for (int i = 0; i < 1000; i++) {
+			value.append("\n\"");
+			expected.append("__N__\"\"");
+		}
+		assertEquals("\"" + expected + "\"", encode(value.toString()));
+	}
+
+	private static String encode(String value) throws Exception {
+		StringWriter writer = new StringWriter();
+		new CsvValueEncoder().write(writer, value);
+		return writer.toString();
+	}
+}
@@ -0,0 +1,353 @@
+package net.styleguise.tools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.Charset;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+
+import net.styleguise.tools.ExportManifest.PartCheckpoint;
+
+public class DatastoreExporterTest {
+
+	private final LocalServiceTestHelper helper = new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+	private final ArrayList<Path> dirs = new ArrayList<>();
+
+	@Before
+	public void setUp() {
+		helper.setUp();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		try {
+			for (Path dir : dirs) {
+				try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+					for (Path file : files)
+						Files.delete(file);
+				}
+				Files.delete(dir);
+			}
+		} finally {
+			helper.tearDown();
+		}
+	}
+
+	/**
+	 * Deletes the directory of an export, and the files in it, after the test.
+	 */
+	private Path deleteAfter(Path dir) {
+		dirs.add(dir);
+		return dir;
+	}
+
+	@Test
+	public void testExportKeys() throws Exception {
+		Key parent = KeyFactory.createKey("Parent", 5);
+		ArrayList<Entity> entities = new ArrayList<>();
+		for (int i = 1; i <= 1200; i++) {
+			Entity entity = new Entity("Thing", i);
+			entity.setProperty("value", i);
+			entities.add(entity);
+		}
+		Entity named = new Entity("Thing", "named");
+		Entity child = new Entity("Thing", "child", parent);
+		entities.add(named);
+		entities.add(child);
+		DatastoreServiceFactory.getDatastoreService().put(entities);
+
+		ArrayList<String> ids = new ArrayList<>();
+		for (int i = 1200; i >= 2; i -= 2)
+			ids.add(Integer.toString(i));
+		ids.addAll(Arrays.asList("named", child.getKey().toString(), "1300", "", "4", "absent"));
+
+		Path file;
+		try (DatastoreExporter exporter = new DatastoreExporter()) {
+			exporter.setBinary(true);
+			exporter.setExportThreads(2);
+			file = exporter.exportKeys("Thing", ids);
+		}
+		Path dir = deleteAfter(file.getParent());
+		List<Entity> exported;
+		try (EntityDumpReader reader = new EntityDumpReader(file)) {
+			exported = new ArrayList<>();
+			for (int block = 0; block < reader.getBlockCount(); block++)
+				exported.addAll(EntityDumpReader.decode(reader.readBlock(block)));
+		}
+		// in the order of the IDs, without the duplicate
+		assertEquals(602, exported.size());
+		assertEquals(KeyFactory.createKey("Thing", 1200), exported.get(0).getKey());
+		assertEquals(KeyFactory.createKey("Thing", 2), exported.get(599).getKey());
+		assertEquals(named, exported.get(600));
+		assertEquals(child.getKey(), exported.get(601).getKey());
+		assertEquals(Long.valueOf(2), exported.get(599).getProperty("value"));
+
+		assertEquals(Arrays.asList("Thing(1300)", "Thing(\"absent\")"),
+				Files.readAllLines(dir.resolve("Thing-missing.txt"), Charset.defaultCharset()));
+	}
+
+	@Test
+	public void testShardedExport() throws Exception {
+		Key parent = KeyFactory.createKey("Parent", 5);
+		ArrayList<Entity> entities = new ArrayList<>();
+		for (int i = 1; i <= 300; i++) {
+			entities.add(new Entity("Thing", i));
+			entities.add(new Entity("Thing", "name" + i));
+			entities.add(new Entity("Thing", i, parent));
+		}
+		DatastoreServiceFactory.getDatastoreService().put(entities);
+
+		List<Path> files;
+		try (DatastoreExporter exporter = new DatastoreExporter()) {
+			exporter.shardKind("Thing", 4);
+			files = exporter.exportData();
+		}
+		deleteAfter(files.get(0).getParent());
+		// every key once, in key order, as if the kind had been exported serially
+		ArrayList<Key> keys = new ArrayList<>();
+		for (Entity entity : entities)
+			keys.add(entity.getKey());
+		Collections.sort(keys);
+		ArrayList<String> cells = new ArrayList<>();
+		try (CsvParser parser = new CsvParser(Files.newBufferedReader(files.get(0), Charset.defaultCharset()))) {
+			while (parser.next())
+				cells.add(new String(parser.getBuffer(), parser.getOffset(0), parser.getLength(0)));
+		}
+		assertEquals(keys.size() + 1, cells.size());
+		for (int i = 0; i < keys.size(); i++)
+			assertEquals(keys.get(i).toString(), cells.get(i + 1));
+	}
+
+	@Test
+	public void testResumeSkipsFinishedParts() throws Exception {
+		ArrayList<Entity> entities = new ArrayList<>();
+		for (int i = 1; i <= 100; i++) {
+			Entity thing = new Entity("Thing", i);
+			thing.setProperty("value", i);
+			entities.add(thing);
+		}
+		DatastoreServiceFactory.getDatastoreService().put(entities);
+
+		// an export which died after the first of two key ranges and after another kind was done
+		Path dir = deleteAfter(Files.createTempDirectory("resume"));
+		ExportManifest manifest = ExportManifest.create(dir, Arrays.asList("Other", "Thing"));
+		Path other = Files.write(dir.resolve("Other.csv"), Arrays.asList("__key__", "Other(1)"), Charset.defaultCharset());
+		manifest.startKind("Other", "Other.csv", Arrays.asList(new PartCheckpoint(null, null)),
+				Collections.<String>emptyList(), 0, null, null, null);
+		manifest.setDone("Other", "Other.csv");
+
+		List<PartCheckpoint> checkpoints = Arrays.asList(
+				new PartCheckpoint(null, KeyFactory.createKey("Thing", 51)),
+				new PartCheckpoint(KeyFactory.createKey("Thing", 51), null));
+		try (KindCsvWriter writer = new KindCsvWriter(dir.resolve("Thing.csv"), Arrays.asList("value"))) {
+			KindWriter.Part first = writer.newPart();
+			KindWriter.Part second = writer.newPart();
+			checkpoints.get(0).direct = first.isDirect();
+			checkpoints.get(0).offset = writer.getOffset();
+			manifest.startKind("Thing", "Thing.csv", checkpoints, writer.getColumnNames(),
+					writer.getKnownColumnCount(), null, null, null);
+			for (Entity thing : entities.subList(0, 50))
+				first.write(thing);
+			first.flush();
+			checkpoints.get(0).offset = writer.getOffset();
+			checkpoints.get(0).rows = 50;
+			checkpoints.get(0).done = true;
+			manifest.checkpoint("Thing", 0, checkpoints.get(0), writer.getColumnNames(), writer.getKnownColumnCount());
+			second.close();
+		}
+
+		// values which are only exported if a range is fetched again
+		for (int i = 1; i <= 100; i++)
+			entities.get(i - 1).setProperty("value", 1000 + i);
+		DatastoreServiceFactory.getDatastoreService().put(entities);
+
+		List<Path> files;
+		try (DatastoreExporter exporter = new DatastoreExporter()) {
+			files = exporter.resume(dir);
+		}
+		assertEquals(other, files.get(0));
+		assertEquals(Arrays.asList("__key__", "Other(1)"), Files.readAllLines(other, Charset.defaultCharset()));
+		List<String> lines = Files.readAllLines(files.get(1), Charset.defaultCharset());
+		assertEquals(101, lines.size());
+		assertEquals("__key__,value", lines.get(0));
+		for (int i = 1; i <= 100; i++)
+			assertEquals("Thing(" + i + ")," + (i <= 50 ? i : 1000 + i), lines.get(i));
+	}
+
+	@Test
+	public void testSelectColumns() throws Exception {
+		ArrayList<Entity> entities = new ArrayList<>();
+		for (int i = 1; i <= 3; i++) {
+			// indexed properties are projected
+			Entity thing = new Entity("Thing", i);
+			thing.setProperty("n", i);
+			thing.setProperty("s", "s" + i);
+			thing.setProperty("other", "o" + i);
+			entities.add(thing);
+			// an unindexed property is pruned from whole entities
+			Entity note = new Entity("Note", i);
+			note.setProperty("n", i);
+			note.setUnindexedProperty("u", "u" + i);
+			entities.add(note);
+		}
+		DatastoreServiceFactory.getDatastoreService().put(entities);
+
+		List<Path> files;
+		try (DatastoreExporter exporter = new DatastoreExporter()) {
+			exporter.selectColumns("Thing", "s", "n");
+			exporter.selectColumns("Note", "u");
+			files = exporter.exportData();
+		}
+		deleteAfter(files.get(0).getParent());
+		for (Path file : files) {
+			List<String> lines = Files.readAllLines(file, Charset.defaultCharset());
+			if (file.getFileName().toString().startsWith("Thing"))
+				assertEquals(Arrays.asList("__key__,s,n", "Thing(1),s1,1", "Thing(2),s2,2", "Thing(3),s3,3"), lines);
+			else
+				assertEquals(Arrays.asList("__key__,u", "Note(1),u1", "Note(2),u2", "Note(3),u3"), lines);
+		}
+		assertEquals(2, files.size());
+	}
+
+	@Test
+	public void testSelectMissingColumn() throws Exception {
+		ArrayList<Entity> entities = new ArrayList<>();
+		for (int i = 1; i <= 4; i++) {
+			// the first entity looks projectable, later ones lack an indexed value
+			Entity thing = new Entity("Thing", i);
+			thing.setProperty("n", i);
+			if (i == 3)
+				thing.setUnindexedProperty("s", "s" + i);
+			else if (i != 2)
+				thing.setProperty("s", "s" + i);
+			entities.add(thing);
+		}
+		DatastoreServiceFactory.getDatastoreService().put(entities);
+
+		List<Path> files;
+		try (DatastoreExporter exporter = new DatastoreExporter()) {
+			exporter.selectColumns("Thing", "s", "n");
+			files = exporter.exportData();
+		}
+		deleteAfter(files.get(0).getParent());
+		assertEquals(Arrays.asList("__key__,s,n", "Thing(1),s1,1", "Thing(2),NULL,2", "Thing(3),s3,3", "Thing(4),s4,4"),
+				Files.readAllLines(files.get(0), Charset.defaultCharset()));
+	}
+
+	@Test
+	public void testSelectMultiValuedColumn() throws Exception {
+		ArrayList<Entity> entities = new ArrayList<>();
+		for (int i = 1; i <= 3; i++) {
+			// the first entity looks projectable, a later one has a list
+			Entity thing = new Entity("Thing", i);
+			thing.setProperty("n", i == 2 ? Arrays.asList(2L, 20L) : (Object) (long) i);
+			thing.setProperty("other", "o" + i);
+			entities.add(thing);
+		}
+		DatastoreServiceFactory.getDatastoreService().put(entities);
+
+		List<Path> files;
+		try (DatastoreExporter exporter = new DatastoreExporter()) {
+			exporter.selectColumns("Thing", "n");
+			files = exporter.exportData();
+		}
+		deleteAfter(files.get(0).getParent());
+		assertEquals(1, files.size());
+		List<String> lines = Files.readAllLines(files.get(0), Charset.defaultCharset());
+		assertEquals(4, lines.size());
+		assertEquals("__key__,n", lines.get(0));
+		assertEquals("Thing(1),1", lines.get(1));
+		assertTrue(lines.get(2).startsWith("Thing(2),") && lines.get(2).contains("20"));
+		assertEquals("Thing(3),3", lines.get(3));
+	}
+
+	@Test
+	public void testIncrementalExportCatchesLateWrites() throws Exception {
+		ArrayList<Entity> entities = new ArrayList<>();
+		for (int i = 1; i <= 3; i++) {
+			Entity entity = new Entity("Thing", i);
+			entity.setProperty("modified", 1000L * i);
+			entities.add(entity);
+		}
+		DatastoreServiceFactory.getDatastoreService().put(entities);
+
+		Path watermarks = Files.createTempFile("watermarks", ".properties");
+		Files.delete(watermarks);
+		try {
+			List<String> first = exportIncrementally(watermarks);
+			assertEquals(4, first.size());
+			assertEquals(Long.valueOf(3000), Watermarks.load(watermarks).get("Thing"));
+
+			// written after the export with the timestamp of the last exported entity
+			Entity late = new Entity("Thing", 4);
+			late.setProperty("modified", 3000L);
+			DatastoreServiceFactory.getDatastoreService().put(late);
+
+			List<String> second = exportIncrementally(watermarks);
+			assertEquals(Arrays.asList("__key__,modified", "Thing(1),1000", "Thing(2),2000", "Thing(3),3000",
+					"Thing(4),3000"), second);
+			assertEquals(Long.valueOf(3000), Watermarks.load(watermarks).get("Thing"));
+		} finally {
+			Files.delete(watermarks);
+		}
+	}
+
+	private List<String> exportIncrementally(Path watermarks) throws Exception {
+		List<Path> files;
+		try (DatastoreExporter exporter = new DatastoreExporter()) {
+			exporter.setTimestampProperty("Thing", "modified");
+			exporter.setWatermarkFile(watermarks);
+			files = exporter.exportData();
+		}
+		deleteAfter(files.get(0).getParent());
+		return Files.readAllLines(files.get(0), Charset.defaultCharset());
+	}
+
+	@Test
+	public void testStreamedBytes() throws Exception {
+		ArrayList<Entity> entities = new ArrayList<>();
+		for (int i = 1; i <= 100; i++) {
+			Entity entity = new Entity("Thing", i);
+			entity.setProperty("value", "value " + i);
+			entities.add(entity);
+		}
+		DatastoreServiceFactory.getDatastoreService().put(entities);
+
+		final List<Entity> streamed = Collections.synchronizedList(new ArrayList<Entity>());
+		try (DatastoreExporter exporter = new DatastoreExporter()) {
+			exporter.exportData(new EntitySink() {
+				@Override
+				public void put(String kind, List<Entity> batch) {
+					streamed.addAll(batch);
+				}
+			});
+			assertEquals(100, streamed.size());
+			assertEquals(100, exporter.getMetrics().getEntities());
+			// no rows are written, so the size of the entities is estimated
+			assertTrue(exporter.getMetrics().getBytes() > 100 * "value 100".length());
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testKeyOfAnotherKind() {
+		DatastoreExporter.toKey("Thing", "Other(1)");
+	}
+
+}
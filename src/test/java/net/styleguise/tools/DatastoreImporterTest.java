@@ -1,13 +1,55 @@
 package net.styleguise.tools;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.junit.After;
+import org.junit.Before;
 import org.junit.Test;
 
+import com.google.appengine.api.NamespaceManager;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Text;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.apphosting.api.ApiProxy;
+import com.google.apphosting.api.ApiProxy.ApiConfig;
+import com.google.apphosting.api.ApiProxy.Environment;
+import com.google.apphosting.api.ApiProxy.LogRecord;
+import com.google.apphosting.api.ApiProxy.RequestTooLargeException;
+
 public class DatastoreImporterTest {
 
+	private final LocalServiceTestHelper helper = new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+
+	@Before
+	public void setUp(){
+		helper.setUp();
+	}
+
+	@After
+	public void tearDown(){
+		helper.tearDown();
+	}
+
 	@Test
 	public void testTokenize(){
 
@@ -21,4 +63,203 @@ public class DatastoreImporterTest {
 		assertEquals("wild fox \"jumps\" over the bridge, sort of", tokens.get(4));
 		assertEquals("five", tokens.get(5));
 	}
+
+	@Test
+	public void testEstimateSize(){
+
+		Entity entity = new Entity("Thing", "name");
+		long empty = DatastoreImporter.estimateSize(entity);
+		assertTrue(empty > "Thing".length() + "name".length());
+
+		// strings count their UTF-8 bytes
+		entity.setProperty("s", "abé€");
+		long string = DatastoreImporter.estimateSize(entity);
+		entity.setProperty("s", new Text("abé€"));
+		assertEquals(string, DatastoreImporter.estimateSize(entity));
+		entity.setProperty("s", "");
+		assertEquals(string - 7, DatastoreImporter.estimateSize(entity));
+
+		// every value of a collection repeats the property name
+		entity.setProperty("s", Arrays.asList("abé€", ""));
+		assertEquals(2 * string - 7 - empty, DatastoreImporter.estimateSize(entity));
+	}
+
+	@Test
+	public void testDumpOfAnotherApp() throws Exception {
+
+		// dump entities of another application
+		ApiProxy.Environment target = ApiProxy.getCurrentEnvironment();
+		ApiProxy.setEnvironmentForCurrentThread(AppIdEnvironment.of("s~source"));
+		Path dir = Files.createTempDirectory("dump");
+		Path file = dir.resolve("Thing-1" + KindEntityWriter.FileExtension);
+		try{
+			Key parent = KeyFactory.createKey("Parent", 5);
+			Entity root = new Entity("Thing", 1);
+			root.setProperty("ref", parent);
+			root.setProperty("refs", Arrays.asList(parent, null));
+			root.setUnindexedProperty("text", new Text("text"));
+			NamespaceManager.set("ns");
+			Entity child = new Entity("Thing", "child", KeyFactory.createKey("Parent", 6));
+			NamespaceManager.set("");
+			try( KindEntityWriter writer = new KindEntityWriter(file) ){
+				KindWriter.Part part = writer.newPart();
+				part.write(root);
+				part.write(child);
+				writer.finish();
+			}
+		}
+		finally{
+			ApiProxy.setEnvironmentForCurrentThread(target);
+		}
+
+		try( DatastoreImporter importer = new DatastoreImporter(null) ){
+			importer.importData(Arrays.asList(file));
+		}
+		finally{
+			Files.delete(file);
+			Files.delete(dir);
+		}
+
+		// the entities and their keys belong to the application they were imported into
+		DatastoreService ds = DatastoreServiceFactory.getDatastoreService();
+		Key parent = KeyFactory.createKey("Parent", 5);
+		Entity root = ds.get(KeyFactory.createKey("Thing", 1));
+		assertEquals(parent, root.getProperty("ref"));
+		assertEquals(target.getAppId(), ((Key) root.getProperty("ref")).getAppId());
+		assertEquals(Arrays.asList(parent, null), root.getProperty("refs"));
+		assertEquals(new Text("text"), root.getProperty("text"));
+		assertTrue(root.isUnindexedProperty("text"));
+		assertEquals(1, ds.prepare(new Query("Thing")).countEntities(FetchOptions.Builder.withDefaults()));
+
+		NamespaceManager.set("ns");
+		try{
+			Entity child = ds.get(KeyFactory.createKey(KeyFactory.createKey("Parent", 6), "Thing", "child"));
+			assertEquals("ns", child.getKey().getParent().getNamespace());
+		}
+		finally{
+			NamespaceManager.set("");
+		}
+	}
+
+	@Test
+	public void testFailedFileIsReported() throws Exception {
+
+		Path dir = Files.createTempDirectory("dump");
+		Path file = dir.resolve("Thing-1" + KindEntityWriter.FileExtension);
+		Path broken = dir.resolve("Broken-1" + KindEntityWriter.FileExtension);
+		try{
+			try( KindEntityWriter writer = new KindEntityWriter(file) ){
+				writer.newPart().write(new Entity("Thing", 1));
+				writer.finish();
+			}
+			Files.write(broken, new byte[] { 1, 2, 3 });
+
+			try( DatastoreImporter importer = new DatastoreImporter(null) ){
+				importer.importData(Arrays.asList(broken, file));
+				fail("The broken file was not reported");
+			}
+			catch( IOException e ){
+				assertTrue(e.getMessage().contains(broken.toString()));
+			}
+		}
+		finally{
+			Files.deleteIfExists(file);
+			Files.deleteIfExists(broken);
+			Files.delete(dir);
+		}
+
+		// the other file was loaded regardless
+		assertEquals(1, DatastoreServiceFactory.getDatastoreService()
+				.prepare(new Query("Thing").setKeysOnly()).countEntities(FetchOptions.Builder.withDefaults()));
+	}
+
+	@Test
+	public void testTooLargePutIsSplit() throws Exception {
+
+		// the datastore rejects puts of more than about ten of these entities
+		final int maxRequestBytes = 10 * 1000 + 500;
+		final AtomicInteger rejected = new AtomicInteger();
+		rejectLargePuts(maxRequestBytes, rejected);
+
+		ArrayList<Entity> entities = new ArrayList<>();
+		StringBuilder value = new StringBuilder();
+		for( int i = 0; i < 1000; i++ )
+			value.append('v');
+		for( int i = 1; i <= 100; i++ ){
+			Entity entity = new Entity("Thing", i);
+			entity.setUnindexedProperty("value", new Text(value.toString()));
+			entities.add(entity);
+		}
+
+		EntityQueue queue = new EntityQueue(4);
+		queue.put("Thing", entities);
+		queue.close();
+		try( DatastoreImporter importer = new DatastoreImporter(null) ){
+			importer.importData(queue);
+		}
+
+		// the rejected puts were halved until they fit
+		assertTrue(rejected.get() > 0);
+		assertEquals(100, DatastoreServiceFactory.getDatastoreService()
+				.prepare(new Query("Thing").setKeysOnly()).countEntities(FetchOptions.Builder.withDefaults()));
+	}
+
+	/**
+	 * Wraps the API delegate of the test helper so that it fails puts whose request is larger
+	 * than the given number of bytes, like the datastore does.
+	 */
+	@SuppressWarnings("unchecked")
+	private static void rejectLargePuts(final int maxRequestBytes, final AtomicInteger rejected){
+
+		final ApiProxy.Delegate<Environment> local = ApiProxy.getDelegate();
+		ApiProxy.setDelegate(new ApiProxy.Delegate<Environment>(){
+
+			@Override
+			public byte[] makeSyncCall(Environment environment, String packageName, String methodName, byte[] request){
+				checkSize(packageName, methodName, request);
+				return local.makeSyncCall(environment, packageName, methodName, request);
+			}
+
+			@Override
+			public Future<byte[]> makeAsyncCall(Environment environment, final String packageName,
+					final String methodName, byte[] request, ApiConfig apiConfig){
+				try{
+					checkSize(packageName, methodName, request);
+				}
+				catch( final RequestTooLargeException e ){
+					FutureTask<byte[]> failed = new FutureTask<>(new Callable<byte[]>(){
+						@Override
+						public byte[] call(){
+							throw e;
+						}
+					});
+					failed.run();
+					return failed;
+				}
+				return local.makeAsyncCall(environment, packageName, methodName, request, apiConfig);
+			}
+
+			@Override
+			public void log(Environment environment, LogRecord record){
+				local.log(environment, record);
+			}
+
+			@Override
+			public void flushLogs(Environment environment){
+				local.flushLogs(environment);
+			}
+
+			@Override
+			public List<Thread> getRequestThreads(Environment environment){
+				return local.getRequestThreads(environment);
+			}
+
+			private void checkSize(String packageName, String methodName, byte[] request){
+				if( "Put".equals(methodName) && request.length > maxRequestBytes ){
+					rejected.incrementAndGet();
+					throw new RequestTooLargeException(packageName, methodName);
+				}
+			}
+		});
+	}
 }
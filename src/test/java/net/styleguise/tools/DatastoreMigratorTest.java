@@ -0,0 +1,109 @@
+package net.styleguise.tools;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.apphosting.api.ApiProxy;
+
+/**
+ * Copies entities between two applications of the local datastore, which keeps the entities of
+ * every application apart like two datastores.
+ */
+public class DatastoreMigratorTest {
+
+	private static final int Entities = 50;
+
+	private final LocalServiceTestHelper helper = new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+	private ApiProxy.Environment target;
+	private ApiProxy.Environment source;
+
+	@Before
+	public void setUp() {
+		helper.setUp();
+		target = ApiProxy.getCurrentEnvironment();
+		source = AppIdEnvironment.of("s~source");
+	}
+
+	@After
+	public void tearDown() {
+		ApiProxy.setEnvironmentForCurrentThread(target);
+		helper.tearDown();
+	}
+
+	@Test
+	public void testMigrateToAnotherApp() throws Exception {
+		ApiProxy.setEnvironmentForCurrentThread(source);
+		seed();
+		try (DatastoreExporter exporter = new DatastoreExporter()) {
+			DatastoreMigrator.migrate(exporter, newImporterFactory());
+		}
+		assertMigrated();
+	}
+
+	@Test
+	public void testSyncToAnotherAppTwice() throws Exception {
+		ApiProxy.setEnvironmentForCurrentThread(source);
+		seed();
+		for (int run = 0; run < 2; run++) {
+			ApiProxy.setEnvironmentForCurrentThread(source);
+			try (DatastoreExporter exporter = new DatastoreExporter()) {
+				DatastoreMigrator.sync(exporter, newImporterFactory(), true);
+				// the second sync finds every key in the target, so it copies and deletes nothing
+				assertEquals(run == 0 ? Entities : 0, exporter.getMetrics().getEntities());
+			}
+			assertMigrated();
+		}
+	}
+
+	/**
+	 * Creates the importers on their own thread, in the target application.
+	 */
+	private Callable<DatastoreImporter> newImporterFactory() {
+		return new Callable<DatastoreImporter>() {
+			@Override
+			public DatastoreImporter call() {
+				ApiProxy.setEnvironmentForCurrentThread(target);
+				return new DatastoreImporter(null);
+			}
+		};
+	}
+
+	private void seed() {
+		Key parent = KeyFactory.createKey("Parent", 5);
+		ArrayList<Entity> entities = new ArrayList<>();
+		for (int i = 1; i <= Entities; i++) {
+			Entity entity = new Entity("Thing", i, parent);
+			entity.setProperty("ref", KeyFactory.createKey("Thing", i + 1));
+			entities.add(entity);
+		}
+		DatastoreServiceFactory.getDatastoreService().put(entities);
+	}
+
+	/**
+	 * Checks that the target application has the entities, keyed in the target application.
+	 */
+	private void assertMigrated() throws Exception {
+		ApiProxy.setEnvironmentForCurrentThread(target);
+		DatastoreService ds = DatastoreServiceFactory.getDatastoreService();
+		assertEquals(Entities, ds.prepare(new Query("Thing")).countEntities(FetchOptions.Builder.withDefaults()));
+		Entity entity = ds.get(KeyFactory.createKey(KeyFactory.createKey("Parent", 5), "Thing", 1));
+		assertEquals(KeyFactory.createKey("Thing", 2), entity.getProperty("ref"));
+		assertEquals(target.getAppId(), ((Key) entity.getProperty("ref")).getAppId());
+	}
+
+}
@@ -0,0 +1,178 @@
+package net.styleguise.tools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import javax.persistence.OneToMany;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.appengine.api.NamespaceManager;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Text;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+
+public class EntityDecoderTest {
+
+	private static final String Alphabet = "a_NUS;,\"\n\r";
+	private static final String[] Header = { "__key__", "s", "tags", "refs", "text" };
+
+	private final LocalServiceTestHelper helper = new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+
+	@Before
+	public void setUp() {
+		helper.setUp();
+	}
+
+	@After
+	public void tearDown() {
+		helper.tearDown();
+	}
+
+	@Test
+	public void testParseKey() {
+		Key parent = KeyFactory.createKey("Parent", 5);
+		Key child = KeyFactory.createKey(parent, "Child", "we\")ird/name");
+		assertEquals(child, EntityDecoder.parseKey(child.toString()));
+
+		NamespaceManager.set("ns1");
+		Key namespaced = KeyFactory.createKey("Thing", 3);
+		NamespaceManager.set("");
+		assertEquals(namespaced, EntityDecoder.parseKey(namespaced.toString()));
+		assertEquals("", NamespaceManager.get());
+
+		// the encoded form is still understood
+		assertEquals(child, EntityDecoder.parseKey(KeyFactory.keyToString(child)));
+	}
+
+	@Test
+	public void testUnescape() {
+		assertEquals("my_name", EntityDecoder.unescape("my_name"));
+		assertEquals("a\nb\r;_", EntityDecoder.unescape("a__N__b__R____S____U__"));
+		// written before underscores were escaped
+		assertEquals("a__b", EntityDecoder.unescape("a__b"));
+	}
+
+	@Test
+	public void testCompiledColumns() throws Exception {
+		String[] header = { "count", "small", "flag", "__key__", "ratio", "when", "state", "name", "numbers", "children", "extra" };
+		EntityDecoder decoder = new EntityDecoder(Typed.class, header);
+		String csv = "7,-3,true,Typed(11),0.5,1000,OPEN,a__N__b,1;NULL;3,Typed(2);Typed(3),42\n"
+				+ "NULL,NULL,NULL,Typed(12),NULL,NULL,NULL,NULL,NULL,NULL,NULL\n";
+
+		try (CsvParser parser = new CsvParser(new StringReader(csv))) {
+			// each column is decoded into the type of its field, wherever it is in the header
+			parser.next();
+			Entity typed = decoder.decode(parser);
+			assertEquals(KeyFactory.createKey("Typed", 11), typed.getKey());
+			assertEquals(7L, typed.getProperty("count"));
+			assertEquals(-3, typed.getProperty("small"));
+			assertEquals(true, typed.getProperty("flag"));
+			assertEquals(0.5, typed.getProperty("ratio"));
+			assertEquals(new Date(1000), typed.getProperty("when"));
+			assertEquals("OPEN", typed.getProperty("state"));
+			assertEquals("a\nb", typed.getProperty("name"));
+			assertEquals(Arrays.asList(1L, null, 3L), typed.getProperty("numbers"));
+			assertEquals(Arrays.asList(KeyFactory.createKey("Typed", 2), KeyFactory.createKey("Typed", 3)),
+					typed.getProperty("children"));
+			// a column without a field is imported as a string
+			assertEquals("42", typed.getProperty("extra"));
+
+			parser.next();
+			Entity nulls = decoder.decode(parser);
+			assertEquals(KeyFactory.createKey("Typed", 12), nulls.getKey());
+			assertEquals(header.length - 1, nulls.getProperties().size());
+			for (Object value : nulls.getProperties().values())
+				assertNull(value);
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testNoKeyColumn() {
+		new EntityDecoder(Typed.class, new String[] { "count", "name" });
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testShortRow() throws Exception {
+		EntityDecoder decoder = new EntityDecoder(Typed.class, new String[] { "__key__", "count", "name" });
+		try (CsvParser parser = new CsvParser(new StringReader("Typed(1),2\n"))) {
+			parser.next();
+			decoder.decode(parser);
+		}
+	}
+
+	@Test
+	public void testRoundTrip() throws Exception {
+		Random random = new Random(42);
+		CsvValueEncoder encoder = new CsvValueEncoder();
+		EntityDecoder decoder = new EntityDecoder(Note.class, Header);
+		for (int i = 0; i < 2000; i++) {
+			Entity entity = new Entity("Note", "k" + newString(random));
+			entity.setProperty("s", newString(random));
+			entity.setProperty("tags", Arrays.asList(newString(random), newString(random), null));
+			entity.setProperty("refs", Arrays.asList(KeyFactory.createKey("Note", "k" + newString(random))));
+			entity.setProperty("text", new Text(newString(random)));
+
+			StringWriter row = new StringWriter();
+			encoder.writeValue(row, entity.getKey());
+			for (int column = 1; column < Header.length; column++) {
+				row.write(DatastoreExporter.FieldSeparator);
+				encoder.writeValue(row, entity.getProperty(Header[column]));
+			}
+			row.write(DatastoreExporter.Newline);
+
+			try (CsvParser parser = new CsvParser(new StringReader(row.toString()))) {
+				parser.next();
+				Entity decoded = decoder.decode(parser);
+				assertEquals(row.toString(), entity.getKey(), decoded.getKey());
+				assertEquals(row.toString(), entity.getProperties(), decoded.getProperties());
+			}
+		}
+	}
+
+	private static String newString(Random random) {
+		StringBuilder s = new StringBuilder();
+		for (int i = random.nextInt(12); i > 0; i--)
+			s.append(Alphabet.charAt(random.nextInt(Alphabet.length())));
+		return s.toString();
+	}
+
+	private enum State { OPEN }
+
+	@SuppressWarnings("unused")
+	private static class Typed {
+		private Long count;
+		private int small;
+		private boolean flag;
+		private double ratio;
+		private Date when;
+		private State state;
+		private String name;
+		private Set<Long> numbers;
+		@OneToMany
+		private List<Typed> children;
+	}
+
+	@SuppressWarnings("unused")
+	private static class Note {
+		private String s;
+		private List<String> tags = new ArrayList<>();
+		private List<Key> refs = new ArrayList<>();
+		private Text text;
+	}
+
+}
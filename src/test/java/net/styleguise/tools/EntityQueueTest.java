@@ -0,0 +1,70 @@
+package net.styleguise.tools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.google.appengine.api.datastore.Entity;
+
+public class EntityQueueTest {
+
+	@Test
+	public void testEmptyBatchesAreSkipped() throws Exception {
+		EntityQueue queue = new EntityQueue(4);
+		List<Entity> entities = new ArrayList<>();
+		queue.put("Empty", Collections.<Entity>emptyList());
+		queue.put("Thing", entities);
+		queue.close();
+
+		assertNull(queue.take());
+		assertNull(queue.take());
+	}
+
+	@Test
+	public void testAbortReleasesPut() throws Exception {
+		final EntityQueue queue = new EntityQueue(1);
+		final List<Entity> entities = Arrays.asList((Entity) null);
+		queue.put("Thing", entities);
+
+		Thread aborter = new Thread() {
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(200);
+				} catch (InterruptedException e) {
+				}
+				queue.abort();
+			}
+		};
+		aborter.start();
+		try {
+			queue.put("Thing", entities); //blocks until aborted
+			fail();
+		} catch (IllegalStateException e) {
+		}
+		aborter.join();
+		queue.close();
+	}
+
+	@Test
+	public void testOrder() throws Exception {
+		EntityQueue queue = new EntityQueue(4);
+		queue.put("A", Arrays.asList((Entity) null));
+		queue.put("B", Arrays.asList((Entity) null, null));
+		queue.close();
+
+		assertEquals("A", queue.take().kind);
+		EntityQueue.KindBatch batch = queue.take();
+		assertEquals("B", batch.kind);
+		assertEquals(2, batch.entities.size());
+		assertNull(queue.take());
+	}
+
+}
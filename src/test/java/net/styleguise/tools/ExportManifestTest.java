@@ -0,0 +1,62 @@
+package net.styleguise.tools;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import net.styleguise.tools.ExportManifest.PartCheckpoint;
+
+public class ExportManifestTest {
+
+	private Path dir;
+
+	@Before
+	public void setUp() throws Exception {
+		dir = Files.createTempDirectory("manifest");
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		Files.deleteIfExists(dir.resolve(ExportManifest.FileName));
+		Files.delete(dir);
+	}
+
+	@Test
+	public void testKindsWithSeparators() throws Exception {
+		List<String> kinds = Arrays.asList("a,b", "c\\", "", "d");
+		ExportManifest.create(dir, kinds);
+		assertEquals(kinds, ExportManifest.load(dir).getKinds());
+		ExportManifest.create(dir, Collections.<String>emptyList());
+		assertEquals(Collections.emptyList(), ExportManifest.load(dir).getKinds());
+	}
+
+	@Test
+	public void testCheckpointsAreCoalesced() throws Exception {
+		ExportManifest manifest = ExportManifest.create(dir, Arrays.asList("Thing"));
+		PartCheckpoint checkpoint = new PartCheckpoint(null, null);
+		manifest.startKind("Thing", "Thing.csv", Arrays.asList(checkpoint),
+				Collections.<String>emptyList(), 0, null, null, null);
+
+		// a checkpoint right after a save waits for the next one
+		checkpoint.rows = 10;
+		manifest.checkpoint("Thing", 0, checkpoint, Collections.<String>emptyList(), 0);
+		assertEquals(0, ExportManifest.load(dir).getRows("Thing"));
+		manifest.flush();
+		assertEquals(10, ExportManifest.load(dir).getRows("Thing"));
+
+		// a finished part is written at once
+		checkpoint.rows = 20;
+		checkpoint.done = true;
+		manifest.checkpoint("Thing", 0, checkpoint, Collections.<String>emptyList(), 0);
+		assertEquals(20, ExportManifest.load(dir).getRows("Thing"));
+	}
+
+}
@@ -0,0 +1,125 @@
+package net.styleguise.tools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.appengine.api.NamespaceManager;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+
+public class KeyDiffTest {
+
+	private final LocalServiceTestHelper helper = new LocalServiceTestHelper();
+
+	@Before
+	public void setUp() {
+		helper.setUp();
+	}
+
+	@After
+	public void tearDown() {
+		helper.tearDown();
+	}
+
+	@Test
+	public void testCompare() {
+		Key parent = KeyFactory.createKey("A", 2);
+		List<Key> ordered = Arrays.asList(
+				KeyFactory.createKey("A", 1),
+				parent,
+				KeyFactory.createKey(parent, "A", 1),
+				KeyFactory.createKey(parent, "B", "x"),
+				KeyFactory.createKey("A", 10),
+				KeyFactory.createKey("A", "a"),
+				KeyFactory.createKey("A", "b"),
+				KeyFactory.createKey("A", "\uffff"),
+				KeyFactory.createKey("A", "\ud83d\ude00"),
+				KeyFactory.createKey("B", 1));
+		for (int i = 0; i < ordered.size(); i++) {
+			for (int j = 0; j < ordered.size(); j++) {
+				int c = KeyDiff.compare(ordered.get(i), ordered.get(j));
+				assertEquals(ordered.get(i) + " vs " + ordered.get(j), Integer.signum(Integer.compare(i, j)), Integer.signum(c));
+			}
+		}
+
+		// the namespace (like the application) is ignored
+		NamespaceManager.set("other");
+		Key namespaced = KeyFactory.createKey("A", 1);
+		NamespaceManager.set("");
+		assertEquals(0, KeyDiff.compare(ordered.get(0), namespaced));
+	}
+
+	@Test
+	public void testRun() throws Exception {
+		ArrayList<Key> source = new ArrayList<>();
+		ArrayList<Key> target = new ArrayList<>();
+		for (int i = 1; i <= 100; i++) {
+			Key key = KeyFactory.createKey("Thing", i);
+			if (i % 3 != 0)
+				source.add(key);
+			if (i % 5 != 0)
+				target.add(key);
+		}
+
+		final ArrayList<Key> missing = new ArrayList<>();
+		final ArrayList<Key> extra = new ArrayList<>();
+		final ArrayList<Integer> batchSizes = new ArrayList<>();
+		KeyDiff diff = new KeyDiff(4);
+		diff.run(stream(source), stream(target), new KeyDiff.Handler() {
+			@Override
+			public void missing(List<Key> keys) {
+				batchSizes.add(keys.size());
+				missing.addAll(keys);
+			}
+
+			@Override
+			public void extra(List<Key> keys) {
+				extra.addAll(keys);
+			}
+		});
+
+		// multiples of 5 but not of 3 are missing, multiples of 3 but not of 5 are extra
+		assertEquals(14, missing.size());
+		assertEquals(KeyFactory.createKey("Thing", 5), missing.get(0));
+		assertEquals(27, extra.size());
+		assertEquals(KeyFactory.createKey("Thing", 3), extra.get(0));
+		assertEquals(Arrays.asList(4, 4, 4, 2), batchSizes);
+		assertEquals(67, diff.getSourceKeys());
+		assertEquals(80, diff.getTargetKeys());
+		assertEquals(14, diff.getMissing());
+		assertEquals(27, diff.getExtra());
+	}
+
+	@Test
+	public void testOutOfOrder() throws Exception {
+		List<Key> keys = Arrays.asList(KeyFactory.createKey("Thing", 2), KeyFactory.createKey("Thing", 1));
+		try {
+			new KeyDiff(10).run(stream(keys), stream(new ArrayList<Key>()), null);
+		} catch (IllegalStateException e) {
+			assertTrue(e.getMessage(), e.getMessage().startsWith("Keys out of order"));
+			return;
+		}
+		throw new AssertionError("Expected an IllegalStateException");
+	}
+
+	private static KeyDiff.KeyStream stream(List<Key> keys) {
+		final Iterator<Key> i = keys.iterator();
+		return new KeyDiff.KeyStream() {
+			@Override
+			public Key next() {
+				return i.hasNext() ? i.next() : null;
+			}
+		};
+	}
+
+}
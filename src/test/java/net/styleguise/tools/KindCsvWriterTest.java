@@ -0,0 +1,100 @@
+package net.styleguise.tools;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+
+public class KindCsvWriterTest {
+
+	private final LocalServiceTestHelper helper = new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+	private Path dir;
+
+	@Before
+	public void setUp() throws Exception {
+		helper.setUp();
+		dir = Files.createTempDirectory("kind-csv-writer");
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+			for (Path file : files)
+				Files.delete(file);
+		}
+		Files.delete(dir);
+		helper.tearDown();
+	}
+
+	@Test
+	public void testResumeCompressed() throws Exception {
+		Path csv = dir.resolve("Thing.csv.gz");
+		KindCsvWriter writer = new KindCsvWriter(csv, Collections.singletonList("n"), 2);
+		KindWriter.Part part = writer.newPart();
+		part.write(newEntity(1));
+		part.write(newEntity(2));
+		part.flush();
+		long offset = writer.getOffset();
+		// written after the checkpoint and lost when the export is interrupted
+		part.write(newEntity(3));
+		writer.close();
+
+		writer = new KindCsvWriter(csv, writer.getColumnNames(), writer.getKnownColumnCount(), offset, 2);
+		part = writer.newPart(true, 0);
+		part.write(newEntity(3));
+		part.write(newEntity(4));
+		assertEquals(csv, writer.finish());
+		writer.close();
+
+		assertEquals(Arrays.asList("__key__,n", "Thing(1),1", "Thing(2),2", "Thing(3),3", "Thing(4),4"), gunzip(csv));
+	}
+
+	@Test
+	public void testDiscoveredColumnCompressed() throws Exception {
+		Path csv = dir.resolve("Thing.csv.gz");
+		KindCsvWriter writer = new KindCsvWriter(csv, Collections.singletonList("n"), 2);
+		KindWriter.Part part = writer.newPart();
+		part.write(newEntity(1));
+		Entity entity = newEntity(2);
+		entity.setUnindexedProperty("u", "x");
+		part.write(entity);
+		Path complete = writer.finish();
+		writer.close();
+
+		assertEquals(dir.resolve("Thing-complete.csv.gz"), complete);
+		assertEquals(Arrays.asList("__key__,n,u", "Thing(1),1,NULL", "Thing(2),2,x"), gunzip(complete));
+	}
+
+	private static Entity newEntity(long id) {
+		Entity entity = new Entity("Thing", id);
+		entity.setProperty("n", id);
+		return entity;
+	}
+
+	private static List<String> gunzip(Path file) throws Exception {
+		ArrayList<String> lines = new ArrayList<>();
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(new GZIPInputStream(Files.newInputStream(file))))) {
+			String line;
+			while ((line = reader.readLine()) != null)
+				lines.add(line);
+		}
+		return lines;
+	}
+
+}
@@ -0,0 +1,144 @@
+package net.styleguise.tools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Text;
+import com.google.apphosting.api.ApiProxy;
+
+public class KindEntityWriterTest {
+
+	private Path dir;
+
+	@Before
+	public void setUp() throws Exception {
+		dir = Files.createTempDirectory("entities");
+		// keys need an application id
+		ApiProxy.setEnvironmentForCurrentThread((ApiProxy.Environment) Proxy.newProxyInstance(
+				getClass().getClassLoader(), new Class<?>[] { ApiProxy.Environment.class }, new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) {
+						switch (method.getName()) {
+						case "getAppId": return "test";
+						case "getAttributes": return new HashMap<String, Object>();
+						case "getRequestNamespace": return "";
+						default: return null;
+						}
+					}
+				}));
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		ApiProxy.clearEnvironmentForCurrentThread();
+		for (Path file : Files.newDirectoryStream(dir))
+			Files.delete(file);
+		Files.delete(dir);
+	}
+
+	@Test
+	public void testRoundTrip() throws Exception {
+		Path file = dir.resolve("Thing-1" + KindEntityWriter.FileExtension);
+		List<Entity> expected = new ArrayList<>();
+		try (KindEntityWriter writer = new KindEntityWriter(file)) {
+			KindWriter.Part first = writer.newPart();
+			KindWriter.Part second = writer.newPart();
+			for (int i = 0; i < 2500; i++) {
+				Entity entity = newEntity(i);
+				expected.add(entity);
+				(i < 1200 ? first : second).write(entity);
+			}
+			writer.finish();
+		}
+		assertEntities(expected, readAll(file));
+		assertFalse(Files.exists(dir.resolve(file.getFileName() + ".1.spill")));
+	}
+
+	@Test
+	public void testResume() throws Exception {
+		Path file = dir.resolve("Thing-2" + KindEntityWriter.FileExtension);
+		List<Entity> expected = new ArrayList<>();
+		long offset;
+		long spillOffset;
+		try (KindEntityWriter writer = new KindEntityWriter(file)) {
+			KindWriter.Part first = writer.newPart();
+			KindWriter.Part second = writer.newPart();
+			for (int i = 0; i < 1500; i++)
+				first.write(newEntity(i));
+			for (int i = 2000; i < 3500; i++)
+				second.write(newEntity(i));
+			first.flush();
+			second.flush();
+			offset = writer.getOffset();
+			spillOffset = second.getSpillOffset();
+			// written after the checkpoint, so discarded on resume
+			first.write(newEntity(-1));
+			second.write(newEntity(-2));
+		}
+
+		try (KindEntityWriter writer = new KindEntityWriter(file, offset)) {
+			KindWriter.Part first = writer.newPart(true, 0);
+			KindWriter.Part second = writer.newPart(false, spillOffset);
+			for (int i = 1500; i < 2000; i++)
+				first.write(newEntity(i));
+			for (int i = 3500; i < 4000; i++)
+				second.write(newEntity(i));
+			writer.finish();
+		}
+
+		for (int i = 0; i < 4000; i++)
+			expected.add(newEntity(i));
+		assertEntities(expected, readAll(file));
+	}
+
+	private static void assertEntities(List<Entity> expected, List<Entity> actual) {
+		assertEquals(expected.size(), actual.size());
+		for (int i = 0; i < expected.size(); i++) {
+			assertEquals(expected.get(i).getKey(), actual.get(i).getKey());
+			assertEquals(expected.get(i).getProperties(), actual.get(i).getProperties());
+			assertEquals(expected.get(i).isUnindexedProperty("notes"), actual.get(i).isUnindexedProperty("notes"));
+		}
+	}
+
+	private static List<Entity> readAll(Path file) throws Exception {
+		List<Entity> entities = new ArrayList<>();
+		try (EntityDumpReader reader = new EntityDumpReader(file)) {
+			for (int i = 0; i < reader.getBlockCount(); i++) {
+				List<Entity> block = EntityDumpReader.decode(reader.readBlock(i));
+				assertEquals(reader.getEntityCount(i), block.size());
+				entities.addAll(block);
+			}
+			assertEquals(entities.size(), reader.getEntityCount());
+		}
+		return entities;
+	}
+
+	private static Entity newEntity(int id) {
+		Entity entity = new Entity(KeyFactory.createKey("Thing", "thing" + id));
+		entity.setProperty("count", (long) id);
+		entity.setProperty("name", "Thing, \"" + id + "\"\n");
+		entity.setProperty("created", new Date(1000L * id));
+		entity.setUnindexedProperty("notes", new Text("notes " + id));
+		entity.setProperty("tags", Arrays.asList("a", "b"));
+		entity.setProperty("missing", null);
+		return entity;
+	}
+
+}
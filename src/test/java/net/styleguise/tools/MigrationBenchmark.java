@@ -0,0 +1,310 @@
+package net.styleguise.tools;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.Callable;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Text;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.apphosting.api.ApiProxy;
+
+/**
+ * Measures the throughput of an export, an import and a streaming migration against the SDK's
+ * in-process local datastore, so it needs no network access. The datastore is seeded with
+ * synthetic kinds (see {@link SyntheticKind}); then
+ * <ol>
+ * 	<li>the kinds are exported to CSV files,</li>
+ * 	<li>the files are imported into an empty datastore, which is checked against the seed, and</li>
+ * 	<li>the kinds are streamed through {@link DatastoreMigrator} back into the same datastore.</li>
+ * </ol>
+ * Every phase reports its entities/s, bytes/s (as counted by its {@link TransferMetrics}) and the
+ * peak heap usage (the sum of the peaks of the heap memory pools).
+ *
+ * Run the main method from the test classpath with key=value arguments: kinds (default 4), rows
+ * per kind (5000), width (properties per entity, 8), textSize (characters of the Text property,
+ * 1000) and minRate (0). A phase slower than minRate entities/s fails the run, so it can serve
+ * as a regression gate.
+ */
+public class MigrationBenchmark {
+
+	private static final String KindPrefix = "Synthetic";
+	private static final String TextProperty = "text";
+	private static final String Alphabet = "abcdefghijklmnopqrstuvwxyz ABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789";
+	private static final String Special = ",\"\n;";
+	private static final int StringSize = 24;
+	private static final int SeedBatchSize = 500;
+	private static final int SampleRows = 10;
+
+	public static void main(String[] args) throws Exception {
+		int kinds = 4;
+		int rows = 5000;
+		int width = 8;
+		int textSize = 1000;
+		double minRate = 0;
+		for (String arg : args) {
+			String[] option = arg.split("=", 2);
+			if (option.length != 2)
+				throw new IllegalArgumentException("Expected key=value: " + arg);
+			switch (option[0]) {
+			case "kinds": kinds = Integer.parseInt(option[1]); break;
+			case "rows": rows = Integer.parseInt(option[1]); break;
+			case "width": width = Integer.parseInt(option[1]); break;
+			case "textSize": textSize = Integer.parseInt(option[1]); break;
+			case "minRate": minRate = Double.parseDouble(option[1]); break;
+			default: throw new IllegalArgumentException("Unknown option: " + option[0]);
+			}
+		}
+
+		List<Result> results = new MigrationBenchmark(kinds, rows, width, textSize).run();
+		boolean slow = false;
+		System.out.println(kinds + " kinds of " + rows + " rows, width " + width + ", text size " + textSize);
+		for (Result result : results) {
+			System.out.println(result);
+			slow |= result.getEntitiesPerSecond() < minRate;
+		}
+		if (slow) {
+			System.out.println("Slower than " + minRate + " entities/s");
+			System.exit(1);
+		}
+	}
+
+	private final int kinds;
+	private final int rows;
+	private final int width;
+	private final int textSize;
+
+	public MigrationBenchmark(int kinds, int rows, int width, int textSize) {
+		if (kinds < 1 || rows < 1 || width < 1 || width > SyntheticKind.Width || textSize < 0)
+			throw new IllegalArgumentException("Invalid benchmark: " + kinds + " kinds, " + rows + " rows, width "
+					+ width + " (at most " + SyntheticKind.Width + "), text size " + textSize);
+		this.kinds = kinds;
+		this.rows = rows;
+		this.width = width;
+		this.textSize = textSize;
+	}
+
+	/**
+	 * Runs the export, the import and the migration.
+	 */
+	public List<Result> run() throws Exception {
+		ArrayList<Result> results = new ArrayList<>();
+		LocalServiceTestHelper helper = new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig()
+				.setNoStorage(true).setApplyAllHighRepJobPolicy());
+		helper.setUp();
+		try {
+			seed();
+
+			List<Path> files;
+			Phase phase = new Phase("export");
+			try (DatastoreExporter exporter = new DatastoreExporter()) {
+				files = exporter.exportData();
+				results.add(phase.end(exporter.getMetrics()));
+			}
+
+			// import into an empty datastore
+			helper.tearDown();
+			helper.setUp();
+			phase = new Phase("import");
+			try (DatastoreImporter importer = newImporter()) {
+				importer.importData(files);
+				results.add(phase.end(importer.getMetrics()));
+			} finally {
+				delete(files.get(0).getParent());
+			}
+			verify();
+
+			// stream the kinds back into the same datastore
+			final ApiProxy.Environment environment = ApiProxy.getCurrentEnvironment();
+			final DatastoreImporter[] target = new DatastoreImporter[1];
+			phase = new Phase("migrate");
+			try (DatastoreExporter exporter = new DatastoreExporter()) {
+				DatastoreMigrator.migrate(exporter, new Callable<DatastoreImporter>() {
+					@Override
+					public DatastoreImporter call() {
+						ApiProxy.setEnvironmentForCurrentThread(environment);
+						return target[0] = newImporter();
+					}
+				});
+			}
+			results.add(phase.end(target[0].getMetrics()));
+			verify();
+		} finally {
+			helper.tearDown();
+		}
+		return results;
+	}
+
+	private DatastoreImporter newImporter() {
+		DatastoreImporter importer = new DatastoreImporter(null);
+		for (int kind = 0; kind < kinds; kind++)
+			importer.mapKind(KindPrefix + kind, SyntheticKind.class);
+		return importer;
+	}
+
+	private void seed() {
+		DatastoreService ds = DatastoreServiceFactory.getDatastoreService();
+		ArrayList<Entity> batch = new ArrayList<>(SeedBatchSize);
+		for (int kind = 0; kind < kinds; kind++) {
+			for (int row = 1; row <= rows; row++) {
+				batch.add(newEntity(kind, row));
+				if (batch.size() == SeedBatchSize) {
+					ds.put(batch);
+					batch.clear();
+				}
+			}
+		}
+		ds.put(batch);
+	}
+
+	/**
+	 * Checks the number of entities of every kind and compares a few of them with the seed.
+	 */
+	private void verify() throws EntityNotFoundException {
+		DatastoreService ds = DatastoreServiceFactory.getDatastoreService();
+		for (int kind = 0; kind < kinds; kind++) {
+			int count = ds.prepare(new Query(KindPrefix + kind)).countEntities(FetchOptions.Builder.withDefaults());
+			if (count != rows)
+				throw new IllegalStateException(KindPrefix + kind + " has " + count + " entities instead of " + rows);
+			for (int row = 1; row <= Math.min(rows, SampleRows); row++) {
+				Entity expected = newEntity(kind, row);
+				Entity actual = ds.get(expected.getKey());
+				if (!expected.getProperties().equals(actual.getProperties()))
+					throw new IllegalStateException("Expected " + expected + " but found " + actual);
+			}
+		}
+	}
+
+	/**
+	 * The same entity for the same kind and row every time.
+	 */
+	private Entity newEntity(int kind, int row) {
+		Random random = new Random(kind * 1000003L + row);
+		Entity entity = new Entity(KeyFactory.createKey(KindPrefix + kind, row));
+		for (int i = 0; i < width; i++) {
+			Object value;
+			switch (i % 4) {
+			case 0: value = random.nextLong(); break;
+			case 1: value = newString(StringSize, random); break;
+			case 2: value = new Date(random.nextInt(Integer.MAX_VALUE) * 1000L); break;
+			default: value = random.nextBoolean();
+			}
+			entity.setProperty(SyntheticKind.propertyName(i), value);
+		}
+		if (textSize > 0)
+			entity.setUnindexedProperty(TextProperty, new Text(newString(textSize, random)));
+		return entity;
+	}
+
+	/**
+	 * A string with a few characters which need escaping in a CSV file.
+	 */
+	private static String newString(int length, Random random) {
+		StringBuilder s = new StringBuilder(length);
+		for (int i = 0; i < length; i++) {
+			if (random.nextInt(50) == 0)
+				s.append(Special.charAt(random.nextInt(Special.length())));
+			else
+				s.append(Alphabet.charAt(random.nextInt(Alphabet.length())));
+		}
+		return s.toString();
+	}
+
+	private static void delete(Path dir) throws Exception {
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+			for (Path file : files)
+				Files.delete(file);
+		}
+		Files.delete(dir);
+	}
+
+	/**
+	 * Times a phase and tracks its peak heap usage.
+	 */
+	private static class Phase {
+
+		private final String name;
+		private final long start;
+
+		Phase(String name) {
+			this.name = name;
+			System.gc();
+			for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+				pool.resetPeakUsage();
+			start = System.nanoTime();
+		}
+
+		Result end(TransferMetrics metrics) {
+			long nanos = System.nanoTime() - start;
+			long peakHeap = 0;
+			for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+				if (pool.getType() == MemoryType.HEAP)
+					peakHeap += pool.getPeakUsage().getUsed();
+			return new Result(name, metrics.getEntities(), metrics.getBytes(), nanos, peakHeap);
+		}
+	}
+
+	/**
+	 * The outcome of a phase.
+	 */
+	public static class Result {
+
+		private final String phase;
+		private final long entities;
+		private final long bytes;
+		private final long nanos;
+		private final long peakHeap;
+
+		Result(String phase, long entities, long bytes, long nanos, long peakHeap) {
+			this.phase = phase;
+			this.entities = entities;
+			this.bytes = bytes;
+			this.nanos = nanos;
+			this.peakHeap = peakHeap;
+		}
+
+		public String getPhase() {
+			return phase;
+		}
+
+		public long getEntities() {
+			return entities;
+		}
+
+		public double getEntitiesPerSecond() {
+			return entities * 1e9 / nanos;
+		}
+
+		public double getBytesPerSecond() {
+			return bytes * 1e9 / nanos;
+		}
+
+		public long getPeakHeap() {
+			return peakHeap;
+		}
+
+		@Override
+		public String toString() {
+			return String.format(Locale.ROOT, "%-8s %9d entities in %6.2f s: %9.0f entities/s, %7.2f MB/s, peak heap %6.1f MB",
+					phase, entities, nanos / 1e9, getEntitiesPerSecond(), getBytesPerSecond() / (1024 * 1024),
+					peakHeap / (1024.0 * 1024));
+		}
+	}
+
+}
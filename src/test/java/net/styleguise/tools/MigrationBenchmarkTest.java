@@ -0,0 +1,21 @@
+package net.styleguise.tools;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.List;
+
+import org.junit.Test;
+
+public class MigrationBenchmarkTest {
+
+	@Test
+	public void testRun() throws Exception {
+		// the benchmark itself checks the imported and migrated entities against the seed
+		List<MigrationBenchmark.Result> results = new MigrationBenchmark(2, 300, 8, 200).run();
+
+		assertEquals(3, results.size());
+		for (MigrationBenchmark.Result result : results)
+			assertEquals(result.getPhase(), 600, result.getEntities());
+	}
+
+}
@@ -0,0 +1,85 @@
+package net.styleguise.tools;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.Test;
+
+public class ParallelGzipOutputStreamTest {
+
+	@Test
+	public void testRoundTrip() throws Exception {
+		byte[] data = new byte[100000];
+		Random random = new Random(42);
+		for (int i = 0; i < data.length; i++)
+			data[i] = (byte) ('a' + random.nextInt(8));
+
+		for (int blockSize : new int[] { 1, 1000, 4096, data.length, data.length * 2 }) {
+			ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+			try (ParallelGzipOutputStream out = new ParallelGzipOutputStream(compressed, 3, blockSize)) {
+				out.write(data[0]);
+				out.write(data, 1, 999);
+				out.flush();
+				out.write(data, 1000, data.length - 1000);
+			}
+			assertArrayEquals(data, gunzip(compressed.toByteArray()));
+		}
+	}
+
+	@Test
+	public void testMarks() throws Exception {
+		byte[] data = new byte[3100];
+		for (int i = 0; i < data.length; i++)
+			data[i] = (byte) ('a' + i % 8);
+
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+		try (ParallelGzipOutputStream out = new ParallelGzipOutputStream(compressed, 2, 1000)) {
+			// a flush keeps a block which is less than half full
+			out.write(data, 0, 100);
+			out.flush();
+			assertEquals(-1, out.getMark());
+			out.write(data, 100, 500);
+			out.flush();
+			assertEquals(600, out.getMark());
+			out.write(data, 600, 2500);
+			out.flush();
+			assertEquals(3100, out.getMark());
+			out.drain();
+
+			// the output up to a mark is the data up to the mark
+			long offset = out.getOutputOffset(600);
+			assertArrayEquals(Arrays.copyOf(data, 600),
+					gunzip(Arrays.copyOf(compressed.toByteArray(), (int) offset)));
+			assertEquals(compressed.size(), out.getOutputOffset(3100));
+			// earlier marks are forgotten
+			assertEquals(-1, out.getOutputOffset(600));
+		}
+		assertArrayEquals(data, gunzip(compressed.toByteArray()));
+	}
+
+	@Test
+	public void testEmpty() throws Exception {
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+		new ParallelGzipOutputStream(compressed, 2).close();
+		assertArrayEquals(new byte[0], compressed.toByteArray());
+	}
+
+	private static byte[] gunzip(byte[] compressed) throws Exception {
+		ByteArrayOutputStream data = new ByteArrayOutputStream();
+		try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+			byte[] buffer = new byte[8192];
+			int read;
+			while ((read = in.read(buffer)) > 0)
+				data.write(buffer, 0, read);
+		}
+		return data.toByteArray();
+	}
+
+}
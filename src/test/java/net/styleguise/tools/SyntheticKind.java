@@ -0,0 +1,53 @@
+package net.styleguise.tools;
+
+import java.util.Date;
+
+import com.google.appengine.api.datastore.Text;
+
+/**
+ * The persistent class of the synthetic kinds of the {@link MigrationBenchmark}. Property i is
+ * named pi and its type is Long, String, Date or Boolean, depending on i modulo 4.
+ */
+public class SyntheticKind {
+
+	static final int Width = 32;
+
+	private Long p0;
+	private String p1;
+	private Date p2;
+	private Boolean p3;
+	private Long p4;
+	private String p5;
+	private Date p6;
+	private Boolean p7;
+	private Long p8;
+	private String p9;
+	private Date p10;
+	private Boolean p11;
+	private Long p12;
+	private String p13;
+	private Date p14;
+	private Boolean p15;
+	private Long p16;
+	private String p17;
+	private Date p18;
+	private Boolean p19;
+	private Long p20;
+	private String p21;
+	private Date p22;
+	private Boolean p23;
+	private Long p24;
+	private String p25;
+	private Date p26;
+	private Boolean p27;
+	private Long p28;
+	private String p29;
+	private Date p30;
+	private Boolean p31;
+	private Text text;
+
+	static String propertyName(int i) {
+		return "p" + i;
+	}
+
+}
@@ -0,0 +1,90 @@
+package net.styleguise.tools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.Set;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.Test;
+
+public class TransferMetricsTest {
+
+	@Test
+	public void testHistogram() {
+		Histogram histogram = new Histogram();
+		assertEquals(0, histogram.getPercentile(50));
+		for (int i = 1; i <= 100; i++)
+			histogram.record(i);
+
+		assertEquals(100, histogram.getCount());
+		assertEquals(50.5, histogram.getMean(), 0.001);
+		assertEquals(100, histogram.getMax());
+		// the percentiles are the upper bounds of power of two buckets
+		assertEquals(63, histogram.getPercentile(50));
+		assertEquals(100, histogram.getPercentile(90));
+		assertEquals(1, histogram.getPercentile(1));
+	}
+
+	@Test
+	public void testSummary() {
+		TransferMetrics metrics = new TransferMetrics("test");
+		metrics.startKind("B");
+		metrics.recordEntities("A", 10, 1000);
+		metrics.recordEntities("A", 5, 500);
+		metrics.recordBatch(10);
+		metrics.recordPut(2000000);
+		metrics.recordRetry();
+		metrics.watch("queue", new TransferMetrics.Gauge() {
+			@Override
+			public long get() {
+				return 3;
+			}
+		});
+		metrics.stop();
+
+		assertEquals(15, metrics.getEntities());
+		assertEquals(Long.valueOf(15), metrics.getEntitiesByKind().get("A"));
+		assertEquals(Long.valueOf(0), metrics.getEntitiesByKind().get("B"));
+		assertEquals(Long.valueOf(2000), metrics.getPutLatencyMicros().get("max"));
+		assertEquals(Long.valueOf(3), metrics.getQueueDepths().get("queue"));
+
+		String json = metrics.toJson();
+		assertTrue(json, json.startsWith("{\"name\":\"test\","));
+		assertTrue(json, json.contains("\"entities\":15,\"bytes\":1500,"));
+		assertTrue(json, json.contains("\"retries\":1,"));
+		assertTrue(json, json.contains("\"A\":{\"entities\":15,\"bytes\":1500,"));
+		assertTrue(json, json.contains("\"batchSizes\":{\"count\":1,\"mean\":10,\"p50\":10,"));
+		assertTrue(json, json.endsWith("\"queueDepths\":{\"queue\":{\"count\":0,\"mean\":0,\"p50\":0,\"p90\":0,\"p99\":0,\"max\":0}}}"));
+	}
+
+	@Test
+	public void testEta() {
+		TransferMetrics metrics = new TransferMetrics("test");
+		assertEquals(-1, metrics.getEtaSeconds());
+		metrics.addExpectedInput(100);
+		metrics.recordInput(100);
+		assertEquals(0, metrics.getEtaSeconds());
+	}
+
+	@Test
+	public void testRegistration() throws Exception {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName query = new ObjectName(TransferMetrics.Domain + ":type=TransferMetrics,name=\"registered\",*");
+		TransferMetrics metrics = new TransferMetrics("registered");
+		metrics.start(0);
+		try {
+			metrics.recordEntities("A", 7, 70);
+			Set<ObjectName> names = server.queryNames(query, null);
+			assertEquals(1, names.size());
+			assertEquals(7L, server.getAttribute(names.iterator().next(), "Entities"));
+		} finally {
+			metrics.stop();
+		}
+		assertTrue(server.queryNames(query, null).isEmpty());
+	}
+
+}